@@ -0,0 +1,207 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.tasks.SerialExecutor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls another listener on an executor instead of the thread publishing
+ * the events, so a slow listener doesn't hold up the network.
+ *
+ * The events of one peer are handed to the listener in the order they were
+ * published, events of different peers may be handled in parallel. At most
+ * <code>capacity</code> events wait for the listener, what happens to
+ * further ones depends on the {@link OverflowPolicy}.
+ *
+ * Register it in place of the listener:
+ * <pre>
+ * network.addListener(new AsyncEventListener(listener, executor, 10000, OverflowPolicy.DROP));
+ * </pre>
+ *
+ * @author cdecker
+ *
+ */
+public class AsyncEventListener implements BitcoinEventListener {
+	public enum OverflowPolicy {
+		/**
+		 * Events that don't fit are dropped and counted.
+		 */
+		DROP,
+		/**
+		 * The publishing thread waits for room. This throttles the network
+		 * to the speed of the listener, but nothing is lost.
+		 */
+		BLOCK
+	}
+
+	private static Logger log = LoggerFactory.getLogger(AsyncEventListener.class);
+	private final BitcoinEventListener listener;
+	private final Executor executor;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final Semaphore room;
+	// One serial executor per peer, events without a peer share one
+	private final Map<PeerInfo, SerialExecutor> origins = new HashMap<PeerInfo, SerialExecutor>();
+	private final SerialExecutor noOrigin;
+
+	private final AtomicLong handled = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong handlingNanos = new AtomicLong();
+	private final AtomicLong maxHandlingNanos = new AtomicLong();
+
+	/**
+	 * @param listener the listener to call.
+	 * @param executor the executor to call it on.
+	 * @param capacity how many events may wait for the listener.
+	 * @param policy what to do with events once the capacity is reached.
+	 */
+	public AsyncEventListener(BitcoinEventListener listener, Executor executor, int capacity, OverflowPolicy policy){
+		if(capacity < 1)
+			throw new IllegalArgumentException("Capacity has to be positive.");
+		this.listener = listener;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.room = new Semaphore(capacity);
+		this.noOrigin = new SerialExecutor(executor);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.BitcoinEventListener#eventReceived(net.bitdroid.network.Event)
+	 */
+	public void eventReceived(Event e) throws InterruptedException {
+		dispatch(e, true);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.BitcoinEventListener#messageSent(net.bitdroid.network.Event)
+	 */
+	public void messageSent(Event e) throws InterruptedException {
+		dispatch(e, false);
+	}
+
+	private void dispatch(final Event e, final boolean received) throws InterruptedException {
+		if(policy == OverflowPolicy.BLOCK){
+			room.acquire();
+		}else if(!room.tryAcquire()){
+			dropped.incrementAndGet();
+			return;
+		}
+		final PeerInfo origin = e.getOrigin();
+		final boolean last = received && e.getType() == EventType.DISCONNECTED_TYPE;
+		SerialExecutor serial;
+		if(origin == null){
+			serial = noOrigin;
+		}else{
+			synchronized(origins){
+				serial = origins.get(origin);
+				if(serial == null){
+					serial = new SerialExecutor(executor);
+					origins.put(origin, serial);
+				}
+				// Nothing follows a disconnect, later events get a new one
+				if(last)
+					origins.remove(origin);
+			}
+		}
+		try{
+			serial.execute(new Runnable() {
+				public void run() {
+					handle(e, received);
+				}
+			});
+		}catch(RuntimeException ex){
+			room.release();
+			throw ex;
+		}
+	}
+
+	private void handle(Event e, boolean received){
+		long start = System.nanoTime();
+		try{
+			if(received)
+				listener.eventReceived(e);
+			else
+				listener.messageSent(e);
+		}catch(Exception ex){
+			log.error("Possible error in an asynchronous listener handling " + e, ex);
+		}finally{
+			room.release();
+			long took = System.nanoTime() - start;
+			handled.incrementAndGet();
+			handlingNanos.addAndGet(took);
+			long max;
+			while(took > (max = maxHandlingNanos.get()) && !maxHandlingNanos.compareAndSet(max, took));
+		}
+	}
+
+	/**
+	 * @return the listener events are handed to.
+	 */
+	public BitcoinEventListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return the number of events waiting for the listener.
+	 */
+	public int getQueueDepth(){
+		return capacity - room.availablePermits();
+	}
+
+	/**
+	 * @return the number of events handled by the listener.
+	 */
+	public long getHandled(){
+		return handled.get();
+	}
+
+	/**
+	 * @return the number of events dropped because the listener was behind.
+	 */
+	public long getDropped(){
+		return dropped.get();
+	}
+
+	/**
+	 * @return the average time the listener took for an event, in
+	 * 		nanoseconds.
+	 */
+	public long getAverageHandlingNanos(){
+		long count = handled.get();
+		return count == 0 ? 0 : handlingNanos.get() / count;
+	}
+
+	/**
+	 * @return the longest time the listener took for an event, in
+	 * 		nanoseconds.
+	 */
+	public long getMaxHandlingNanos(){
+		return maxHandlingNanos.get();
+	}
+}
@@ -21,8 +21,8 @@ package net.bitdroid.network;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.bitdroid.network.Event.EventType;
 import net.bitdroid.network.messages.PeerAddress;
@@ -41,6 +41,14 @@ import org.slf4j.LoggerFactory;
  *
  */
 public class BitcoinClientDriver implements BitcoinEventListener {
+	/**
+	 * The events the driver needs to be added for.
+	 */
+	public static final EventType[] SUBSCRIPTIONS = {
+		EventType.OUTGOING_CONNECTION_TYPE, EventType.VERSION_TYPE, EventType.VERACK_TYPE,
+		EventType.ADDR_TYPE, EventType.DISCONNECTED_TYPE
+	};
+
 	private BitcoinNetwork network;
 	Logger log = LoggerFactory.getLogger(BitcoinClientDriver.class);
 
@@ -48,9 +56,16 @@ public class BitcoinClientDriver implements BitcoinEventListener {
 		this.network = network;
 	}
 
-	Map<Object, ConnectionState> handshakeState = new HashMap<Object, ConnectionState>();
+	// Events of different peers may come from different threads
+	Map<Object, ConnectionState> handshakeState = new ConcurrentHashMap<Object, ConnectionState>();
 
 	public void eventReceived(Event event) {
+		if(event.getOrigin() == null)
+			return;
+		if(event.getType() == EventType.DISCONNECTED_TYPE){
+			handshakeState.remove(event.getOrigin());
+			return;
+		}
 		ConnectionState state = handshakeState.get(event.getOrigin());
 		if(state == null){
 			state = new ConnectionState();
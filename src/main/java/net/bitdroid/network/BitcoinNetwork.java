@@ -18,21 +18,13 @@
 package net.bitdroid.network;
 
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
-import java.util.List;
-
-import net.bitdroid.network.messages.AddrMessage;
-import net.bitdroid.network.messages.BlockMessage;
-import net.bitdroid.network.messages.GetAddrMessage;
-import net.bitdroid.network.messages.GetDataMessage;
-import net.bitdroid.network.messages.InventoryMessage;
+import java.util.EnumMap;
+import java.util.concurrent.Executor;
+
+import net.bitdroid.network.Event.EventType;
 import net.bitdroid.network.messages.Message;
-import net.bitdroid.network.messages.Transaction;
-import net.bitdroid.network.messages.UnknownMessage;
-import net.bitdroid.network.messages.VerackMessage;
-import net.bitdroid.network.messages.VersionMessage;
+import net.bitdroid.network.tasks.DeferredTask;
+import net.bitdroid.utils.Sha256d;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,8 +42,48 @@ public abstract class BitcoinNetwork {
 		message.setOrigin(destination);
 		sendMessage(message);
 	}
-	protected List<BitcoinEventListener> eventListeners = new LinkedList<BitcoinEventListener>();
+
+	/**
+	 * Send a frame that has been encoded already, so the message doesn't
+	 * have to be serialized again. The network takes over the caller's
+	 * reference to the frame.
+	 *
+	 * @param destination the peer to send the frame to.
+	 * @param frame the encoded frame.
+	 * @throws IOException if the frame cannot be sent.
+	 */
+	public void sendFrame(PeerInfo destination, EncodedFrame frame) throws IOException{
+		frame.release();
+		throw new IOException("Sending encoded frames is not supported by " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Run a task once it is due, tasks that repeat are queued again after
+	 * every run.
+	 *
+	 * @param task the task.
+	 * @throws UnsupportedOperationException if the network doesn't run tasks.
+	 */
+	public void queueTask(DeferredTask task){
+		throw new UnsupportedOperationException("Tasks are not supported by " + getClass().getSimpleName());
+	}
+
+	private static final BitcoinEventListener[] NO_LISTENERS = new BitcoinEventListener[0];
+	// Listeners by the type of event they are interested in, every change
+	// publishes a new map, so events are dispatched without locking from
+	// whichever thread publishes them.
+	private volatile EnumMap<EventType, BitcoinEventListener[]> subscriptions = createSubscriptions();
+	// Listeners interested in everything, for events without a type
+	private volatile BitcoinEventListener[] allListeners = NO_LISTENERS;
 	private Logger log = LoggerFactory.getLogger(BitcoinNetwork.class);
+	private MessageCodecRegistry codecRegistry = MessageCodecRegistry.createDefault();
+
+	private static EnumMap<EventType, BitcoinEventListener[]> createSubscriptions(){
+		EnumMap<EventType, BitcoinEventListener[]> map = new EnumMap<EventType, BitcoinEventListener[]>(EventType.class);
+		for(EventType type : EventType.values())
+			map.put(type, NO_LISTENERS);
+		return map;
+	}
 
 	/**
 	 * Add a listener to be notified upon incoming or outgoing events.
@@ -59,66 +91,126 @@ public abstract class BitcoinNetwork {
 	 * @param listener
 	 */
 	public void addListener(BitcoinEventListener listener){
-		this.eventListeners.add(listener);
+		addListener(listener, EventType.values());
+	}
+
+	/**
+	 * Add a listener that is only notified of events of the given types,
+	 * incoming or outgoing. Listeners are notified in the order they were
+	 * added.
+	 *
+	 * @param listener the listener.
+	 * @param types the types of events the listener is interested in, all
+	 * 		of them if none are given.
+	 */
+	public synchronized void addListener(BitcoinEventListener listener, EventType... types){
+		if(types.length == 0)
+			types = EventType.values();
+		EnumMap<EventType, BitcoinEventListener[]> map = new EnumMap<EventType, BitcoinEventListener[]>(subscriptions);
+		for(EventType type : types)
+			map.put(type, append(map.get(type), listener));
+		if(types.length == EventType.values().length)
+			allListeners = append(allListeners, listener);
+		subscriptions = map;
+	}
+
+	private static BitcoinEventListener[] append(BitcoinEventListener[] listeners, BitcoinEventListener listener){
+		for(BitcoinEventListener l : listeners)
+			if(l == listener)
+				return listeners;
+		BitcoinEventListener[] result = new BitcoinEventListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, result, 0, listeners.length);
+		result[listeners.length] = listener;
+		return result;
+	}
+
+	/**
+	 * Add a listener that is called on the executor instead of the thread
+	 * publishing the event, see {@link AsyncEventListener}. As it returns
+	 * right away it cannot stop the propagation of an event.
+	 *
+	 * @param listener the listener.
+	 * @param executor the executor to call it on.
+	 * @param capacity how many events may wait for the listener.
+	 * @param policy what to do with events once the capacity is reached.
+	 * @param types the types of events the listener is interested in, all
+	 * 		of them if none are given.
+	 * @return the wrapper that was added, for its metrics.
+	 */
+	public AsyncEventListener addAsyncListener(BitcoinEventListener listener, Executor executor,
+			int capacity, AsyncEventListener.OverflowPolicy policy, EventType... types){
+		AsyncEventListener async = new AsyncEventListener(listener, executor, capacity, policy);
+		addListener(async, types);
+		return async;
+	}
+
+	/**
+	 * @param type a type of event.
+	 * @return whether any listener is interested in events of the type.
+	 */
+	public boolean isSubscribed(EventType type){
+		return subscriptions.get(type).length > 0;
 	}
 
 	/**
-	 * Publish an incoming event to all registered listeners.
+	 * @param e an event.
+	 * @return the listeners interested in the event.
+	 */
+	private BitcoinEventListener[] getListeners(Event e){
+		EventType type = e.getType();
+		return type == null ? allListeners : subscriptions.get(type);
+	}
+
+	/**
+	 * Publish an incoming event to the listeners interested in it, until one
+	 * of them stops its propagation. The propagation is only stopped for this
+	 * dispatch, the same message may be published again, e.g. when it is
+	 * relayed.
 	 *
 	 * @param e
 	 */
 	protected final void publishReceivedEvent(Event e){
 		log.debug("Publishing received message {}", e);
-		for(BitcoinEventListener listener : eventListeners)
+		e.setPropagate(true);
+		for(BitcoinEventListener listener : getListeners(e)){
 			try{
 				listener.eventReceived(e);
 			}catch(Exception ex){
 				log.error("Possible error in a listener publishing incoming event.", ex);
 			}
+			if(!e.isPropagate())
+				break;
+		}
 	}
 
 	/**
-	 * Publish events to all registered listeners.
+	 * Publish events to the listeners interested in them, until one of them
+	 * stops the propagation, for this dispatch only.
 	 *
 	 * @param e
 	 */
 	protected final void publishSentEvent(Event e){
 		log.debug("Publishing sent message {}", e);
-		for(BitcoinEventListener listener : eventListeners)
+		e.setPropagate(true);
+		for(BitcoinEventListener listener : getListeners(e)){
 			try{
 				listener.messageSent(e);
 			}catch(Exception ex){
 				log.error("Possible error in a listener publishing outgoing event.", ex);
 			}
+			if(!e.isPropagate())
+				break;
+		}
 	}
 
-	// Just caching the hash object creation.
-	private MessageDigest hasher = null;
-
 	/**
 	 * Calculate the 4 byte checksum of the message content.
 	 *
 	 * @param content to be hashed
 	 * @return 4 byte array with the checksum
-	 * @throws RuntimeException if we cannot continue (due to missing hash functions)
 	 */
-	public final byte[] calculateChecksum(byte[] b) throws RuntimeException{
-		byte[] res = new byte[4];
-		if(hasher == null){
-			try {
-				hasher = MessageDigest.getInstance("SHA-256");
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-				throw new RuntimeException("Cannot continue without a SHA-256 implementation.", e);
-			}
-		}
-		hasher.reset();
-		byte[] o = hasher.digest(b);
-		hasher.reset();
-		o = hasher.digest(o);
-		for(int i=0; i<4; i++)
-			res[i] = o[i];
-		return res;
+	public final byte[] calculateChecksum(byte[] b){
+		return Sha256d.checksum(b);
 	}
 
 	public class SocketState {
@@ -137,37 +229,29 @@ public abstract class BitcoinNetwork {
 	 * @return an instance of Message according to the type in the protocol.
 	 */
 	protected final Message createMessage(String command){
-		Message message;
-		if("version".equalsIgnoreCase(command)){
-			message = new VersionMessage();
-
-		}else if("verack".equalsIgnoreCase(command)){
-			message = new VerackMessage();
-
-		}else if("inv".equalsIgnoreCase(command)){
-			message = new InventoryMessage();
-
-		}else if("addr".equalsIgnoreCase(command)){
-			message = new AddrMessage();
-
-		}else if("tx".equalsIgnoreCase(command)){
-			message = new Transaction();
-
-		}else if("getdata".equalsIgnoreCase(command)){
-			message = new GetDataMessage();
-
-		}else if("getaddr".equalsIgnoreCase(command)){
-			message = new GetAddrMessage();
-
-		}else if("block".equalsIgnoreCase(command)){
-			message = new BlockMessage();
+		return codecRegistry.create(command);
+	}
 
-		}else{
-			message = new UnknownMessage();
-			((UnknownMessage)message).setCommand(command);
-		}
+	/**
+	 * Same as {@link #createMessage(String)} but with the command bytes of the
+	 * frame header packed into two longs, see {@link MessageCodecRegistry}.
+	 *
+	 * @param commandLow the first 8 command bytes, little endian.
+	 * @param commandHigh the last 4 command bytes, little endian.
+	 * @return an instance of Message according to the type in the protocol.
+	 */
+	protected final Message createMessage(long commandLow, long commandHigh){
+		return codecRegistry.create(commandLow, commandHigh);
+	}
 
-		return message;
+	/**
+	 * The registry used to create incoming messages. New message types can be
+	 * added by registering a factory for their command.
+	 *
+	 * @return the codecRegistry
+	 */
+	public MessageCodecRegistry getCodecRegistry() {
+		return codecRegistry;
 	}
 
 	/**
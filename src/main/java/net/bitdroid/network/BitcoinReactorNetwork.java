@@ -18,11 +18,12 @@
 
 package net.bitdroid.network;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
@@ -30,61 +31,135 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.messages.BlockMessage;
+import net.bitdroid.network.messages.GetDataMessage;
+import net.bitdroid.network.messages.InventoryMessage;
+import net.bitdroid.network.messages.InventoryMessage.InventoryItem;
 import net.bitdroid.network.messages.Message;
 import net.bitdroid.network.messages.PeerAddress;
+import net.bitdroid.network.messages.Transaction;
 import net.bitdroid.network.messages.VerackMessage;
+import net.bitdroid.network.relay.RollingBloomFilter;
 import net.bitdroid.network.tasks.DeferredTask;
 import net.bitdroid.network.tasks.RepeatingDeferredTask;
-import net.bitdroid.network.wire.LittleEndianInputStream;
-import net.bitdroid.network.wire.LittleEndianOutputStream;
+import net.bitdroid.network.tasks.SerialExecutor;
+import net.bitdroid.network.wire.BufferPool;
+import net.bitdroid.network.wire.ByteRingBuffer;
+import net.bitdroid.network.wire.LittleEndianBufferReader;
+import net.bitdroid.network.wire.PooledBuffer;
+import net.bitdroid.utils.MpscQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-
+/**
+ * Non-blocking network, running a group of event loops with a selector each.
+ *
+ * The first loop runs on the thread calling {@link #run()}. It accepts the
+ * incoming connections and runs the deferred tasks, the other loops get a
+ * thread of their own. Every connection is handed to the loop with the
+ * fewest peers and stays with it, so everything concerning a peer, reading,
+ * decoding, writing and the events it causes, happens on the same thread
+ * and in order. Messages and broadcasts may be sent from any thread, they
+ * are queued for the loop of each peer. Listeners are called from all
+ * loops and have to be thread-safe.
+ *
+ * @author cdecker
+ *
+ */
 public class BitcoinReactorNetwork extends BitcoinNetwork implements Runnable {
 
+	/**
+	 * Size of the per peer ring collecting outgoing frames.
+	 */
+	public static final int OUTBOUND_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * How many of the most recent inventory items each peer is known to have
+	 * are remembered, about 8KB per peer.
+	 */
+	public static final int KNOWN_INVENTORY_SIZE = 2048;
 
+	/**
+	 * How often a readable peer is read from before moving on to the others.
+	 */
+	private static final int MAX_READS_PER_EVENT = 16;
+
+	/**
+	 * Most payloads of a peer waiting to be decoded in pipelined mode, the
+	 * peer isn't read from while it has more.
+	 */
+	public static final int MAX_PENDING_PAYLOADS = 32;
+
+	// Only touched with the queue locked, tasks run on the first loop
 	private PriorityQueue<DeferredTask> taskQueue = new PriorityQueue<DeferredTask>();
 	private InetAddress hostAddress = InetAddress.getByName("0.0.0.0");
 	private int port;
 
-	private Selector selector;
+	private EventLoop[] loops;
+	// Where the search for the least loaded loop starts, to spread out ties
+	private AtomicInteger nextLoop = new AtomicInteger();
 	private ServerSocketChannel serverChannel;
 	private Logger log = LoggerFactory.getLogger(BitcoinReactorNetwork.class);
 
-	// A list of PendingChange instances
-	private Queue<ChangeRequest> pendingChanges = new LinkedList<ChangeRequest>();
 	// Pending messages to be sent:
 	//	private Map<PeerInfo, Queue<Event>> pendingMessages = new HashMap<PeerInfo, Queue<Event>>();
 	// Tracking the state of the sockets
 	//	private Map<PeerInfo, SocketState> socketStates = new HashMap<PeerInfo, SocketState>();
-	private Map<SocketChannel, BitcoinReactorPeerInfo> peers = new HashMap<SocketChannel, BitcoinReactorPeerInfo>();
-	//	/**
-	//	 * A map of buffers for messages that are in flight, not yet completely read.
-	//	 */
-	//	protected Map<SocketChannel, IncompleteMessage> incompleteBuffer = new HashMap<SocketChannel, IncompleteMessage>();
+	// Peers of all loops, broadcasts go through it from any thread
+	private Map<SocketChannel, BitcoinReactorPeerInfo> peers = new ConcurrentHashMap<SocketChannel, BitcoinReactorPeerInfo>();
+	// Buffers for payloads that do not fit into the read buffers, shared by all peers
+	private BufferPool payloadPool = new BufferPool(true);
+	// Buffers for frames shared between peers or too big for the outbound ring
+	private BufferPool framePool = new BufferPool(false);
+	// Broadcasts may come from any thread, so they have their own encoder
+	private final FrameEncoder broadcastEncoder = new FrameEncoder();
+	private boolean verifyChecksums = true;
+	// Workers are only started once a large block arrives
+	private ForkJoinPool blockDecodePool = new ForkJoinPool();
+	private Executor decodeExecutor = null;
+	private boolean skipUnsubscribed = true;
+	private final AtomicLong skippedFrames = new AtomicLong();
 
 	public BitcoinReactorNetwork(int port) throws IOException {
+		this(port, 1);
+	}
+
+	/**
+	 * @param port the port to listen on, 0 for any free port.
+	 * @param loopCount the number of event loops, each running on a thread of
+	 * 		its own. One per core is a good start.
+	 * @throws IOException if the selectors or the server socket cannot be
+	 * 		opened.
+	 */
+	public BitcoinReactorNetwork(int port, int loopCount) throws IOException {
+		if(loopCount < 1)
+			throw new IllegalArgumentException("Need at least one event loop.");
 		this.port = port;
+		this.loops = new EventLoop[loopCount];
 		this.init();
 	}
 
 	public void init() throws IOException{
-		log.debug("Starting non-blocking reactor");
+		log.debug("Starting non-blocking reactor with {} event loops", loops.length);
 		log.info("Listening to {}:{}", hostAddress, port);
-		// Create a new selector
-		selector = SelectorProvider.provider().openSelector();
+		// Create a selector for every loop
+		for(int i=0; i<loops.length; i++)
+			loops[i] = new EventLoop(i);
 
 		// Create a new non-blocking server socket channel
 		this.serverChannel = ServerSocketChannel.open();
@@ -96,178 +171,317 @@ public class BitcoinReactorNetwork extends BitcoinNetwork implements Runnable {
 
 		// Register the server socket channel, indicating an interest in
 		// accepting new connections
-		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
 
 	}
 
-	protected Message readMessage(SelectionKey key) throws IOException {
+	/**
+	 * Read whatever the peer has sent and publish every complete message.
+	 *
+	 * @param key
+	 * @throws IOException if the stream is broken or the peer disconnected.
+	 */
+	protected void readMessages(SelectionKey key) throws IOException {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
 		BitcoinReactorPeerInfo peerInfo = peers.get(socketChannel);
-		// For the case of an incomplete read, we create an Incomplete message
-		// and then try to fill it. Should there already be an incomplete
-		// message we use that one
-		IncompleteMessage im = null;
-		if(peerInfo.hasIncompleteMessagePending()){
-			im = peerInfo.getIncompleteMessage();
-			peerInfo.setIncompleteMessage(null);
-		}else{
-			im = new IncompleteMessage();
-
-			// Read magic
-			ByteBuffer buf = ByteBuffer.allocate(4);
-			socketChannel.read(buf);
-			if(!Arrays.equals(buf.array(), ProtocolVersion.getMagic()))
-				throw new IOException("Stream is out of sync. Probably the other client is missbehaving?");
-
-			// Read the command
-			buf = ByteBuffer.allocate(12);
-			socketChannel.read(buf);
-			im.command = (new String(buf.array())).trim();
-
-			// Poor mans read unsigned int :-)
-			buf = ByteBuffer.allocate(4);
-			socketChannel.read(buf);
-			byte b[] = buf.array();
-			im.size = (int)((b[3] & 0xFF) << 24 | (b[2] & 0xFF) << 16 |
-					(b[1] & 0xFF) << 8 | (b[0] & 0xFF));
-
-			if(peerInfo.getSocketState() != SocketState.HANDSHAKE){
-				im.checksum = ByteBuffer.allocate(4);
-				socketChannel.read(im.checksum);
-				// TODO add switch to check the checksum.
+		FrameDecoder decoder = peerInfo.getFrameDecoder();
+
+		// Keep reading as long as there is data, but give the other peers a
+		// chance if this one keeps sending.
+		for(int i=0; i<MAX_READS_PER_EVENT; i++){
+			int read = decoder.read(socketChannel);
+			if(read < 0)
+				throw new IOException("Connection closed by peer.");
+			if(!readFrames(peerInfo, decoder)){
+				// Too much waiting to be decoded, or a block being decoded
+				// by the pool, stop reading for now
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				return;
 			}
-			im.buffer = ByteBuffer.allocate(im.size);
+			if(read == 0)
+				break;
 		}
+	}
 
-		// Now attempt to fill the rest of the buffer, should we be unable to
-		// fill it completely push it back to the buffers
-		socketChannel.read(im.buffer);
+	/**
+	 * Handle the complete frames the decoder holds. Without a decode executor
+	 * they are decoded and published right away, except for large blocks,
+	 * otherwise the payloads are handed to the peer's pipeline.
+	 *
+	 * @return <code>false</code> if the peer has too many payloads waiting,
+	 * 		or a large block is being decoded, the rest of the frames stay in
+	 * 		the decoder.
+	 */
+	private boolean readFrames(BitcoinReactorPeerInfo peerInfo, FrameDecoder decoder) throws IOException {
+		while(true){
+			if(decodeExecutor != null && peerInfo.pendingPayloads.get() >= MAX_PENDING_PAYLOADS){
+				peerInfo.readPaused = true;
+				return false;
+			}
+			// The checksum flag may change with every message, so the
+			// state is looked up for each frame.
+			if(!decoder.next(peerInfo.getSocketState() != SocketState.HANDSHAKE))
+				return true;
+			if(skipFrame(peerInfo, decoder))
+				continue;
+			if(decodeExecutor != null){
+				pipeline(peerInfo, decoder);
+				continue;
+			}
+			if(isLargeBlock(decoder)){
+				// Not read from again until the block has been published
+				decodeBlock(peerInfo, decoder);
+				return false;
+			}
+			Message message;
+			try{
+				message = readMessage(peerInfo, decoder);
+			}finally{
+				// The message does not reference the payload anymore
+				decoder.releasePayload();
+			}
+			publishReceivedEvent(message);
+		}
+	}
 
-		// If we haven't read everything, push it back in the buffer map
-		if(im.buffer.position() < im.buffer.capacity()){
-			peerInfo.setIncompleteMessage(im);
-			return null;
-		}else{
-			// We finished reading this message, prepare and process it:
+	/**
+	 * Drop the current frame without creating or decoding a message if no
+	 * listener is interested in its type. Listeners of
+	 * {@link EventType#SKIPPED_TYPE} are told about it with a
+	 * {@link SkippedFrameEvent}.
+	 *
+	 * @return whether the frame was dropped.
+	 */
+	private boolean skipFrame(BitcoinReactorPeerInfo peerInfo, FrameDecoder decoder){
+		if(!skipUnsubscribed)
+			return false;
+		long low = decoder.getCommandLow();
+		long high = decoder.getCommandHigh();
+		EventType type = getCodecRegistry().getType(low, high);
+		// The reactor needs these itself, for the handshake and to know
+		// what not to announce to the peer
+		if(type == EventType.VERACK_TYPE || type == EventType.INVENTORY_TYPE || isSubscribed(type))
+			return false;
+		int payloadSize = decoder.getPayloadSize();
+		decoder.releasePayload();
+		skippedFrames.incrementAndGet();
+		if(isSubscribed(EventType.SKIPPED_TYPE)){
+			String command = MessageCodecRegistry.toCommand(low, high);
+			publishPeerEvent(peerInfo, new SkippedFrameEvent(peerInfo, command, type, payloadSize));
+		}
+		return true;
+	}
 
-			// We wrap it into a LittleEndianInputStream
-			// This is mainly done to isolate the messages from each other and
-			// keep the data stream in sync.
-			im.buffer.rewind();
-			LittleEndianInputStream leis = LittleEndianInputStream.wrap(im.buffer);
-			// Boilerplate to select the right message to initialize.
-			Message message = createMessage(im.command);
-			message.setOrigin(peerInfo);
-			// Just set the socket to require checksum flag
-			if(message instanceof VerackMessage)
-				peerInfo.setSocketState(SocketState.OPEN);
+	/**
+	 * @return whether the current frame is a block the block decode pool
+	 * 		would decode in parallel.
+	 */
+	private boolean isLargeBlock(FrameDecoder decoder){
+		return blockDecodePool != null &&
+				getCodecRegistry().getType(decoder.getCommandLow(), decoder.getCommandHigh()) == EventType.BLOCK_TYPE &&
+				BlockMessage.isParallelDecoded(decoder.getPayload());
+	}
 
-			message.setPayloadSize(im.size);
-			// And now each message knows how to read its format:
-			message.read(leis);
-			return message;
-		}
+	/**
+	 * Decode a large block on the block decode pool instead of the loop, so
+	 * the other peers of the loop are served meanwhile. The peer is paused
+	 * until the loop has published the block, which keeps its messages in
+	 * order and the listeners on the loop.
+	 */
+	private void decodeBlock(final BitcoinReactorPeerInfo peerInfo, FrameDecoder decoder){
+		final Message message = prepareMessage(peerInfo, decoder);
+		// Blocks keep their raw bytes, this is the copy decodeMessage makes
+		final ByteBuffer payload = keepRawPayload(message, decoder.getPayload());
+		decoder.releasePayload();
+		peerInfo.readPaused = true;
+		blockDecodePool.execute(new Runnable() {
+			public void run() {
+				ChangeRequest change = new ChangeRequest(peerInfo, ChangeRequest.DECODED, SelectionKey.OP_READ);
+				try{
+					decodeMessage(peerInfo, message, payload);
+					change.message = message;
+				}catch(Exception e){
+					log.debug("Unable to decode block from " + peerInfo, e);
+				}
+				requestChange(change);
+			}
+		});
 	}
 
 	/**
-	 * Process requested changes to the sockets and register new interests to
-	 * the selector keys.
-	 *
-	 * @throws ClosedChannelException
-	 */
-	private void processChanges() throws ClosedChannelException{
-		// Process any pending changes
-		synchronized (this.pendingChanges) {
-			Iterator<ChangeRequest> changes = this.pendingChanges.iterator();
-			while (changes.hasNext()) {
-				ChangeRequest change = (ChangeRequest) changes.next();
-				switch (change.type) {
-				case ChangeRequest.CHANGEOPS:
-					SelectionKey key = change.socket.keyFor(selector);
-					if(key.isValid())
-						key.interestOps(change.ops);
-					else
-						key.cancel();
-				case ChangeRequest.REGISTER:
-					try{
-						change.socket.register(selector, change.ops);
-					}catch(ClosedChannelException cce){
-						log.error("Channel already closed, cleaning up", cce);
-						try{
-							change.socket.keyFor(this.selector).cancel();
-						}catch(CancelledKeyException cke){
-							log.info("Key already cancelled. This can be ignored. Cleanup will continue.", cke);
-						}
-						peers.remove(change.socket);
-					}
-					break;
+	 * Hand the current frame to the worker pool. The payload is kept in a
+	 * pooled buffer of its own, or copied right into the raw bytes of a
+	 * message that keeps them. The message is only created here so a verack
+	 * switches the checksums on before the next frame is read.
+	 */
+	private void pipeline(final BitcoinReactorPeerInfo peerInfo, FrameDecoder decoder){
+		final Message message = prepareMessage(peerInfo, decoder);
+		PooledBuffer spilled = decoder.getPooledPayload();
+		final PooledBuffer payload;
+		if(spilled != null){
+			payload = spilled.retain();
+		}else if(message.isRetainingRawPayload()){
+			// Copied once, a pooled buffer would only be copied again
+			keepRawPayload(message, decoder.getPayload());
+			payload = null;
+		}else{
+			ByteBuffer view = decoder.getPayload();
+			peerInfo.loop.payloadSizes.record(view.remaining());
+			payload = payloadPool.acquire(view.remaining());
+			payload.getBuffer().put(view.duplicate());
+			payload.getBuffer().flip();
+		}
+		decoder.releasePayload();
+		peerInfo.pendingPayloads.incrementAndGet();
+		peerInfo.getDispatcher().execute(new Runnable() {
+			public void run() {
+				boolean decoded = false;
+				try{
+					decodeMessage(peerInfo, message, payload != null ? payload.getBuffer() : message.getRawPayload());
+					decoded = true;
+				}catch(Exception e){
+					log.debug("Unable to decode message from " + peerInfo, e);
+				}finally{
+					if(payload != null)
+						payload.release();
 				}
+				if(decoded)
+					publishReceivedEvent(message);
+				else
+					requestChange(new ChangeRequest(peerInfo, ChangeRequest.DISCONNECT, 0));
+				if(peerInfo.pendingPayloads.decrementAndGet() == MAX_PENDING_PAYLOADS / 2)
+					requestChange(new ChangeRequest(peerInfo, ChangeRequest.RESUME, SelectionKey.OP_READ));
 			}
-			this.pendingChanges.clear();
+		});
+	}
+
+	/**
+	 * Queue a change for the loop of the peer and wake it up.
+	 */
+	private void requestChange(ChangeRequest change){
+		EventLoop loop = change.peer.loop;
+		loop.pendingChanges.offer(change);
+		loop.selector.wakeup();
+	}
+
+	/**
+	 * Publish an event about a peer. In pipelined mode it goes through the
+	 * peer's pipeline, behind the messages that are still being decoded.
+	 */
+	private void publishPeerEvent(BitcoinReactorPeerInfo peerInfo, final Event e){
+		if(decodeExecutor == null){
+			publishReceivedEvent(e);
+			return;
 		}
+		peerInfo.getDispatcher().execute(new Runnable() {
+			public void run() {
+				publishReceivedEvent(e);
+			}
+		});
 	}
 
 	/**
+	 * Decode the current frame of the decoder into a message.
 	 *
+	 * @param peerInfo the peer that sent the frame.
+	 * @param decoder decoder positioned at a complete frame.
+	 * @return the decoded message.
+	 * @throws IOException if the payload cannot be parsed.
+	 */
+	protected Message readMessage(BitcoinReactorPeerInfo peerInfo, FrameDecoder decoder) throws IOException {
+		Message message = prepareMessage(peerInfo, decoder);
+		decodeMessage(peerInfo, message, decoder.getPayload());
+		return message;
+	}
+
+	/**
+	 * Create the message for the current frame of the decoder, without
+	 * reading it yet.
+	 *
+	 * @param peerInfo the peer that sent the frame.
+	 * @param decoder decoder positioned at a complete frame.
+	 * @return the message to be read.
+	 */
+	protected Message prepareMessage(BitcoinReactorPeerInfo peerInfo, FrameDecoder decoder) {
+		// Boilerplate to select the right message to initialize.
+		Message message = createMessage(decoder.getCommandLow(), decoder.getCommandHigh());
+		message.setOrigin(peerInfo);
+		// Just set the socket to require checksum flag
+		if(message instanceof VerackMessage)
+			peerInfo.setSocketState(SocketState.OPEN);
+
+		message.setPayloadSize(decoder.getPayloadSize());
+		if(blockDecodePool != null && message instanceof BlockMessage)
+			((BlockMessage)message).setDecodePool(blockDecodePool);
+		return message;
+	}
+
+	/**
+	 * Read a prepared message from its payload.
+	 *
+	 * @param peerInfo the peer that sent the message.
+	 * @param message the message returned by
+	 * 		{@link #prepareMessage(BitcoinReactorPeerInfo, FrameDecoder)}.
+	 * @param payload the payload, it isn't referenced by the message after
+	 * 		this returns, unless it's the message's raw payload already.
+	 * @throws IOException if the payload cannot be parsed.
+	 */
+	protected void decodeMessage(BitcoinReactorPeerInfo peerInfo, Message message, ByteBuffer payload) throws IOException {
+		// The payload is about to be recycled, keep a copy and read from that
+		// so the message can refer to it while reading
+		if(message.isRetainingRawPayload() && message.getRawPayloadSize() < 0)
+			payload = keepRawPayload(message, payload);
+		// And now each message knows how to read its format. The reader
+		// isolates the messages from each other and keeps the stream in sync.
+		message.read(new LittleEndianBufferReader(payload));
+		rememberInventory(peerInfo, message);
+	}
+
+	/**
+	 * Copy a payload into the raw bytes of a message, the only copy made of
+	 * payloads that are kept.
+	 *
+	 * @return the copy.
+	 */
+	private static ByteBuffer keepRawPayload(Message message, ByteBuffer payload){
+		ByteBuffer raw = ByteBuffer.allocate(payload.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+		raw.put(payload.duplicate());
+		raw.flip();
+		message.setRawPayload(raw);
+		return raw;
+	}
+
+	/**
+	 * Remember the inventory a peer announced, asked for, sent or was sent,
+	 * so it isn't announced to the peer again.
+	 *
+	 * @param peerInfo the peer.
+	 * @param message a message to or from the peer.
+	 */
+	private void rememberInventory(BitcoinReactorPeerInfo peerInfo, Message message){
+		if(message instanceof InventoryMessage){
+			RollingBloomFilter known = peerInfo.getKnownInventory();
+			for(InventoryItem item : ((InventoryMessage)message).getItems())
+				known.add(item.getHash256());
+		}else if(message instanceof Transaction){
+			peerInfo.getKnownInventory().add(((Transaction)message).getHash256());
+		}else if(message instanceof BlockMessage){
+			peerInfo.getKnownInventory().add(((BlockMessage)message).getHash256());
+		}
+	}
+
+	/**
+	 * Run the event loops, the first one on the calling thread, which
+	 * therefore never returns.
 	 */
 	public void run() {
-		addListener(new BitcoinClientDriver(this));
-		while (true) {
-			try {
-				processChanges();
-				long next = executeTasks();
-				// Wait for an event one of the registered channels
-				selector.select(next);
-
-				// Iterate over the set of keys for which events are available
-				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
-				while (selectedKeys.hasNext()) {
-					SelectionKey key = (SelectionKey) selectedKeys.next();
-					selectedKeys.remove();
-					BitcoinReactorPeerInfo peerInfo = peers.get(key.channel());
-					if (!key.isValid())
-						continue;
-
-					// Check what event is available and deal with it
-					if (key.isConnectable()) {
-						try {
-							SocketChannel channel =(SocketChannel) key.channel();
-							channel.finishConnect();
-							peerInfo = new BitcoinReactorPeerInfo(channel);
-							peers.put(channel, peerInfo);
-						} catch (IOException e) {
-							publishReceivedEvent(new Event(null, EventType.FAILED_CONNECTION_TYPE, null));
-							// Cancel the channel's registration with our selector
-							key.cancel();
-							continue;
-						}
-						//key.interestOps(SelectionKey.OP_READ); // By default register interest in reading, this will be overwritten by the below listeners
-						Event e = new Event();
-						e.setOrigin(peerInfo);
-						e.setType(EventType.OUTGOING_CONNECTION_TYPE);
-						publishReceivedEvent(e);
-					} else if (key.isAcceptable()) {
-						accept(key);
-					} else if (key.isReadable()) {
-						try{
-							Event m = readMessage(key);
-							if(m != null)
-								publishReceivedEvent(m);
-						}catch(IOException ioe){
-							disconnect(peerInfo);
-						}
-					} else if (key.isWritable()) {
-						try{
-							write(key);
-						}catch(IOException ioe){
-							disconnect(peerInfo);
-						}
-					}
-				}
-			} catch (Throwable e) {
-				log.error("Error while selecting or applying channel changes", e);
-			}
+		addListener(new BitcoinClientDriver(this), BitcoinClientDriver.SUBSCRIPTIONS);
+		for(int i=1; i<loops.length; i++){
+			Thread thread = new Thread(loops[i], "reactor-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
 		}
+		loops[0].run();
 	}
 
 	/**
@@ -277,10 +491,19 @@ public class BitcoinReactorNetwork extends BitcoinNetwork implements Runnable {
 	 * @return milliseconds until the next scheduled task.
 	 */
 	protected long executeTasks(){
-		// So now we execute scheduled tasks
-		while(taskQueue.peek() != null &&
-				taskQueue.peek().getDelay(TimeUnit.MILLISECONDS) <= 0){
-			DeferredTask task = taskQueue.poll();
+		// So now we execute scheduled tasks, without holding the lock so
+		// they can queue tasks themselves
+		while(true){
+			DeferredTask task;
+			synchronized(taskQueue){
+				task = taskQueue.peek();
+				if(task == null)
+					return 0;
+				long delay = task.getDelay(TimeUnit.MILLISECONDS);
+				if(delay > 0)
+					return delay;
+				taskQueue.poll();
+			}
 			try{
 				task.execute();
 			}catch(Throwable t){
@@ -291,10 +514,6 @@ public class BitcoinReactorNetwork extends BitcoinNetwork implements Runnable {
 				this.queueTask(task);
 			}
 		}
-		if(taskQueue.peek() == null)
-			return 0;
-		else
-			return taskQueue.peek().getDelay(TimeUnit.MILLISECONDS);
 	}
 
 
@@ -306,72 +525,181 @@ public class BitcoinReactorNetwork extends BitcoinNetwork implements Runnable {
 	 */
 	protected void disconnect(PeerInfo peerInfo){
 		BitcoinReactorPeerInfo peer = (BitcoinReactorPeerInfo)peerInfo;
+		// May be asked for by the loop and by the decoding pipeline, and
+		// again by enqueue() for the frames queued while it was closing
+		if(peer.getSocketState() == SocketState.SHUTDOWN){
+			peer.dropPendingFrames();
+			return;
+		}
+		// Marked before the queue is drained, see enqueue()
+		peer.setSocketState(SocketState.SHUTDOWN);
 		try {
 			peer.getSocketChannel().close();
-			peer.getSocketChannel().keyFor(this.selector).cancel();
+			SelectionKey key = peer.getSocketChannel().keyFor(peer.loop.selector);
+			if(key != null)
+				key.cancel();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		peers.remove(peer.getSocketChannel());
+		if(peers.remove(peer.getSocketChannel()) != null)
+			peer.loop.peerCount.decrementAndGet();
+		peer.closeFrameDecoder();
+		peer.dropPendingFrames();
 		Event e = new Event();
 		e.setOrigin(peer);
 		e.setType(EventType.DISCONNECTED_TYPE);
-		publishReceivedEvent(e);
+		publishPeerEvent(peer, e);
 	}
 
+	/**
+	 * Flush as much of the pending data of a peer as the socket accepts.
+	 *
+	 * Queued messages are encoded into the peer's outbound ring, which is
+	 * then written with a single gathering write. Whatever the socket does
+	 * not take stays in the ring for the next writable event, and the
+	 * interest in writing is only dropped once everything has been sent.
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
 	private void write(SelectionKey key) throws IOException {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
 		BitcoinReactorPeerInfo peerInfo = peers.get(socketChannel);
+		ByteRingBuffer ring = peerInfo.getOutboundBuffer();
 
-		Queue<Event> queue = peerInfo.getPendingMessages();
-
-		// Write until there's not more data ...
-		synchronized(queue){
-			while (!queue.isEmpty()) {
-				Message message = (Message)queue.poll();
-				publishSentEvent(message);
-				ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
-				message.toWire(new LittleEndianOutputStream(outBuffer));
-				socketChannel.write(ByteBuffer.wrap(ProtocolVersion.getMagic()));
-				// write the command
-				String command = message.getCommand();
-				socketChannel.write(ByteBuffer.wrap(command.getBytes()));
-				// Pad with 0s
-				socketChannel.write(ByteBuffer.allocate(12 - command.length()));
-				// write the size of the packet
-				int size = outBuffer.toByteArray().length;
-				socketChannel.write(ByteBuffer.wrap(new byte[]{(byte)(size & 0xFF),(byte)(size >> 8 & 0xFF),
-						(byte)(size >> 16 & 0xFF), (byte)(size >> 24 & 0xFF)}));
-				if(peerInfo.getSocketState() == SocketState.OPEN)
-					socketChannel.write(ByteBuffer.wrap(calculateChecksum(outBuffer.toByteArray())));
-				socketChannel.write(ByteBuffer.wrap(outBuffer.toByteArray()));
+		// Write until there's no more data or the socket is full...
+		while(true){
+			fillOutboundBuffer(peerInfo);
+			if(ring.isEmpty())
+				break;
+			ring.writeTo(socketChannel);
+			if(!ring.isEmpty())
+				break;
+		}
+
+		MpscQueue<EncodedFrame> queue = peerInfo.getPendingMessages();
+		if (ring.isEmpty() && !peerInfo.hasOversizedFrame() && queue.isEmpty()) {
+			// We wrote away all data, so we're no longer interested
+			// in writing on this socket. Switch back to waiting for
+			// data, unless the peer's pipeline has to catch up first.
+			// The next frame queued asks for the interest again, one
+			// queued before the flag was cleared didn't.
+			peerInfo.writeRequested.set(false);
+			if(queue.isEmpty() || !peerInfo.writeRequested.compareAndSet(false, true))
+				key.interestOps(peerInfo.readPaused ? 0 : SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Move queued frames into the outbound ring of the peer until either the
+	 * queue is empty or the next frame does not fit.
+	 *
+	 * Frames that have not been encoded yet are encoded straight into the
+	 * ring. Shared frames, and frames larger than the free space, are copied
+	 * from their own buffer, trickling in as space frees up.
+	 *
+	 * @param peerInfo
+	 * @throws IOException
+	 */
+	private void fillOutboundBuffer(BitcoinReactorPeerInfo peerInfo) throws IOException {
+		ByteRingBuffer ring = peerInfo.getOutboundBuffer();
+		MpscQueue<EncodedFrame> queue = peerInfo.getPendingMessages();
+		while(true){
+			// Finish the frame that is being copied first
+			if(peerInfo.hasOversizedFrame()){
+				for(ByteBuffer b : peerInfo.getOversizedFrame()){
+					ring.put(b);
+					if(b.hasRemaining())
+						return;
+				}
+				peerInfo.setOversizedFrame(null, null);
 			}
-			if (queue.isEmpty()) {
-				// We wrote away all data, so we're no longer interested
-				// in writing on this socket. Switch back to waiting for
-				// data.
-				key.interestOps(SelectionKey.OP_READ);
+
+			EncodedFrame frame = queue.peek();
+			if(frame == null)
+				return;
+			boolean checksum = peerInfo.getSocketState() == SocketState.OPEN;
+			int size = frame.getSize(checksum);
+			// Wait for the ring to drain before starting a frame that doesn't fit
+			if(size > ring.free() && !ring.isEmpty())
+				return;
+			queue.poll();
+			// Shared by all destinations of a broadcast, so the destination
+			// goes into an event of its own
+			Message message = frame.getMessage();
+			if(message != null && isSubscribed(message.getType()))
+				publishSentEvent(new SentMessageEvent(peerInfo, message));
+
+			if(!frame.isEncoded()){
+				ByteBuffer target = ring.reserve(size);
+				if(target != null){
+					int start = target.position();
+					try{
+						peerInfo.loop.encoder.encode(message, checksum, target);
+					}catch(BufferOverflowException boe){
+						throw new IOException("Encoded " + message.getCommand() + " message is larger than " + size + " bytes.");
+					}finally{
+						frame.release();
+					}
+					// The header announced the predicted size, anything else
+					// would put stale bytes on the wire or desync the stream
+					int written = target.position() - start;
+					if(written != size)
+						throw new IOException("Encoded " + written + " bytes of " + message.getCommand() + " message, expected " + size + ".");
+					ring.commit(written);
+					continue;
+				}
+				frame.encode(peerInfo.loop.encoder, framePool);
 			}
+			peerInfo.setOversizedFrame(frame, frame.getBuffers(checksum));
 		}
 	}
+
 	private void accept(SelectionKey key) throws IOException {
 		// For an accept to be pending the channel must be a server socket channel.
 		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
 
 		// Accept the connection and make it non-blocking
 		SocketChannel socketChannel = serverSocketChannel.accept();
+		if(socketChannel == null)
+			return;
 		/*Socket socket = */socketChannel.socket();
 		socketChannel.configureBlocking(false);
-		BitcoinReactorPeerInfo peerInfo =  new BitcoinReactorPeerInfo(socketChannel);
-		peers.put(socketChannel, peerInfo);
-		// Register the new SocketChannel with our Selector, indicating
-		// we'd like to be notified when there's data waiting to be read
-		socketChannel.register(this.selector, SelectionKey.OP_READ);
+		// Hand it to a loop, which registers it and publishes the connection
+		EventLoop loop = pickLoop();
+		BitcoinReactorPeerInfo peerInfo =  new BitcoinReactorPeerInfo(socketChannel, loop);
+		loop.peerCount.incrementAndGet();
+		loop.pendingChanges.offer(new ChangeRequest(peerInfo, ChangeRequest.ADOPT, SelectionKey.OP_READ));
+		loop.selector.wakeup();
+	}
 
-		Event e = new Event();
-		e.setOrigin(peerInfo);
-		e.setType(EventType.INCOMING_CONNECTION_TYPE);
-		publishReceivedEvent(e);
+	/**
+	 * @return the loop with the fewest peers.
+	 */
+	private EventLoop pickLoop(){
+		int start = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		EventLoop best = loops[start];
+		for(int i=1; i<loops.length; i++){
+			EventLoop loop = loops[(start + i) % loops.length];
+			if(loop.peerCount.get() < best.peerCount.get())
+				best = loop;
+		}
+		return best;
+	}
+
+	/**
+	 * @return the port the network listens on, useful when it was created
+	 * 		with port 0.
+	 */
+	public int getLocalPort(){
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the number of event loops.
+	 */
+	public int getLoopCount(){
+		return loops.length;
 	}
 
 	/* (non-Javadoc)
@@ -379,19 +707,53 @@ public class BitcoinReactorNetwork extends BitcoinNetwork implements Runnable {
 	 */
 	public void sendMessage(Message event) throws IOException {
 		BitcoinReactorPeerInfo peerInfo = (BitcoinReactorPeerInfo) event.getOrigin();
-		synchronized (pendingChanges) {
-			// Indicate we want the interest ops set changed
-			pendingChanges.add(new ChangeRequest(peerInfo.getSocketChannel(), ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-
-			// And queue the data we want written
-			Queue<Event> queue = peerInfo.getPendingMessages();
-			synchronized (queue) {
-				queue.add(event);
-			}
-		}
+		rememberInventory(peerInfo, event);
+		// Unicast messages are encoded by the selecting thread when written
+		enqueue(peerInfo, new EncodedFrame(event));
+	}
 
-		// Finally, wake up our selecting thread so it can make the required changes
-		this.selector.wakeup();
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.BitcoinNetwork#sendFrame(net.bitdroid.network.PeerInfo, net.bitdroid.network.EncodedFrame)
+	 */
+	@Override
+	public void sendFrame(PeerInfo destination, EncodedFrame frame) throws IOException {
+		enqueue((BitcoinReactorPeerInfo)destination, frame);
+	}
+
+	/**
+	 * Queue a frame for a peer. The queue takes over the caller's reference
+	 * to the frame.
+	 *
+	 * Only the first frame after the peer's queue has been drained asks for
+	 * the socket to be watched for writability and wakes up its loop, while
+	 * the interest is set the loop writes the frames as the socket takes
+	 * them.
+	 *
+	 * Frames for a disconnected peer are released right away. One that
+	 * races with the disconnect is dropped by the loop once it notices.
+	 *
+	 * @param peerInfo the destination.
+	 * @param frame the frame to be sent.
+	 */
+	private void enqueue(BitcoinReactorPeerInfo peerInfo, EncodedFrame frame){
+		if(peerInfo.getSocketState() == SocketState.SHUTDOWN){
+			frame.release();
+			return;
+		}
+		// Queued before the flag is checked, see write()
+		peerInfo.getPendingMessages().offer(frame);
+		// The peer was closed after the check, its queue may have been
+		// drained already, so the loop has to drop the frame. Only the
+		// loop may take frames from the queue.
+		if(peerInfo.getSocketState() == SocketState.SHUTDOWN){
+			requestChange(new ChangeRequest(peerInfo, ChangeRequest.DISCONNECT, 0));
+			return;
+		}
+		if(!peerInfo.writeRequested.compareAndSet(false, true))
+			return;
+		EventLoop loop = peerInfo.loop;
+		loop.pendingChanges.offer(new ChangeRequest(peerInfo.getSocketChannel(), ChangeRequest.CHANGEOPS, SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+		loop.selector.wakeup();
 	}
 
 	public void connect(PeerAddress a){
@@ -404,48 +766,149 @@ public class BitcoinReactorNetwork extends BitcoinNetwork implements Runnable {
 			// selecting thread. As part of the registration we'll register
 			// an interest in connection events. These are raised when a channel
 			// is ready to complete connection establishment.
-			synchronized(this.pendingChanges) {
-				this.pendingChanges.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_CONNECT));
-			}
-			selector.wakeup();
+			EventLoop loop = pickLoop();
+			loop.peerCount.incrementAndGet();
+			loop.pendingChanges.offer(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_CONNECT));
+			loop.selector.wakeup();
 		}catch(IOException ioe){
 			log.error("IOException while connecting", ioe);
 		}
 	}
 
+	public boolean isVerifyChecksums() {
+		return verifyChecksums;
+	}
+
+	/**
+	 * Peers sending frames with a wrong checksum are disconnected. Only
+	 * affects peers connecting after the call.
+	 *
+	 * @param verifyChecksums whether to check the checksums of incoming
+	 * 		frames, defaults to <code>true</code>.
+	 */
+	public void setVerifyChecksums(boolean verifyChecksums) {
+		this.verifyChecksums = verifyChecksums;
+	}
+
+	public ForkJoinPool getBlockDecodePool() {
+		return blockDecodePool;
+	}
+
+	/**
+	 * Large blocks are decoded, and their merkle trees hashed when they are
+	 * verified, by this pool instead of only the thread handling them, see
+	 * {@link BlockMessage#setDecodePool(ForkJoinPool)}. By default the
+	 * network has a pool of its own with a worker per processor.
+	 *
+	 * Without a decode executor the whole block is handed to the pool, so
+	 * the loop keeps serving the other peers. The peer sending it isn't read
+	 * from until the loop has published the block.
+	 *
+	 * @param blockDecodePool the pool, or <code>null</code> to decode blocks
+	 * 		on the selecting thread.
+	 */
+	public void setBlockDecodePool(ForkJoinPool blockDecodePool) {
+		this.blockDecodePool = blockDecodePool;
+	}
+
+	public Executor getDecodeExecutor() {
+		return decodeExecutor;
+	}
+
+	/**
+	 * Switch to pipelined mode: the loops only split the incoming bytes into
+	 * frames, the payloads are decoded and the listeners called by the
+	 * executor. The messages and events of a peer stay in order, those of
+	 * different peers are handled in parallel. Peers with
+	 * {@link #MAX_PENDING_PAYLOADS} payloads waiting aren't read from until
+	 * the workers catch up, so a fixed size pool keeps the memory bounded.
+	 * Has to be set before {@link #run()}.
+	 *
+	 * @param decodeExecutor the executor, or <code>null</code> to decode on
+	 * 		the loops.
+	 */
+	public void setDecodeExecutor(Executor decodeExecutor) {
+		this.decodeExecutor = decodeExecutor;
+	}
+
+	public boolean isSkipUnsubscribed() {
+		return skipUnsubscribed;
+	}
+
+	/**
+	 * Whether frames of types no listener subscribed to are dropped as soon
+	 * as they are read, instead of being decoded for nobody. Verack and
+	 * inventory messages are always decoded, the reactor uses them itself.
+	 *
+	 * @param skipUnsubscribed whether to drop unwanted frames, defaults to
+	 * 		<code>true</code>.
+	 */
+	public void setSkipUnsubscribed(boolean skipUnsubscribed) {
+		this.skipUnsubscribed = skipUnsubscribed;
+	}
+
+	/**
+	 * @return the number of frames dropped without being decoded.
+	 */
+	public long getSkippedFrames() {
+		return skippedFrames.get();
+	}
+
 	/**
 	 * Enqueue a new task to be run by the reactor.
 	 * @param task
 	 */
+	@Override
 	public void queueTask(DeferredTask task){
-		taskQueue.add(task);
-		// If we scheduled a new next task we have to artificially wake up the
-		// selector
-		if(taskQueue.peek() == null ||
-				task.getDelay(TimeUnit.MILLISECONDS) < taskQueue.peek().getDelay(TimeUnit.MILLISECONDS))
-			this.selector.wakeup();
+		synchronized(taskQueue){
+			taskQueue.add(task);
+			// If we scheduled a new next task we have to artificially wake up the
+			// selector
+			if(taskQueue.peek() != task)
+				return;
+		}
+		loops[0].selector.wakeup();
 	}
 
 	public class ChangeRequest {
 		public static final int REGISTER = 1;
 		public static final int CHANGEOPS = 2;
+		/**
+		 * Register an accepted connection with the loop it was handed to.
+		 */
+		public static final int ADOPT = 3;
+		/**
+		 * Read from a peer again once its pipeline has caught up.
+		 */
+		public static final int RESUME = 4;
+		/**
+		 * Disconnect a peer whose message could not be decoded, or drop the
+		 * frames queued for a peer after it was disconnected.
+		 */
+		public static final int DISCONNECT = 5;
+		/**
+		 * Publish a block decoded by the block decode pool and read from its
+		 * peer again, or disconnect the peer if the block was broken.
+		 */
+		public static final int DECODED = 6;
 
 		public SocketChannel socket;
 		public int type;
 		public int ops;
+		public BitcoinReactorPeerInfo peer = null;
+		// The decoded block, null if it could not be decoded
+		public Message message = null;
 
 		public ChangeRequest(SocketChannel socket, int type, int ops) {
 			this.socket = socket;
 			this.type = type;
 			this.ops = ops;
 		}
-	}
 
-	public class IncompleteMessage {
-		ByteBuffer buffer;
-		String command;
-		ByteBuffer checksum;
-		int size;
+		public ChangeRequest(BitcoinReactorPeerInfo peer, int type, int ops) {
+			this(peer.getSocketChannel(), type, ops);
+			this.peer = peer;
+		}
 	}
 
 	/* (non-Javadoc)
@@ -453,35 +916,378 @@ public class BitcoinReactorNetwork extends BitcoinNetwork implements Runnable {
 	 */
 	@Override
 	public void broadcast(Message message, Object exclude) {
+		if(message instanceof InventoryMessage && !(message instanceof GetDataMessage)){
+			announce((InventoryMessage)message, exclude);
+			return;
+		}
+		// Encode once, every peer gets a reference to the same frame. The
+		// message itself is not touched, so its origin stays intact.
+		EncodedFrame frame;
+		try {
+			synchronized(broadcastEncoder){
+				frame = EncodedFrame.encode(message, broadcastEncoder, framePool);
+			}
+		} catch (IOException e) {
+			log.error("Unable to encode broadcast message " + message, e);
+			return;
+		}
+		for(BitcoinReactorPeerInfo peer : peers.values()){
+			if(peer == exclude)
+				continue;
+			enqueue(peer, frame.retain());
+		}
+		frame.release();
+	}
+
+	/**
+	 * Broadcast an inventory, leaving out the items each peer is known to
+	 * have. Peers that know none of the items share a single frame, the others
+	 * get their own inventory, and peers that know them all get nothing.
+	 */
+	private void announce(InventoryMessage inventory, Object exclude) {
+		EncodedFrame shared = null;
+		List<InventoryItem> items = inventory.getItems();
 		for(BitcoinReactorPeerInfo peer : peers.values()){
 			if(peer == exclude)
 				continue;
-			try {
-				this.sendMessage(peer, message);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			RollingBloomFilter known = peer.getKnownInventory();
+			List<InventoryItem> unknown = new ArrayList<InventoryItem>(items.size());
+			for(InventoryItem item : items){
+				if(!known.mightContain(item.getHash256())){
+					unknown.add(item);
+					known.add(item.getHash256());
+				}
+			}
+			if(unknown.isEmpty())
+				continue;
+			if(unknown.size() < items.size()){
+				InventoryMessage filtered = new InventoryMessage();
+				filtered.setItems(unknown);
+				enqueue(peer, new EncodedFrame(filtered));
+				continue;
+			}
+			if(shared == null){
+				try {
+					synchronized(broadcastEncoder){
+						shared = EncodedFrame.encode(inventory, broadcastEncoder, framePool);
+					}
+				} catch (IOException e) {
+					log.error("Unable to encode inventory " + inventory, e);
+					return;
+				}
+			}
+			enqueue(peer, shared.retain());
+		}
+		if(shared != null)
+			shared.release();
+	}
+
+	/**
+	 * A selector and the thread running it. The loop serves the peers
+	 * pinned to it, the first one also accepts connections and runs the
+	 * deferred tasks.
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final boolean first;
+		// Changes requested by other threads, applied before each select
+		private final MpscQueue<ChangeRequest> pendingChanges = new MpscQueue<ChangeRequest>();
+		// Only used from the loop's thread
+		private final FrameEncoder encoder = new FrameEncoder();
+		// Peers pinned to the loop, including the ones still connecting
+		private final AtomicInteger peerCount = new AtomicInteger();
+		// Sizes of the payloads the loop takes from the payload pool
+		private final BufferPool.SizeRecorder payloadSizes = payloadPool.newRecorder();
+
+		EventLoop(int index) throws IOException {
+			this.selector = SelectorProvider.provider().openSelector();
+			this.first = index == 0;
+		}
+
+		/**
+		 * Process requested changes to the sockets and register new interests to
+		 * the selector keys.
+		 *
+		 * @throws ClosedChannelException
+		 */
+		private void processChanges() throws ClosedChannelException{
+			// Process any pending changes, including the ones they cause
+			ChangeRequest change;
+			while ((change = this.pendingChanges.poll()) != null) {
+				switch (change.type) {
+				case ChangeRequest.ADOPT:
+					adopt(change.peer, change.ops);
+					break;
+				case ChangeRequest.RESUME:
+					resume(change.peer);
+					break;
+				case ChangeRequest.DISCONNECT:
+					disconnect(change.peer);
+					break;
+				case ChangeRequest.DECODED:
+					decoded(change.peer, change.message);
+					break;
+				case ChangeRequest.CHANGEOPS:
+					SelectionKey key = change.socket.keyFor(selector);
+					// Disconnected since the frame was queued
+					if(key == null)
+						break;
+					if(key.isValid()){
+						BitcoinReactorPeerInfo peer = peers.get(change.socket);
+						// A paused peer is resumed by its pipeline
+						if(peer != null && peer.readPaused)
+							key.interestOps(change.ops & ~SelectionKey.OP_READ);
+						else
+							key.interestOps(change.ops);
+					}else
+						key.cancel();
+					break;
+				case ChangeRequest.REGISTER:
+					try{
+						change.socket.register(selector, change.ops);
+					}catch(ClosedChannelException cce){
+						log.error("Channel already closed, cleaning up", cce);
+						SelectionKey registered = change.socket.keyFor(this.selector);
+						try{
+							if(registered != null)
+								registered.cancel();
+						}catch(CancelledKeyException cke){
+							log.info("Key already cancelled. This can be ignored. Cleanup will continue.", cke);
+						}
+						// Only connect() queues registrations. It counted the
+						// channel, which is put into the peers once the
+						// connection is finished, so it was never a peer.
+						peerCount.decrementAndGet();
+					}
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Register a connection accepted by the first loop and publish it.
+		 */
+		private void adopt(BitcoinReactorPeerInfo peerInfo, int ops){
+			SocketChannel socketChannel = peerInfo.getSocketChannel();
+			try{
+				// Register the new SocketChannel with our Selector, indicating
+				// we'd like to be notified when there's data waiting to be read
+				socketChannel.register(this.selector, ops);
+			}catch(ClosedChannelException cce){
+				log.debug("Accepted channel closed before it was registered");
+				peerCount.decrementAndGet();
+				return;
+			}
+			peers.put(socketChannel, peerInfo);
+
+			Event e = new Event();
+			e.setOrigin(peerInfo);
+			e.setType(EventType.INCOMING_CONNECTION_TYPE);
+			publishPeerEvent(peerInfo, e);
+		}
+
+		/**
+		 * Publish a block decoded off the loop and read from its peer again.
+		 */
+		private void decoded(BitcoinReactorPeerInfo peerInfo, Message message){
+			// Disconnected while the block was being decoded
+			if(peerInfo.getSocketState() == SocketState.SHUTDOWN)
+				return;
+			if(message == null){
+				disconnect(peerInfo);
+				return;
+			}
+			publishReceivedEvent(message);
+			resume(peerInfo);
+		}
+
+		/**
+		 * Read from a paused peer again, starting with the frames that are
+		 * still in its decoder.
+		 */
+		private void resume(BitcoinReactorPeerInfo peerInfo){
+			if(!peerInfo.readPaused || peerInfo.getSocketState() == SocketState.SHUTDOWN)
+				return;
+			peerInfo.readPaused = false;
+			SelectionKey key = peerInfo.getSocketChannel().keyFor(selector);
+			if(key == null || !key.isValid())
+				return;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			try{
+				// Frames already buffered don't make the socket readable
+				if(!readFrames(peerInfo, peerInfo.getFrameDecoder()))
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}catch(IOException ioe){
+				disconnect(peerInfo);
+			}
+		}
+
+		/**
+		 *
+		 */
+		public void run() {
+			while (true) {
+				try {
+					processChanges();
+					long next = first ? executeTasks() : 0;
+					// Wait for an event one of the registered channels
+					selector.select(next);
+
+					// Iterate over the set of keys for which events are available
+					Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+					while (selectedKeys.hasNext()) {
+						SelectionKey key = (SelectionKey) selectedKeys.next();
+						selectedKeys.remove();
+						BitcoinReactorPeerInfo peerInfo = peers.get(key.channel());
+						if (!key.isValid())
+							continue;
+
+						// Check what event is available and deal with it
+						if (key.isConnectable()) {
+							try {
+								SocketChannel channel =(SocketChannel) key.channel();
+								channel.finishConnect();
+								peerInfo = new BitcoinReactorPeerInfo(channel, this);
+								peers.put(channel, peerInfo);
+							} catch (IOException e) {
+								peerCount.decrementAndGet();
+								publishReceivedEvent(new Event(null, EventType.FAILED_CONNECTION_TYPE, null));
+								// Cancel the channel's registration with our selector
+								key.cancel();
+								continue;
+							}
+							//key.interestOps(SelectionKey.OP_READ); // By default register interest in reading, this will be overwritten by the below listeners
+							Event e = new Event();
+							e.setOrigin(peerInfo);
+							e.setType(EventType.OUTGOING_CONNECTION_TYPE);
+							publishPeerEvent(peerInfo, e);
+						} else if (key.isAcceptable()) {
+							accept(key);
+						} else {
+							if (key.isReadable()) {
+								try{
+									readMessages(key);
+								}catch(IOException ioe){
+									disconnect(peerInfo);
+								}
+							}
+							if (key.isValid() && key.isWritable()) {
+								try{
+									write(key);
+								}catch(IOException ioe){
+									disconnect(peerInfo);
+								}
+							}
+						}
+					}
+				} catch (Throwable e) {
+					log.error("Error while selecting or applying channel changes", e);
+				}
 			}
 		}
 	}
 
 	public class BitcoinReactorPeerInfo extends PeerInfo {
 		private SocketChannel socketChannel = null;
-		private Queue<Event> pendingMessages = new LinkedList<Event>();
-		private int socketState = SocketState.HANDSHAKE;
-		private IncompleteMessage incompleteMessage = null;
+		private MpscQueue<EncodedFrame> pendingMessages = new MpscQueue<EncodedFrame>();
+		// Set while the loop has been asked to write, or is writing
+		private final AtomicBoolean writeRequested = new AtomicBoolean();
+		// Read by the threads queueing frames
+		private volatile int socketState = SocketState.HANDSHAKE;
+		private FrameDecoder frameDecoder = null;
+		private ByteRingBuffer outboundBuffer = null;
+		// Frame being copied into the ring and the views left to copy
+		private EncodedFrame oversizedFrame = null;
+		private ByteBuffer[] oversizedBuffers = null;
+		private RollingBloomFilter knownInventory = null;
+		// The loop the peer is pinned to
+		private final EventLoop loop;
+		// Pipelined mode: decodes the peer's payloads in order
+		private SerialExecutor dispatcher = null;
+		private final AtomicInteger pendingPayloads = new AtomicInteger();
+		// Only touched by the loop
+		private boolean readPaused = false;
+
+		/**
+		 * The ring collecting encoded frames until the socket takes them. It
+		 * is allocated on first use.
+		 *
+		 * @return the outboundBuffer
+		 */
+		public ByteRingBuffer getOutboundBuffer() {
+			if(outboundBuffer == null)
+				outboundBuffer = new ByteRingBuffer(OUTBOUND_BUFFER_SIZE, true);
+			return outboundBuffer;
+		}
+
+		/**
+		 * @return the views of the frame that is being copied into the
+		 * 		outbound ring, with their positions at what is left to copy.
+		 */
+		public ByteBuffer[] getOversizedFrame() {
+			return oversizedBuffers;
+		}
+
+		/**
+		 * Set the frame to be copied into the outbound ring, releasing the
+		 * previous one.
+		 *
+		 * @param frame the frame, or <code>null</code> once it is copied.
+		 * @param buffers the views of the frame to be copied.
+		 */
+		public void setOversizedFrame(EncodedFrame frame, ByteBuffer[] buffers) {
+			if(oversizedFrame != null)
+				oversizedFrame.release();
+			this.oversizedFrame = frame;
+			this.oversizedBuffers = buffers;
+		}
+
+		public boolean hasOversizedFrame(){
+			return oversizedFrame != null;
+		}
+		/**
+		 * The decoder splitting the incoming stream into frames. It is
+		 * allocated on first use.
+		 *
+		 * @return the frameDecoder
+		 */
+		public FrameDecoder getFrameDecoder() {
+			if(frameDecoder == null){
+				frameDecoder = new FrameDecoder(FrameDecoder.DEFAULT_BUFFER_SIZE, true, payloadPool, loop.payloadSizes);
+				frameDecoder.setVerifyChecksums(verifyChecksums);
+			}
+			return frameDecoder;
+		}
+
+		/**
+		 * Return the buffers held by the decoder to the pool.
+		 */
+		void closeFrameDecoder() {
+			if(frameDecoder != null){
+				frameDecoder.close();
+				frameDecoder = null;
+			}
+		}
+
 		/**
-		 * @return the incompleteMessage
+		 * The pipeline decoding the payloads and publishing the events of the
+		 * peer in pipelined mode, allocated on first use.
 		 */
-		public IncompleteMessage getIncompleteMessage() {
-			return incompleteMessage;
+		synchronized SerialExecutor getDispatcher() {
+			if(dispatcher == null)
+				dispatcher = new SerialExecutor(decodeExecutor);
+			return dispatcher;
 		}
 
 		/**
-		 * @param incompleteMessage the incompleteMessage to set
+		 * The inventory the peer is known to have, allocated on first use.
+		 *
+		 * @return the filter of known inventory.
 		 */
-		public void setIncompleteMessage(IncompleteMessage incompleteMessage) {
-			this.incompleteMessage = incompleteMessage;
+		public synchronized RollingBloomFilter getKnownInventory() {
+			if(knownInventory == null)
+				knownInventory = new RollingBloomFilter(KNOWN_INVENTORY_SIZE, 0.001);
+			return knownInventory;
 		}
 
 		/**
@@ -501,21 +1307,32 @@ public class BitcoinReactorNetwork extends BitcoinNetwork implements Runnable {
 		/**
 		 * @return the pendingMessages
 		 */
-		public Queue<Event> getPendingMessages() {
+		public MpscQueue<EncodedFrame> getPendingMessages() {
 			return pendingMessages;
 		}
 
+		/**
+		 * Release all frames that have not been sent.
+		 */
+		void dropPendingFrames() {
+			setOversizedFrame(null, null);
+			EncodedFrame frame;
+			while((frame = pendingMessages.poll()) != null)
+				frame.release();
+		}
+
 		public BitcoinReactorPeerInfo(SocketChannel socketChannel){
+			this(socketChannel, loops[0]);
+		}
+
+		private BitcoinReactorPeerInfo(SocketChannel socketChannel, EventLoop loop){
 			super(socketChannel.socket().getInetAddress(), socketChannel.socket().getPort());
 			this.socketChannel = socketChannel;
+			this.loop = loop;
 		}
 
 		public SocketChannel getSocketChannel(){
 			return socketChannel;
 		}
-
-		public boolean hasIncompleteMessagePending(){
-			return incompleteMessage != null;
-		}
 	}
 }
\ No newline at end of file
@@ -17,9 +17,7 @@
  */
 package net.bitdroid.network;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.IOException;
 
 import net.bitdroid.network.Event.EventType;
 import net.bitdroid.network.messages.BlockMessage;
@@ -28,7 +26,11 @@ import net.bitdroid.network.messages.InventoryMessage;
 import net.bitdroid.network.messages.InventoryMessage.InventoryItem;
 import net.bitdroid.network.messages.Message;
 import net.bitdroid.network.messages.Transaction;
-import net.bitdroid.utils.StringUtils;
+import net.bitdroid.network.relay.GetDataTracker;
+import net.bitdroid.network.relay.InventoryAnnouncer;
+import net.bitdroid.network.relay.RelayCache;
+import net.bitdroid.network.relay.SeenInventorySet;
+import net.bitdroid.utils.Hash256;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,34 +41,116 @@ import org.slf4j.LoggerFactory;
  */
 public class BroadcastListener implements BitcoinEventListener {
 	private static Logger log = LoggerFactory.getLogger(BroadcastListener.class);
+
+	/**
+	 * The events the listener needs to be added for.
+	 */
+	public static final EventType[] SUBSCRIPTIONS = {
+		EventType.GET_DATA_TYPE, EventType.INVENTORY_TYPE, EventType.BLOCK_TYPE, EventType.TRANSACTION_TYPE
+	};
+
 	/**
 	 * 
 	 */
 	public BroadcastListener(BitcoinNetwork network) {
+		this(network, new SeenInventorySet(DEFAULT_SEEN_MEMORY, DEFAULT_SEEN_RETENTION_MILLI, 4));
+	}
+
+	/**
+	 * @param network the network to relay on.
+	 * @param seen remembers which items have been received already, may be
+	 * 		shared with other listeners.
+	 */
+	public BroadcastListener(BitcoinNetwork network, SeenInventorySet seen) {
+		this(network, seen, null);
+	}
+
+	/**
+	 * @param network the network to relay on.
+	 * @param seen remembers which items have been received already, may be
+	 * 		shared with other listeners.
+	 * @param announcer announces blocks right away and trickles out
+	 * 		transactions, if <code>null</code> one is created, added to the
+	 * 		network and queued as its task.
+	 */
+	public BroadcastListener(BitcoinNetwork network, SeenInventorySet seen, InventoryAnnouncer announcer) {
+		this(network, seen, announcer, null);
+	}
+
+	/**
+	 * @param network the network to relay on.
+	 * @param seen remembers which items have been received already, may be
+	 * 		shared with other listeners.
+	 * @param announcer announces blocks right away and trickles out
+	 * 		transactions, if <code>null</code> one is created, added to the
+	 * 		network and queued as its task.
+	 * @param tracker decides which peer to request items from and requests
+	 * 		them again when a peer doesn't deliver, if <code>null</code> one is
+	 * 		created, added to the network and queued as its task.
+	 */
+	public BroadcastListener(BitcoinNetwork network, SeenInventorySet seen, InventoryAnnouncer announcer,
+			GetDataTracker tracker) {
+		this(network, seen, announcer, tracker, new RelayCache(DEFAULT_CACHE_SIZE));
+	}
+
+	/**
+	 * @param network the network to relay on.
+	 * @param seen remembers which items have been received already, may be
+	 * 		shared with other listeners.
+	 * @param announcer announces blocks right away and trickles out
+	 * 		transactions, if <code>null</code> one is created, added to the
+	 * 		network and queued as its task.
+	 * @param tracker decides which peer to request items from and requests
+	 * 		them again when a peer doesn't deliver, if <code>null</code> one is
+	 * 		created, added to the network and queued as its task.
+	 * @param cache keeps the relayed items to answer requests for them.
+	 */
+	public BroadcastListener(BitcoinNetwork network, SeenInventorySet seen, InventoryAnnouncer announcer,
+			GetDataTracker tracker, RelayCache cache) {
 		this.network = network;
+		this.seen = seen;
+		if(announcer == null){
+			announcer = new InventoryAnnouncer(network);
+			network.addListener(announcer, InventoryAnnouncer.SUBSCRIPTIONS);
+			network.queueTask(announcer);
+		}
+		this.announcer = announcer;
+		if(tracker == null){
+			tracker = new GetDataTracker(network);
+			network.addListener(tracker, GetDataTracker.SUBSCRIPTIONS);
+			network.queueTask(tracker);
+		}
+		this.tracker = tracker;
+		this.cache = cache;
 	}
 
-	private BitcoinNetwork network = null;
 	/**
-	 * How many events shall we remember?
+	 * Direct memory used to remember seen items, room for about 230,000.
+	 */
+	public static final long DEFAULT_SEEN_MEMORY = 8 * 1024 * 1024;
+	public static final long DEFAULT_SEEN_RETENTION_MILLI = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Direct memory used to keep relayed items around.
 	 */
-	private int memorySize = 1000;
+	public static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+
+	private BitcoinNetwork network = null;
+	private final SeenInventorySet seen;
+	private final InventoryAnnouncer announcer;
+	private final GetDataTracker tracker;
+	private final RelayCache cache;
 
-	private HashMap<String, Message> memoryContent = new HashMap<String, Message>();
-	private Queue<String> memoryOrder = new LinkedList<String>();
-	private long lastBroadcast = System.currentTimeMillis();
-	private InventoryMessage delayedInventoryMessage = new InventoryMessage();
-	private static long MININMUM_DELAY_MILLI = 15*1000;
 	/* (non-Javadoc)
 	 * @see net.bitdroid.network.BitcoinEventListener#eventReceived(net.bitdroid.network.Event)
 	 */
 	public void eventReceived(Event e) throws Exception {
 		if(e.getType() == EventType.GET_DATA_TYPE){
 			for(InventoryItem ii : ((GetDataMessage)e).getItems()){
-				Message m = memoryContent.get(new String(ii.getHash()));
-				if(m != null){
-					log.debug("Peer {} asked for {}, sending item back", e.getOrigin(), StringUtils.getHexString(ii.getHash()));
-					network.sendMessage(e.getOrigin(), m);
+				EncodedFrame frame = cache.get(ii.getHash256());
+				if(frame != null){
+					log.debug("Peer {} asked for {}, sending item back", e.getOrigin(), ii.getHash256());
+					network.sendFrame(e.getOrigin(), frame);
 				}
 			}
 			return;
@@ -75,12 +159,9 @@ public class BroadcastListener implements BitcoinEventListener {
 		if(e instanceof InventoryMessage){
 			GetDataMessage gdm = new GetDataMessage();
 			for(InventoryItem ii : ((InventoryMessage)e).getItems()){
-				String h = new String(ii.getHash());
-				if(!memoryContent.containsKey(h)){
+				// The tracker remembers the other announcers as fallbacks
+				if(!seen.contains(ii.getHash256()) && tracker.announced(e.getOrigin(), ii))
 					gdm.getItems().add(ii);
-					// Insert in order to avoid duplicate requests.
-					memoryContent.put(h, null);
-				}
 			}
 			if(!gdm.getItems().isEmpty()){
 				log.debug("Asking {} for Inventory items {}", new Object[]{e.getOrigin(), gdm.getItems()});
@@ -89,34 +170,39 @@ public class BroadcastListener implements BitcoinEventListener {
 			return;
 		}
 
-		byte[] hash = null;
+		Hash256 hash = null;
 		int type = 0;
 		if(e instanceof BlockMessage){
-			hash = ((BlockMessage)e).getHash();
+			BlockMessage block = (BlockMessage)e;
+			// Don't pass on blocks whose transactions don't match their
+			// header. The reactor gives large blocks its decode pool, which
+			// hashes the tree as well.
+			if(!block.verifyMerkleRoot()){
+				log.warn("Dropping block from {}, merkle root does not match its transactions", e.getOrigin());
+				return;
+			}
+			hash = block.getHash256();
 			type = InventoryMessage.MSG_BLOCK;
 		}else if(e instanceof Transaction){
-			hash = ((Transaction)e).getHash();
+			hash = ((Transaction)e).getHash256();
 			type = InventoryMessage.MSG_TX;
 		}
 		if(hash == null)
 			return;
-		StringUtils.reverse(hash);
-		log.debug("Got Inventory item {} from {}" , new Object[]{StringUtils.getHexString(hash), e.getOrigin()});
+		log.debug("Got Inventory item {} from {}" , new Object[]{hash, e.getOrigin()});
 		
-		if(!memoryContent.containsKey(new String(hash))){
-			memoryOrder.add(new String(hash));
-			memoryContent.put(new String(hash), (Message)e);
-
-			// Remove an element if we are bigger than the maximum size.
-			if(memoryOrder.size() > memorySize)
-				memoryContent.remove(memoryOrder.poll());
-			// now that we have the Inventory Item for sure, broadcast an announcement:
-			delayedInventoryMessage.getItems().add(delayedInventoryMessage.new InventoryItem(type, hash));
-			if(System.currentTimeMillis() > lastBroadcast + MININMUM_DELAY_MILLI){
-				network.broadcast(delayedInventoryMessage, e.getOrigin());
-				lastBroadcast = System.currentTimeMillis();
-				delayedInventoryMessage = new InventoryMessage();
-			}
+		boolean fresh = seen.add(hash);
+		tracker.received(hash);
+		// Only answers requests, an item that can't be kept is still relayed
+		try{
+			cache.put(hash, (Message)e);
+		}catch(IOException ioe){
+			log.warn("Unable to cache " + hash, ioe);
+		}
+		if(fresh){
+			// now that we have the Inventory Item for sure, announce it:
+			InventoryMessage inv = new InventoryMessage();
+			announcer.announce(inv.new InventoryItem(type, hash), e.getOrigin());
 		}
 	}
 
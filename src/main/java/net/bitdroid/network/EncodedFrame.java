@@ -0,0 +1,205 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.network.wire.BufferPool;
+import net.bitdroid.network.wire.PooledBuffer;
+
+/**
+ * A message together with its frame on the wire, so that the same message can
+ * be queued for any number of peers while being serialized and checksummed
+ * only once.
+ *
+ * The frame is encoded with a checksum, peers still in the handshake get a
+ * view skipping it. Once encoded the frame is never modified, every peer
+ * writes from its own read-only views, which keep their own positions. A
+ * frame may also be left unencoded, in which case the writer is free to
+ * encode the message straight into its output instead.
+ *
+ * Frames are reference counted: every queue holding the frame owns a
+ * reference and releases it once the frame has been written or dropped.
+ * When the last reference is gone the buffer goes back to its pool.
+ *
+ * Frames that have been encoded elsewhere, like the ones kept by the relay
+ * cache, can be wrapped without their message. No sent event is published
+ * for them.
+ *
+ * @author cdecker
+ *
+ */
+public class EncodedFrame {
+	private final Message message;
+	private PooledBuffer pooled = null;
+	private ByteBuffer frame = null;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 * Create a frame for the message, which is only encoded when
+	 * {@link #encode(FrameEncoder, BufferPool)} is called.
+	 *
+	 * @param message the message to be sent.
+	 */
+	public EncodedFrame(Message message){
+		this.message = message;
+	}
+
+	/**
+	 * Wrap a frame that has been encoded already, without its message.
+	 *
+	 * @param encoded buffer holding a complete frame including the checksum
+	 * 		between its position and limit. The frame takes over the reference
+	 * 		of the caller, the buffer must not be changed anymore.
+	 */
+	public EncodedFrame(PooledBuffer encoded){
+		this.message = null;
+		this.pooled = encoded;
+		this.frame = encoded.getBuffer().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Create and encode a frame for the message.
+	 *
+	 * @param message the message to be sent.
+	 * @param encoder the encoder to use, it is not retained.
+	 * @param pool pool providing the frame's buffer.
+	 * @return the encoded frame, holding a single reference.
+	 * @throws IOException if the message cannot be serialized.
+	 */
+	public static EncodedFrame encode(Message message, FrameEncoder encoder, BufferPool pool) throws IOException {
+		EncodedFrame frame = new EncodedFrame(message);
+		frame.encode(encoder, pool);
+		return frame;
+	}
+
+	/**
+	 * Encode the message, if that has not happened yet.
+	 *
+	 * @param encoder the encoder to use, it is not retained.
+	 * @param pool pool providing the frame's buffer.
+	 * @throws IOException if the message cannot be serialized.
+	 */
+	public synchronized void encode(FrameEncoder encoder, BufferPool pool) throws IOException {
+		if(frame != null)
+			return;
+		int size = FrameEncoder.getFrameSize(message, true);
+		PooledBuffer buffer = pool.acquire(size);
+		try{
+			encoder.encode(message, true, buffer.getBuffer());
+		}catch(IOException ioe){
+			buffer.release();
+			throw ioe;
+		}
+		buffer.getBuffer().flip();
+		pooled = buffer;
+		frame = buffer.getBuffer().asReadOnlyBuffer();
+	}
+
+	public synchronized boolean isEncoded(){
+		return frame != null;
+	}
+
+	/**
+	 * @return the message this frame carries, or <code>null</code> if it has
+	 * 		been wrapped without it.
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @param checksum whether the peer expects a checksum.
+	 * @return size of the frame on the wire.
+	 * @throws IOException if the message cannot be serialized.
+	 */
+	public synchronized int getSize(boolean checksum) throws IOException {
+		if(frame == null)
+			return FrameEncoder.getFrameSize(message, checksum);
+		return frame.remaining() - (checksum ? 0 : FrameEncoder.CHECKSUM_SIZE);
+	}
+
+	/**
+	 * Views of the encoded frame for a single peer. The views are read-only
+	 * and independent of each other, so every peer can consume them at its
+	 * own pace. They must not be used after the reference of the peer has been
+	 * released.
+	 *
+	 * @param checksum whether the peer expects a checksum.
+	 * @return the buffers making up the frame, in order.
+	 * @throws IllegalStateException if the frame has not been encoded.
+	 */
+	public synchronized ByteBuffer[] getBuffers(boolean checksum){
+		if(frame == null)
+			throw new IllegalStateException("Frame has not been encoded.");
+		if(checksum)
+			return new ByteBuffer[]{frame.duplicate()};
+		// Header without the checksum, followed by the payload
+		ByteBuffer header = frame.duplicate();
+		header.limit(header.position() + FrameEncoder.HEADER_SIZE);
+		ByteBuffer payload = frame.duplicate();
+		payload.position(payload.position() + FrameEncoder.HEADER_SIZE + FrameEncoder.CHECKSUM_SIZE);
+		return new ByteBuffer[]{header, payload};
+	}
+
+	/**
+	 * Add a reference, one for each queue the frame is put in.
+	 *
+	 * @return this frame.
+	 * @throws IllegalStateException if the frame has already been released.
+	 */
+	public EncodedFrame retain(){
+		while(true){
+			int count = references.get();
+			if(count <= 0)
+				throw new IllegalStateException("Frame has already been released.");
+			if(references.compareAndSet(count, count + 1))
+				return this;
+		}
+	}
+
+	/**
+	 * Drop a reference, freeing the buffer once the last one is gone.
+	 *
+	 * @throws IllegalStateException if the frame has already been released.
+	 */
+	public void release(){
+		int count = references.decrementAndGet();
+		if(count < 0)
+			throw new IllegalStateException("Frame has already been released.");
+		if(count == 0){
+			synchronized(this){
+				if(pooled != null){
+					pooled.release();
+					pooled = null;
+				}
+				frame = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of outstanding references.
+	 */
+	public int getReferenceCount(){
+		return references.get();
+	}
+}
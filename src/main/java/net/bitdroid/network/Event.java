@@ -31,6 +31,7 @@ public class Event {
 
 	/**
 	 * Should this be false the reactor will stop notifying event listeners.
+	 * Reset whenever the event is published.
 	 */
 	private boolean propagate = true;
 	private EventType type;
@@ -52,6 +53,7 @@ public class Event {
 		PING_TYPE,
 		TRANSACTION_TYPE,
 		UNKNOWN_TYPE,
+		SKIPPED_TYPE, // A frame that was dropped without being decoded.
 		PART_TYPE // Used to indicate that the message is not a standalone message.
 	};
 
@@ -0,0 +1,335 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+import net.bitdroid.network.wire.BufferPool;
+import net.bitdroid.network.wire.PooledBuffer;
+import net.bitdroid.utils.Sha256d;
+
+/**
+ * Splits the byte stream of a peer into frames.
+ *
+ * Bytes are read into a single reusable buffer and as many complete frames
+ * as are in the buffer can be extracted with {@link #next(boolean)}. Short
+ * reads are no problem, an incomplete header or payload simply stays in the
+ * buffer until the rest arrives. Only payloads that are larger than the
+ * buffer are collected in a separate buffer taken from a {@link BufferPool},
+ * and the socket is read directly into it until the payload is complete. The
+ * spill buffer grows with the bytes that actually arrive, so a bogus size in
+ * a header does not make us allocate the full amount up front.
+ *
+ * Checksums are verified against the payload as soon as a frame is complete,
+ * unless disabled with {@link #setVerifyChecksums(boolean)}.
+ *
+ * A decoder belongs to a single peer and is not thread-safe.
+ *
+ * @author cdecker
+ *
+ */
+public class FrameDecoder {
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Upper limit for the size of a payload, anything bigger is considered a
+	 * misbehaving peer.
+	 */
+	public static final int MAX_PAYLOAD_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * Spilled payloads up to this size are collected in a single buffer of
+	 * the pool's large class, which is kept at least this big.
+	 */
+	public static final int POOLED_SPILL_SIZE = 1024 * 1024;
+
+	private final ByteBuffer buffer;
+	private final BufferPool pool;
+	private final BufferPool.SizeRecorder spillSizes;
+	// Payload too big for the read buffer
+	private PooledBuffer spill = null;
+	// Spilled payload handed out by next(), released on the next call
+	private PooledBuffer spilledPayload = null;
+
+	private boolean haveHeader = false;
+	private long commandLow;
+	private long commandHigh;
+	private String command;
+	private int payloadSize;
+	private boolean hasChecksum;
+	private int checksum;
+	private boolean verifyChecksums = true;
+	private ByteBuffer payload;
+
+	public FrameDecoder(){
+		this(DEFAULT_BUFFER_SIZE, true);
+	}
+
+	/**
+	 * @param bufferSize size of the reusable read buffer.
+	 * @param direct whether to allocate the read buffer outside of the heap.
+	 */
+	public FrameDecoder(int bufferSize, boolean direct){
+		this(bufferSize, direct, new BufferPool(direct));
+	}
+
+	/**
+	 * @param bufferSize size of the reusable read buffer.
+	 * @param direct whether to allocate the read buffer outside of the heap.
+	 * @param pool pool providing the buffers for oversized payloads, usually
+	 * 		shared by all peers.
+	 */
+	public FrameDecoder(int bufferSize, boolean direct, BufferPool pool){
+		this(bufferSize, direct, pool, pool.newRecorder());
+	}
+
+	/**
+	 * @param bufferSize size of the reusable read buffer.
+	 * @param direct whether to allocate the read buffer outside of the heap.
+	 * @param pool pool providing the buffers for oversized payloads, usually
+	 * 		shared by all peers.
+	 * @param spillSizes records the sizes of the spilled payloads for the
+	 * 		pool, may be shared by the decoders used by the same thread.
+	 */
+	public FrameDecoder(int bufferSize, boolean direct, BufferPool pool, BufferPool.SizeRecorder spillSizes){
+		this.pool = pool;
+		this.spillSizes = spillSizes;
+		pool.requireLargeSize(Math.max(POOLED_SPILL_SIZE, 2 * bufferSize));
+		buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		// The buffer is always kept ready for reading
+		buffer.flip();
+	}
+
+	/**
+	 * Read whatever the channel has to offer.
+	 *
+	 * @param channel the channel to read from.
+	 * @return the number of bytes read, possibly 0, or -1 if the channel has
+	 * 		reached the end of the stream.
+	 * @throws IOException if the read fails.
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		if(spill != null){
+			ByteBuffer target = spill.getBuffer();
+			if(!target.hasRemaining() && target.position() < payloadSize)
+				target = growSpill();
+			if(target.hasRemaining())
+				return channel.read(target);
+		}
+		buffer.compact();
+		try{
+			return channel.read(buffer);
+		}finally{
+			buffer.flip();
+		}
+	}
+
+	/**
+	 * Try to extract the next complete frame. If it succeeds, the frame can
+	 * be accessed through the getters until the next call to {@link #next(boolean)}
+	 * or {@link #read(ReadableByteChannel)}.
+	 *
+	 * @param checksum whether the next frame is expected to carry a checksum.
+	 * @return <code>true</code> if a complete frame is available.
+	 * @throws IOException if the stream is out of sync or the frame is too big.
+	 */
+	public boolean next(boolean checksum) throws IOException {
+		releasePayload();
+		if(spill != null){
+			ByteBuffer target = spill.getBuffer();
+			if(target.position() < payloadSize)
+				return false;
+			target.flip();
+			payload = target;
+			spilledPayload = spill;
+			spill = null;
+			haveHeader = false;
+			verifyChecksum();
+			return true;
+		}
+
+		if(!haveHeader && !readHeader(checksum))
+			return false;
+
+		if(buffer.remaining() >= payloadSize){
+			// The frame is complete, hand out a view of the read buffer
+			int start = buffer.position();
+			ByteBuffer view = buffer.duplicate();
+			view.limit(start + payloadSize);
+			payload = view.slice().order(ByteOrder.LITTLE_ENDIAN);
+			buffer.position(start + payloadSize);
+			haveHeader = false;
+			verifyChecksum();
+			return true;
+		}else if(payloadSize > buffer.capacity()){
+			// This will never fit, collect it on the side. Only the sizes of
+			// the payloads that reach the pool shape its classes.
+			spillSizes.record(payloadSize);
+			int initial = Math.min(payloadSize, Math.max(buffer.remaining(), pool.getClassSize(BufferPool.LARGE)));
+			spill = pool.acquire(initial);
+			spill.getBuffer().put(buffer);
+		}
+		return false;
+	}
+
+	private void verifyChecksum() throws IOException {
+		if(verifyChecksums && hasChecksum && Sha256d.checksum(payload) != checksum)
+			throw new IOException("Checksum mismatch for " + getCommand() + " message of " + payloadSize + " bytes.");
+	}
+
+	/**
+	 * Double the spill buffer, up to the announced payload size.
+	 */
+	private ByteBuffer growSpill(){
+		ByteBuffer old = spill.getBuffer();
+		int size = (int)Math.min(payloadSize, 2L * old.capacity());
+		PooledBuffer bigger = pool.acquire(size);
+		old.flip();
+		bigger.getBuffer().put(old);
+		spill.release();
+		spill = bigger;
+		return bigger.getBuffer();
+	}
+
+	/**
+	 * Give the buffer of the current payload back to the pool. This happens
+	 * automatically on the next call to {@link #next(boolean)}, but can be
+	 * done earlier once the message has been read. Whoever wants to hold on to
+	 * a spilled payload has to retain it through {@link #getPooledPayload()}.
+	 */
+	public void releasePayload(){
+		payload = null;
+		if(spilledPayload != null){
+			spilledPayload.release();
+			spilledPayload = null;
+		}
+	}
+
+	/**
+	 * Give all buffers back to the pool, the decoder must not be used anymore.
+	 */
+	public void close(){
+		releasePayload();
+		if(spill != null){
+			spill.release();
+			spill = null;
+		}
+	}
+
+	private boolean readHeader(boolean checksum) throws IOException {
+		int headerSize = FrameEncoder.HEADER_SIZE + (checksum ? FrameEncoder.CHECKSUM_SIZE : 0);
+		if(buffer.remaining() < headerSize)
+			return false;
+		int start = buffer.position();
+		byte[] magic = ProtocolVersion.getMagic();
+		for(int i=0; i<magic.length; i++)
+			if(buffer.get(start + i) != magic[i])
+				throw new IOException("Stream is out of sync. Probably the other client is missbehaving?");
+		// The command is kept packed, the String is only built on demand
+		commandLow = buffer.getLong(start + magic.length);
+		commandHigh = buffer.getInt(start + magic.length + 8) & 0xFFFFFFFFL;
+		command = null;
+		buffer.position(start + magic.length + FrameEncoder.COMMAND_SIZE);
+		payloadSize = buffer.getInt();
+		if(payloadSize < 0 || payloadSize > MAX_PAYLOAD_SIZE)
+			throw new IOException("Peer announced a payload of " + (payloadSize & 0xFFFFFFFFL) + " bytes.");
+		hasChecksum = checksum;
+		if(checksum)
+			this.checksum = buffer.getInt();
+		haveHeader = true;
+		return true;
+	}
+
+	/**
+	 * @return the command of the current frame.
+	 */
+	public String getCommand() {
+		if(command == null)
+			command = MessageCodecRegistry.toCommand(commandLow, commandHigh);
+		return command;
+	}
+
+	/**
+	 * @return the first 8 command bytes of the current frame, little endian.
+	 */
+	public long getCommandLow() {
+		return commandLow;
+	}
+
+	/**
+	 * @return the last 4 command bytes of the current frame, little endian.
+	 */
+	public long getCommandHigh() {
+		return commandHigh;
+	}
+
+	/**
+	 * @return the payload size of the current frame.
+	 */
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+	/**
+	 * @return whether the current frame carried a checksum.
+	 */
+	public boolean hasChecksum() {
+		return hasChecksum;
+	}
+
+	/**
+	 * @return the checksum of the current frame, as little endian int.
+	 */
+	public int getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * The payload of the current frame. It may be a view of the read buffer,
+	 * so it must be consumed before the decoder is used again.
+	 *
+	 * @return the payload, in little endian order.
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	public boolean isVerifyChecksums() {
+		return verifyChecksums;
+	}
+
+	/**
+	 * @param verifyChecksums whether to check the checksums of incoming
+	 * 		frames, defaults to <code>true</code>.
+	 */
+	public void setVerifyChecksums(boolean verifyChecksums) {
+		this.verifyChecksums = verifyChecksums;
+	}
+
+	/**
+	 * @return the pooled buffer backing the current payload, or
+	 * 		<code>null</code> if the payload is a view of the read buffer.
+	 */
+	public PooledBuffer getPooledPayload() {
+		return spilledPayload;
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.network.wire.LittleEndianBufferWriter;
+import net.bitdroid.utils.Sha256d;
+
+/**
+ * Encodes messages into complete frames (magic, command, length, optional
+ * checksum and payload) in a single pass.
+ *
+ * The size of the payload is known upfront through
+ * {@link Message#getSerializedSize()}, so the header is written first, the
+ * payload is serialized right behind it and the checksum is back-filled once
+ * the payload is complete. Frames are encoded into a buffer owned by the
+ * encoder, which is reused for every frame, so encoding does not allocate.
+ *
+ * An encoder is not thread-safe, each writing thread needs its own.
+ *
+ * @author cdecker
+ *
+ */
+public class FrameEncoder {
+	/**
+	 * Magic, command and length.
+	 */
+	public static final int HEADER_SIZE = 4 + 12 + 4;
+	public static final int CHECKSUM_SIZE = 4;
+	public static final int COMMAND_SIZE = 12;
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private final LittleEndianBufferWriter writer = new LittleEndianBufferWriter();
+	private final Map<String, byte[]> commands = new HashMap<String, byte[]>();
+
+	/**
+	 * Size of the complete frame for the message.
+	 *
+	 * @param message the message to be framed.
+	 * @param checksum whether the frame carries a checksum.
+	 * @return number of bytes of the frame including the header.
+	 * @throws IOException if the message cannot be serialized.
+	 */
+	public static int getFrameSize(Message message, boolean checksum) throws IOException {
+		return HEADER_SIZE + (checksum ? CHECKSUM_SIZE : 0) + message.getSerializedSize();
+	}
+
+	/**
+	 * Encode the message into the encoder's own buffer.
+	 *
+	 * The returned buffer is only valid until the next call to the encoder.
+	 *
+	 * @param message the message to be framed.
+	 * @param checksum whether the frame carries a checksum.
+	 * @return buffer holding exactly the frame, ready to be written.
+	 * @throws IOException if the message cannot be serialized.
+	 */
+	public ByteBuffer encode(Message message, boolean checksum) throws IOException {
+		int size = getFrameSize(message, checksum);
+		if(buffer.capacity() < size){
+			int capacity = buffer.capacity();
+			while(capacity < size)
+				capacity <<= 1;
+			buffer = ByteBuffer.allocate(capacity);
+		}
+		buffer.clear();
+		encode(message, checksum, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encode the message into the given buffer, starting at its position.
+	 *
+	 * @param message the message to be framed.
+	 * @param checksum whether the frame carries a checksum.
+	 * @param target buffer with at least {@link #getFrameSize(Message, boolean)}
+	 * 		bytes remaining. Its position is advanced past the frame.
+	 * @throws IOException if the message cannot be serialized or does not fit.
+	 */
+	public void encode(Message message, boolean checksum, ByteBuffer target) throws IOException {
+		int start = target.position();
+		ByteOrder order = target.order();
+		writer.setBuffer(target);
+		try{
+			writer.write(ProtocolVersion.getMagic());
+			writer.write(getCommandBytes(message.getCommand()));
+			int lengthPosition = target.position();
+			writer.writeInt(0);
+			int checksumPosition = target.position();
+			if(checksum)
+				writer.writeInt(0);
+			int payloadPosition = target.position();
+			message.writePayload(writer);
+			int size = target.position() - payloadPosition;
+
+			// Back-fill length and checksum now that we have the payload
+			target.putInt(lengthPosition, size);
+			if(checksum){
+				ByteBuffer payload = target.duplicate();
+				payload.position(payloadPosition);
+				payload.limit(payloadPosition + size);
+				target.putInt(checksumPosition, Sha256d.checksum(payload));
+			}
+		}catch(IOException ioe){
+			target.position(start);
+			throw ioe;
+		}finally{
+			writer.setBuffer(null);
+			target.order(order);
+		}
+	}
+
+	/**
+	 * Get the zero padded 12 byte representation of the command. They are
+	 * encoded once and cached.
+	 */
+	private byte[] getCommandBytes(String command) throws IOException {
+		byte[] b = commands.get(command);
+		if(b == null){
+			byte[] c = command.getBytes("US-ASCII");
+			if(c.length > COMMAND_SIZE)
+				throw new IOException("Command " + command + " is longer than " + COMMAND_SIZE + " bytes.");
+			b = new byte[COMMAND_SIZE];
+			System.arraycopy(c, 0, b, 0, c.length);
+			commands.put(command, b);
+		}
+		return b;
+	}
+}
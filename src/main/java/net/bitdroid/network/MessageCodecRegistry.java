@@ -0,0 +1,296 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import java.nio.charset.Charset;
+
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.messages.AddrMessage;
+import net.bitdroid.network.messages.BlockMessage;
+import net.bitdroid.network.messages.GetAddrMessage;
+import net.bitdroid.network.messages.GetDataMessage;
+import net.bitdroid.network.messages.InventoryMessage;
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.network.messages.PingMessage;
+import net.bitdroid.network.messages.Transaction;
+import net.bitdroid.network.messages.UnknownMessage;
+import net.bitdroid.network.messages.VerackMessage;
+import net.bitdroid.network.messages.VersionMessage;
+
+/**
+ * Maps protocol commands to the factories of their message types.
+ *
+ * The 12 command bytes of a frame header are packed into two longs, the
+ * first 8 bytes and the last 4 bytes, both little endian. Lookups use these
+ * directly, so dispatching a frame needs neither a String nor a chain of
+ * comparisons. Commands are matched exactly, as they appear on the wire.
+ *
+ * The event type of each command is known without creating a message, so
+ * frames nobody is interested in can be dropped by looking at the header.
+ *
+ * Lookups are lock-free and may happen from any thread. Registrations are
+ * expected to be rare, each one copies the table.
+ *
+ * @author cdecker
+ *
+ */
+public class MessageCodecRegistry {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private volatile Table table = new Table(16);
+
+	/**
+	 * Create a registry with the commands this library has message types for:
+	 * version, verack, inv, addr, tx, getdata, getaddr, block and ping. These
+	 * are the same commands that were decoded before the registry existed.
+	 *
+	 * Other commands, such as headers, getheaders, pong, sendheaders or
+	 * feefilter, have no message type yet and are still read as
+	 * {@link UnknownMessage}. Support for one of them is added by registering
+	 * a factory for it.
+	 *
+	 * @return a registry knowing all message types of this library.
+	 */
+	public static MessageCodecRegistry createDefault(){
+		MessageCodecRegistry registry = new MessageCodecRegistry();
+		registry.register("version", new MessageFactory(){
+			public Message create() { return new VersionMessage(); }
+		});
+		registry.register("verack", new MessageFactory(){
+			public Message create() { return new VerackMessage(); }
+		});
+		registry.register("inv", new MessageFactory(){
+			public Message create() { return new InventoryMessage(); }
+		});
+		registry.register("addr", new MessageFactory(){
+			public Message create() { return new AddrMessage(); }
+		});
+		registry.register("tx", new MessageFactory(){
+			public Message create() { return new Transaction(); }
+		});
+		registry.register("getdata", new MessageFactory(){
+			public Message create() { return new GetDataMessage(); }
+		});
+		registry.register("getaddr", new MessageFactory(){
+			public Message create() { return new GetAddrMessage(); }
+		});
+		registry.register("block", new MessageFactory(){
+			public Message create() { return new BlockMessage(); }
+		});
+		registry.register("ping", new MessageFactory(){
+			public Message create() { return new PingMessage(); }
+		});
+		return registry;
+	}
+
+	/**
+	 * Register the factory for a command, replacing any previous one.
+	 *
+	 * @param command the command as used on the wire, at most 12 characters.
+	 * @param factory the factory creating the messages.
+	 */
+	public synchronized void register(String command, MessageFactory factory){
+		byte[] b = toBytes(command);
+		long low = pack(b, 0, 8);
+		long high = pack(b, 8, 4);
+		Table current = table;
+		int size = current.size + (current.get(low, high) == null ? 1 : 0);
+		// Keep the load factor at or below one half
+		int capacity = current.keysLow.length;
+		while(size * 2 > capacity)
+			capacity <<= 1;
+		Table next = new Table(capacity);
+		for(int i=0; i<current.factories.length; i++)
+			if(current.factories[i] != null)
+				next.put(current.keysLow[i], current.keysHigh[i], current.factories[i], current.types[i]);
+		// Messages of a class always have the same type, one sample is enough
+		next.put(low, high, factory, factory.create().getType());
+		table = next;
+	}
+
+	/**
+	 * Remove the factory of a command, so it is read as {@link UnknownMessage}.
+	 *
+	 * @param command the command as used on the wire.
+	 */
+	public synchronized void unregister(String command){
+		byte[] b = toBytes(command);
+		long low = pack(b, 0, 8);
+		long high = pack(b, 8, 4);
+		Table current = table;
+		Table next = new Table(current.keysLow.length);
+		for(int i=0; i<current.factories.length; i++)
+			if(current.factories[i] != null && (current.keysLow[i] != low || current.keysHigh[i] != high))
+				next.put(current.keysLow[i], current.keysHigh[i], current.factories[i], current.types[i]);
+		table = next;
+	}
+
+	/**
+	 * Create the message for the packed command of a frame header.
+	 *
+	 * @param low the first 8 command bytes, little endian.
+	 * @param high the last 4 command bytes, little endian.
+	 * @return a new instance of the registered type, or an
+	 * 		{@link UnknownMessage} if there is none.
+	 */
+	public Message create(long low, long high){
+		MessageFactory factory = table.get(low, high);
+		if(factory != null)
+			return factory.create();
+		UnknownMessage message = new UnknownMessage();
+		message.setCommand(toCommand(low, high));
+		return message;
+	}
+
+	/**
+	 * Get the type of the messages created for the packed command of a frame
+	 * header, without creating one.
+	 *
+	 * @param low the first 8 command bytes, little endian.
+	 * @param high the last 4 command bytes, little endian.
+	 * @return the type, {@link EventType#UNKNOWN_TYPE} if no factory is
+	 * 		registered for the command.
+	 */
+	public EventType getType(long low, long high){
+		Table current = table;
+		int i = current.find(low, high);
+		return i < 0 ? EventType.UNKNOWN_TYPE : current.types[i];
+	}
+
+	/**
+	 * Create the message for a command.
+	 *
+	 * @param command the command as used on the wire.
+	 * @return a new instance of the registered type, or an
+	 * 		{@link UnknownMessage} if there is none.
+	 */
+	public Message create(String command){
+		byte[] b = command.getBytes(ASCII);
+		if(b.length > FrameEncoder.COMMAND_SIZE){
+			UnknownMessage message = new UnknownMessage();
+			message.setCommand(command);
+			return message;
+		}
+		return create(pack(b, 0, 8), pack(b, 8, 4));
+	}
+
+	/**
+	 * @return whether a factory is registered for the command.
+	 */
+	public boolean isRegistered(String command){
+		byte[] b = toBytes(command);
+		return table.get(pack(b, 0, 8), pack(b, 8, 4)) != null;
+	}
+
+	private static byte[] toBytes(String command){
+		byte[] b = command.getBytes(ASCII);
+		if(b.length > FrameEncoder.COMMAND_SIZE)
+			throw new IllegalArgumentException("Command is longer than " + FrameEncoder.COMMAND_SIZE + " bytes: " + command);
+		return b;
+	}
+
+	/**
+	 * Pack up to <code>length</code> bytes starting at <code>offset</code>
+	 * into a little endian long, missing bytes count as zero padding.
+	 */
+	private static long pack(byte[] b, int offset, int length){
+		long v = 0;
+		for(int i=0; i<length; i++)
+			if(offset + i < b.length)
+				v |= (b[offset + i] & 0xFFL) << (8 * i);
+		return v;
+	}
+
+	/**
+	 * Turn a packed command back into a String, stopping at the first zero.
+	 *
+	 * @param low the first 8 command bytes, little endian.
+	 * @param high the last 4 command bytes, little endian.
+	 * @return the command.
+	 */
+	public static String toCommand(long low, long high){
+		byte[] b = new byte[FrameEncoder.COMMAND_SIZE];
+		int length = 0;
+		while(length < FrameEncoder.COMMAND_SIZE){
+			long v = length < 8 ? low >>> (8 * length) : high >>> (8 * (length - 8));
+			byte c = (byte)v;
+			if(c == 0)
+				break;
+			b[length++] = c;
+		}
+		return new String(b, 0, length, ASCII);
+	}
+
+	/**
+	 * Open addressing table with linear probing, never modified once it has
+	 * been published.
+	 */
+	private static class Table {
+		final long[] keysLow;
+		final long[] keysHigh;
+		final MessageFactory[] factories;
+		final EventType[] types;
+		final int mask;
+		int size = 0;
+
+		Table(int capacity){
+			keysLow = new long[capacity];
+			keysHigh = new long[capacity];
+			factories = new MessageFactory[capacity];
+			types = new EventType[capacity];
+			mask = capacity - 1;
+		}
+
+		private int slot(long low, long high){
+			long h = low * 0x9E3779B97F4A7C15L ^ high * 0xC2B2AE3D27D4EB4FL;
+			return (int)(h ^ (h >>> 32)) & mask;
+		}
+
+		int find(long low, long high){
+			int i = slot(low, high);
+			while(factories[i] != null){
+				if(keysLow[i] == low && keysHigh[i] == high)
+					return i;
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		MessageFactory get(long low, long high){
+			int i = find(low, high);
+			return i < 0 ? null : factories[i];
+		}
+
+		void put(long low, long high, MessageFactory factory, EventType type){
+			int i = slot(low, high);
+			while(factories[i] != null){
+				if(keysLow[i] == low && keysHigh[i] == high){
+					factories[i] = factory;
+					types[i] = type;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			keysLow[i] = low;
+			keysHigh[i] = high;
+			factories[i] = factory;
+			types[i] = type;
+			size++;
+		}
+	}
+}
@@ -39,6 +39,14 @@ import org.slf4j.LoggerFactory;
  *
  */
 public class PoolMaintainerListener extends RepeatingDeferredTask implements BitcoinEventListener {
+	/**
+	 * The events the maintainer needs to be added for.
+	 */
+	public static final EventType[] SUBSCRIPTIONS = {
+		EventType.INCOMING_CONNECTION_TYPE, EventType.OUTGOING_CONNECTION_TYPE,
+		EventType.DISCONNECTED_TYPE, EventType.VERACK_TYPE, EventType.ADDR_TYPE
+	};
+
 	private Set<PeerAddress> addresses = new LinkedHashSet<PeerAddress>();
 	private Set<PeerAddress> connectedAddresses = new LinkedHashSet<PeerAddress>();
 	private int connected = 0;
@@ -94,7 +102,7 @@ public class PoolMaintainerListener extends RepeatingDeferredTask implements Bit
 	 * @see net.bitdroid.network.tasks.DeferredTask#execute()
 	 */
 	@Override
-	public void execute() {
+	public synchronized void execute() {
 		if(connected < maxConnected && !connectedAddresses.containsAll(addresses) && lastAttempt < System.currentTimeMillis() - 500){
 			lastAttempt = System.currentTimeMillis();
 			// Attempt a new connection
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import net.bitdroid.network.messages.Message;
+
+/**
+ * Tells that a message has been handed to the socket of a peer. A broadcast
+ * message is shared by all its destinations and its origin is the peer it
+ * came from, so each destination gets an event of its own, with the
+ * destination as origin.
+ *
+ * @author cdecker
+ *
+ */
+public class SentMessageEvent extends Event {
+	private final Message message;
+
+	/**
+	 * @param destination the peer the message was sent to.
+	 * @param message the message, possibly shared with other destinations.
+	 */
+	public SentMessageEvent(PeerInfo destination, Message message){
+		super(destination, message.getType());
+		this.message = message;
+	}
+
+	/**
+	 * @return the message that was sent, must not be changed.
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the peer the message was sent to, same as the origin.
+	 */
+	public PeerInfo getDestination() {
+		return getOrigin();
+	}
+
+	public String toString(){
+		return "SentMessageEvent[" + message + " to " + getOrigin() + "]";
+	}
+}
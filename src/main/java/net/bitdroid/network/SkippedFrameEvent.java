@@ -0,0 +1,70 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+/**
+ * Tells about a frame that was dropped without being decoded, since no
+ * listener subscribed to its type. Only the header is known, which is
+ * enough to account for the traffic.
+ *
+ * @author cdecker
+ *
+ */
+public class SkippedFrameEvent extends Event {
+	private final String command;
+	private final EventType messageType;
+	private final int payloadSize;
+
+	/**
+	 * @param origin the peer that sent the frame.
+	 * @param command the command of the frame.
+	 * @param messageType the type the message would have had.
+	 * @param payloadSize the size of the dropped payload.
+	 */
+	public SkippedFrameEvent(PeerInfo origin, String command, EventType messageType, int payloadSize){
+		super(origin, EventType.SKIPPED_TYPE);
+		this.command = command;
+		this.messageType = messageType;
+		this.payloadSize = payloadSize;
+	}
+
+	/**
+	 * @return the command of the frame.
+	 */
+	public String getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return the type the message would have had.
+	 */
+	public EventType getMessageType() {
+		return messageType;
+	}
+
+	/**
+	 * @return the size of the dropped payload.
+	 */
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+	public String toString(){
+		return "SkippedFrameEvent[" + command + ", " + payloadSize + " bytes]";
+	}
+}
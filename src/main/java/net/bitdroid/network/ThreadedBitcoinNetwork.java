@@ -18,19 +18,18 @@
 
 package net.bitdroid.network;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import net.bitdroid.network.Event.EventType;
 import net.bitdroid.network.messages.Message;
-import net.bitdroid.network.wire.LittleEndianInputStream;
-import net.bitdroid.network.wire.LittleEndianOutputStream;
+import net.bitdroid.network.wire.LittleEndianBufferReader;
 
 /**
  * @deprecated The threaded network is not supported, use {@link BitcoinReactorNetwork} instead.
@@ -45,6 +44,7 @@ public class ThreadedBitcoinNetwork extends BitcoinNetwork implements Runnable {
 	protected Socket socket;
 
 	protected SocketState state = new SocketState();
+	private FrameEncoder encoder = new FrameEncoder();
 
 	long getNonce() {
 		return nonce;
@@ -86,18 +86,20 @@ public class ThreadedBitcoinNetwork extends BitcoinNetwork implements Runnable {
 		int size = (int)((buf[3] & 0xFF) << 24 | (buf[2] & 0xFF) << 16 |
 				(buf[1] & 0xFF) << 8 | (buf[0] & 0xFF));
 
+		byte[] checksum = null;
 		if(state.currentState != SocketState.HANDSHAKE){
-			byte[] checksum = new byte[4];
+			checksum = new byte[4];
 			inputStream.read(checksum);
-			// TODO add switch to check the checksum.
 		}
 
-		// Now read the buffer and wrap it into a LittleEndianInputStream
+		// Now read the buffer and wrap it into a LittleEndianBufferReader
 		// This is mainly done to isolate the messages from each other and
 		// keep the data stream in sync.
 		final byte b[] = new byte[size];
 		inputStream.read(b);
-		LittleEndianInputStream leis = LittleEndianInputStream.wrap(b);
+		if(checksum != null && !Arrays.equals(checksum, calculateChecksum(b)))
+			throw new IOException("Checksum mismatch for " + command + " message of " + size + " bytes.");
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(b);
 
 		// Boilerplate to select the right message to initialize.
 		Message message = createMessage(command);
@@ -110,7 +112,9 @@ public class ThreadedBitcoinNetwork extends BitcoinNetwork implements Runnable {
 
 		message.setPayloadSize(size);
 		// And now each message knows how to read its format:
-		message.read(leis);
+		if(message.isRetainingRawPayload())
+			message.setRawPayload(ByteBuffer.wrap(b));
+		message.read(reader);
 		return message;
 
 	}
@@ -146,23 +150,24 @@ public class ThreadedBitcoinNetwork extends BitcoinNetwork implements Runnable {
 			try{
 				listener.messageSent(event);
 			}catch(Throwable t){}
-		ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
-		event.toWire(new LittleEndianOutputStream(outBuffer));
-		outputStream.write(ProtocolVersion.getMagic());
-		// write the command
-		String command = event.getCommand();
-		outputStream.write(command.getBytes());
-		// Pad with 0s
-		for(int i=command.length(); i<12; i++)
-			outputStream.write(0);
-		// write the size of the packet
-		int size = outBuffer.toByteArray().length;
-		outputStream.write(new byte[]{(byte)(size & 0xFF),(byte)(size >> 8 & 0xFF),
-				(byte)(size >> 16 & 0xFF), (byte)(size >> 24 & 0xFF)});
-		if(state.currentState == SocketState.OPEN)
-			outputStream.write(calculateChecksum(outBuffer.toByteArray()));
-
-		outputStream.write(outBuffer.toByteArray());
+		ByteBuffer frame = encoder.encode(event, state.currentState == SocketState.OPEN);
+		outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.BitcoinNetwork#sendFrame(net.bitdroid.network.PeerInfo, net.bitdroid.network.EncodedFrame)
+	 */
+	@Override
+	public synchronized void sendFrame(PeerInfo destination, EncodedFrame frame) throws IOException {
+		try{
+			for(ByteBuffer b : frame.getBuffers(state.currentState == SocketState.OPEN)){
+				byte[] chunk = new byte[b.remaining()];
+				b.get(chunk);
+				outputStream.write(chunk);
+			}
+		}finally{
+			frame.release();
+		}
 	}
 
 	public void close(){
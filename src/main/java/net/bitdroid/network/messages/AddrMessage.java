@@ -58,8 +58,8 @@ public class AddrMessage extends Message {
 	@Override
 	public void read(LittleEndianInputStream in) throws IOException {
 		// Read the variable length:
-		long count = in.readVariableSize();
-		for(long i=0; i<count; i++){
+		int count = in.readVariableCount();
+		for(int i=0; i<count; i++){
 			int timestamp = in.readInt();
 			PeerAddress peer = new PeerAddress();
 			peer.setLastSeen(timestamp);
@@ -80,6 +80,16 @@ public class AddrMessage extends Message {
 		}
 	}
 
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#getSerializedSize()
+	 */
+	@Override
+	public int getSerializedSize() {
+		// Each entry is a timestamp followed by the address
+		return LittleEndianOutputStream.getVariableSizeLength(addresses.size()) +
+			addresses.size() * (4 + PeerAddress.SERIALIZED_SIZE);
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -18,16 +18,42 @@
 package net.bitdroid.network.messages;
 
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import net.bitdroid.network.wire.LittleEndianBufferReader;
 import net.bitdroid.network.wire.LittleEndianInputStream;
 import net.bitdroid.network.wire.LittleEndianOutputStream;
+import net.bitdroid.utils.Hash256;
+import net.bitdroid.utils.MerkleTree;
+import net.bitdroid.utils.Sha256d;
 import net.bitdroid.utils.StringUtils;
 
 /**
+ * A block, header and transactions.
+ *
+ * By default the transactions are parsed into a list as the block is read.
+ * A streaming block, see {@link #BlockMessage(boolean)}, only parses the
+ * header and finds where each transaction starts. The transactions are then
+ * parsed one at a time, either by
+ * {@link #visitTransactions(TransactionVisitor)} or, while the block is
+ * being read, for the visitor set with
+ * {@link #setTransactionVisitor(TransactionVisitor)}. The list is only built
+ * if somebody asks for it. Streaming needs the raw payload of the block, which
+ * the networks keep for blocks anyway.
+ *
+ * Blocks with many transactions can be decoded in parallel, see
+ * {@link #setDecodePool(ForkJoinPool)}: a first pass finds the boundaries
+ * of the transactions, then the transactions are parsed and hashed by the
+ * pool. The result is the same as for a sequential decode.
+ *
+ * To have all incoming blocks streamed, register a factory creating streaming
+ * blocks for the "block" command with the codec registry of the network.
+ *
  * @author cdecker
  *
  */
@@ -35,13 +61,48 @@ public class BlockMessage extends Message {
 	public EventType getType(){
 		return EventType.BLOCK_TYPE;
 	}
+	/**
+	 * Size of the serialized block header.
+	 */
+	public static final int HEADER_SIZE = 80;
+
+	/**
+	 * Blocks with fewer transactions are always decoded sequentially.
+	 */
+	public static final int PARALLEL_DECODE_THRESHOLD = 64;
+
+	/**
+	 * Number of transactions a single fork-join task parses.
+	 */
+	private static final int TRANSACTIONS_PER_TASK = 16;
 	private long version = 1;
 	private long timestamp;
 	private long target = 1;
 	private byte[] previousHash = new byte[32];
 	private byte[] merkleRoot = new byte[32];
 	private byte[] nonce = new byte[4];
+	// Only null for streaming blocks that have not been asked for the list
 	private List<Transaction> transactions = new LinkedList<Transaction>();
+	private boolean streaming = false;
+	private TransactionVisitor transactionVisitor = null;
+	private ForkJoinPool decodePool = null;
+	// Memoized hash, computed on first use
+	private Hash256 hash = null;
+	// Where each transaction starts within the payload, followed by its end
+	private int[] transactionOffsets = null;
+	// Memoized merkle tree over the transactions
+	private MerkleTree merkleTree = null;
+
+	public BlockMessage(){
+	}
+
+	/**
+	 * @param streaming whether the transactions should be parsed only on
+	 * 		demand instead of while reading the block.
+	 */
+	public BlockMessage(boolean streaming){
+		this.streaming = streaming;
+	}
 
 	/* (non-Javadoc)
 	 * @see net.bitdroid.network.Message#getCommand()
@@ -67,11 +128,137 @@ public class BlockMessage extends Message {
 		target = in.readUnsignedInt();
 		in.read(nonce);
 		StringUtils.reverse(nonce);
-		long transactionCount = in.readVariableSize();
+		// A buffer reader checks the count against the bytes left
+		int transactionCount = in.readVariableCount();
+		// Remember the boundaries, so the transactions can be found again in
+		// the raw bytes of the block later on
+		LittleEndianBufferReader reader = null;
+		if(in instanceof LittleEndianBufferReader){
+			reader = (LittleEndianBufferReader)in;
+			transactionOffsets = new int[transactionCount + 1];
+		}
+		// Without a buffer there's no coming back, so the list is built anyway
+		boolean keep = !streaming || reader == null;
+		transactions = keep ? new LinkedList<Transaction>() : null;
+		ByteBuffer raw = getRawPayload();
+		if(reader != null && decodePool != null && transactionCount >= PARALLEL_DECODE_THRESHOLD &&
+				(keep || transactionVisitor != null)){
+			readParallel(reader, raw, transactionCount, keep);
+			return;
+		}
 		for(int i=0; i<transactionCount; i++){
+			if(reader != null)
+				transactionOffsets[i] = reader.position();
+			if(!keep && transactionVisitor == null){
+				Transaction.skip(reader);
+				continue;
+			}
 			Transaction t = new Transaction();
 			t.read(in);
-			transactions.add(t);
+			if(raw != null && reader != null)
+				t.setRawPayload(reader.slice(transactionOffsets[i], reader.position() - transactionOffsets[i]));
+			if(keep)
+				transactions.add(t);
+			if(transactionVisitor != null)
+				transactionVisitor.visit(this, i, t);
+		}
+		if(reader != null)
+			transactionOffsets[transactionCount] = reader.position();
+	}
+
+	/**
+	 * Two pass decode: find the boundaries of the transactions, then have the
+	 * pool parse them. They end up in the same order as a sequential decode
+	 * and the visitor is called in order on this thread.
+	 */
+	private void readParallel(LittleEndianBufferReader reader, ByteBuffer raw, int count, boolean keep) throws IOException {
+		for(int i=0; i<count; i++){
+			transactionOffsets[i] = reader.position();
+			Transaction.skip(reader);
+		}
+		transactionOffsets[count] = reader.position();
+
+		Transaction[] parsed = new Transaction[count];
+		// Without raw bytes the reader's buffer is only valid while reading,
+		// which is fine since we wait for the pool.
+		ByteBuffer source = raw != null ? raw : reader.slice(0, reader.limit());
+		try{
+			decodePool.invoke(new ParseTask(source, raw != null, parsed, 0, count));
+		}catch(ParseFailure f){
+			throw f.getCause();
+		}
+		for(int i=0; i<count; i++){
+			if(keep)
+				transactions.add(parsed[i]);
+			if(transactionVisitor != null)
+				transactionVisitor.visit(this, i, parsed[i]);
+		}
+	}
+
+	/**
+	 * Parses a range of transactions, splitting it up if it is too big.
+	 */
+	private class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ByteBuffer source;
+		private final boolean retainRaw;
+		private final Transaction[] parsed;
+		private final int from;
+		private final int to;
+
+		ParseTask(ByteBuffer source, boolean retainRaw, Transaction[] parsed, int from, int to){
+			this.source = source;
+			this.retainRaw = retainRaw;
+			this.parsed = parsed;
+			this.from = from;
+			this.to = to;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			if(to - from > TRANSACTIONS_PER_TASK){
+				int middle = (from + to) >>> 1;
+				invokeAll(new ParseTask(source, retainRaw, parsed, from, middle),
+						new ParseTask(source, retainRaw, parsed, middle, to));
+				return;
+			}
+			for(int i=from; i<to; i++){
+				ByteBuffer view = slice(source, i);
+				LittleEndianBufferReader in = new LittleEndianBufferReader(view);
+				Transaction t = new Transaction();
+				try{
+					if(retainRaw)
+						t.setRawPayload(view);
+					t.read(in);
+					if(in.hasRemaining())
+						throw new IOException("Transaction " + i + " has " + in.remaining() + " trailing bytes.");
+				}catch(IOException e){
+					throw new ParseFailure(e);
+				}
+				// Hashing from the raw bytes is cheap while they are hot
+				if(retainRaw)
+					t.getHash256();
+				parsed[i] = t;
+			}
+		}
+	}
+
+	/**
+	 * Carries an IOException out of the pool.
+	 */
+	private static class ParseFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ParseFailure(IOException cause){
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException)super.getCause();
 		}
 	}
 
@@ -93,13 +280,54 @@ public class BlockMessage extends Message {
 		leos.writeUnsignedInt(timestamp);
 		leos.writeUnsignedInt(target);
 		leos.write(_nonce);
+		List<Transaction> transactions = getTransactions();
 		leos.writeVariableSize(transactions.size());
 		for(Transaction t : transactions)
-			t.toWire(leos);
+			t.writePayload(leos);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#getSerializedSize()
+	 */
+	@Override
+	public int getSerializedSize() {
+		if(getRawPayloadSize() >= 0)
+			return getRawPayloadSize();
+		List<Transaction> transactions = getTransactions();
+		int size = HEADER_SIZE + LittleEndianOutputStream.getVariableSizeLength(transactions.size());
+		for(Transaction t : transactions)
+			size += t.getSerializedSize();
+		return size;
+	}
+
+	/**
+	 * @return the hash of the block header, in the usual reversed byte order.
+	 */
+	public byte[] getHash() {
+		return getHash256().getReversedBytes();
+	}
+
+	/**
+	 * The hash is computed once, from the raw header if the block has been
+	 * read from the network, and kept until the header is changed.
+	 *
+	 * @return the hash of the block header.
+	 */
+	public Hash256 getHash256() {
+		if(hash == null){
+			ByteBuffer raw = getRawPayload();
+			if(raw != null){
+				raw.limit(raw.position() + HEADER_SIZE);
+				hash = Hash256.wrap(Sha256d.hash(raw));
+			}else{
+				hash = Hash256.wrap(Sha256d.hash(serializeHeader()));
+			}
+		}
+		return hash;
 	}
 
-	public byte[] getHash() throws NoSuchAlgorithmException{
-		byte b[] = new byte[80];
+	private byte[] serializeHeader() {
+		byte b[] = new byte[HEADER_SIZE];
 		LittleEndianOutputStream leos = LittleEndianOutputStream.wrap(b);
 		try {
 			// Re reverse those byte arrays:
@@ -119,12 +347,255 @@ public class BlockMessage extends Message {
 			// Should never happen since we know exactly what's going in there
 			e.printStackTrace();
 		}
-		MessageDigest hasher = MessageDigest.getInstance("SHA-256");
-		byte h[] = hasher.digest(b);
-		hasher.reset();
-		h = hasher.digest(h);
-		StringUtils.reverse(h);
-		return h;
+		return b;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#isRetainingRawPayload()
+	 */
+	@Override
+	public boolean isRetainingRawPayload() {
+		return true;
+	}
+
+	/**
+	 * Besides keeping the raw bytes for itself, the block hands each of its
+	 * parsed transactions a view of their part.
+	 *
+	 * @see net.bitdroid.network.messages.Message#setRawPayload(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void setRawPayload(ByteBuffer rawPayload) {
+		super.setRawPayload(rawPayload);
+		hash = null;
+		merkleTree = null;
+		if(rawPayload == null || transactions == null || transactionOffsets == null ||
+				transactionOffsets.length != transactions.size() + 1)
+			return;
+		int i = 0;
+		for(Transaction t : transactions){
+			t.setRawPayload(slice(rawPayload, i));
+			i++;
+		}
+	}
+
+	private ByteBuffer slice(ByteBuffer raw, int index){
+		ByteBuffer view = raw.duplicate();
+		int start = raw.position();
+		view.limit(start + transactionOffsets[index + 1]);
+		view.position(start + transactionOffsets[index]);
+		return view.slice();
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#payloadChanged()
+	 */
+	@Override
+	protected void payloadChanged() {
+		// The raw bytes are about to go, parse the transactions while we can
+		if(transactions == null && getRawPayloadSize() >= 0)
+			getTransactions();
+		super.payloadChanged();
+		hash = null;
+		merkleTree = null;
+		transactionOffsets = null;
+	}
+
+	/**
+	 * The merkle tree over the hashes of the transactions. Transactions that
+	 * have been parsed and hashed already, as by a parallel decode, are not
+	 * hashed again. Otherwise, if the raw bytes are around, the transactions
+	 * are hashed straight from them, without parsing, and as a last resort
+	 * the hashes of the parsed transactions are used. With a decode pool set,
+	 * large blocks are hashed and reduced by the pool.
+	 *
+	 * @return the tree, or <code>null</code> if the block has no transactions.
+	 * @throws IllegalStateException if the transactions are neither parsed nor
+	 * 		available as raw bytes.
+	 */
+	public MerkleTree getMerkleTree() {
+		if(merkleTree != null)
+			return merkleTree;
+		int count = getTransactionCount();
+		if(count == 0)
+			return null;
+		byte[] leaves = new byte[count * Sha256d.HASH_SIZE];
+		ByteBuffer raw = getRawPayload();
+		if(transactions != null && isHashed(transactions)){
+			int i = 0;
+			for(Transaction t : transactions)
+				t.getHash256().copyTo(leaves, Sha256d.HASH_SIZE * i++);
+		}else if(raw != null && transactionOffsets != null && transactionOffsets.length == count + 1){
+			if(decodePool != null && count >= PARALLEL_DECODE_THRESHOLD)
+				decodePool.invoke(new LeafTask(raw, leaves, 0, count));
+			else
+				hashLeaves(raw, leaves, 0, count);
+		}else{
+			int i = 0;
+			for(Transaction t : getTransactions())
+				t.getHash256().copyTo(leaves, Sha256d.HASH_SIZE * i++);
+		}
+		merkleTree = new MerkleTree(leaves, decodePool);
+		return merkleTree;
+	}
+
+	private static boolean isHashed(List<Transaction> transactions){
+		for(Transaction t : transactions)
+			if(!t.isHashed())
+				return false;
+		return true;
+	}
+
+	private void hashLeaves(ByteBuffer raw, byte[] leaves, int from, int to){
+		for(int i=from; i<to; i++)
+			Sha256d.hash(slice(raw, i), leaves, i * Sha256d.HASH_SIZE);
+	}
+
+	/**
+	 * Hashes a range of raw transactions into their leaves.
+	 */
+	private class LeafTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ByteBuffer raw;
+		private final byte[] leaves;
+		private final int from;
+		private final int to;
+
+		LeafTask(ByteBuffer raw, byte[] leaves, int from, int to){
+			this.raw = raw;
+			this.leaves = leaves;
+			this.from = from;
+			this.to = to;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			if(to - from > TRANSACTIONS_PER_TASK){
+				int middle = (from + to) >>> 1;
+				invokeAll(new LeafTask(raw, leaves, from, middle),
+						new LeafTask(raw, leaves, middle, to));
+				return;
+			}
+			hashLeaves(raw, leaves, from, to);
+		}
+	}
+
+	/**
+	 * Check the merkle root in the header against the transactions.
+	 *
+	 * @return whether the transactions match the merkle root.
+	 */
+	public boolean verifyMerkleRoot() {
+		MerkleTree tree = getMerkleTree();
+		if(tree == null)
+			return false;
+		byte[] root = tree.getRoot();
+		StringUtils.reverse(root);
+		return Arrays.equals(root, merkleRoot);
+	}
+
+	/**
+	 * The merkle branch proving that a transaction is part of this block, see
+	 * {@link MerkleTree#getBranch(int)}. Hashes are in digest order, not
+	 * reversed for display.
+	 *
+	 * @param index position of the transaction in the block.
+	 * @return the sibling hashes from the transaction up to the root.
+	 */
+	public List<byte[]> getMerkleBranch(int index) {
+		MerkleTree tree = getMerkleTree();
+		if(tree == null)
+			throw new IndexOutOfBoundsException("Block has no transactions.");
+		return tree.getBranch(index);
+	}
+
+	/**
+	 * Walk the transactions of the block one at a time. For a streaming block
+	 * the transactions are parsed as they are visited and are not kept by the
+	 * block.
+	 *
+	 * @param visitor called for each transaction.
+	 * @throws IOException if a transaction cannot be parsed or the visitor
+	 * 		aborts.
+	 * @throws IllegalStateException if the transactions are neither parsed nor
+	 * 		available as raw bytes.
+	 */
+	public void visitTransactions(TransactionVisitor visitor) throws IOException {
+		if(transactions != null){
+			int i = 0;
+			for(Transaction t : transactions)
+				visitor.visit(this, i++, t);
+			return;
+		}
+		ByteBuffer raw = getRawPayload();
+		if(raw == null || transactionOffsets == null)
+			throw new IllegalStateException("The transactions of the block are not available.");
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(raw);
+		for(int i=0; i<transactionOffsets.length - 1; i++){
+			reader.position(transactionOffsets[i]);
+			Transaction t = new Transaction();
+			t.read(reader);
+			t.setRawPayload(slice(raw, i));
+			visitor.visit(this, i, t);
+		}
+	}
+
+	/**
+	 * @return the number of transactions, without parsing them.
+	 */
+	public int getTransactionCount() {
+		if(transactions != null)
+			return transactions.size();
+		return transactionOffsets == null ? 0 : transactionOffsets.length - 1;
+	}
+
+	/**
+	 * Decode blocks with at least {@link #PARALLEL_DECODE_THRESHOLD}
+	 * transactions with the given pool.
+	 *
+	 * @param decodePool the pool, or <code>null</code> to decode on the
+	 * 		reading thread.
+	 */
+	public void setDecodePool(ForkJoinPool decodePool) {
+		this.decodePool = decodePool;
+	}
+
+	/**
+	 * Look at the transaction count of a serialized block, without reading
+	 * the block.
+	 *
+	 * @param payload the payload of a block message, it is not modified.
+	 * @return whether the block has enough transactions to be decoded in
+	 * 		parallel, <code>false</code> if the count cannot be read.
+	 */
+	public static boolean isParallelDecoded(ByteBuffer payload){
+		if(payload.remaining() <= HEADER_SIZE)
+			return false;
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(payload);
+		reader.position(HEADER_SIZE);
+		try{
+			return reader.readVariableCount() >= PARALLEL_DECODE_THRESHOLD;
+		}catch(IOException ioe){
+			return false;
+		}
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Set a visitor that gets each transaction as soon as it has been parsed
+	 * while the block is read. For a streaming block this is the only time
+	 * the transactions are parsed, unless asked for later on.
+	 *
+	 * @param transactionVisitor the visitor, or <code>null</code>.
+	 */
+	public void setTransactionVisitor(TransactionVisitor transactionVisitor) {
+		this.transactionVisitor = transactionVisitor;
 	}
 
 	/**
@@ -139,6 +610,7 @@ public class BlockMessage extends Message {
 	 */
 	public void setVersion(long version) {
 		this.version = version;
+		payloadChanged();
 	}
 
 	/**
@@ -153,6 +625,7 @@ public class BlockMessage extends Message {
 	 */
 	public void setTimestamp(long timestamp) {
 		this.timestamp = timestamp;
+		payloadChanged();
 	}
 
 	/**
@@ -167,6 +640,7 @@ public class BlockMessage extends Message {
 	 */
 	public void setTarget(long target) {
 		this.target = target;
+		payloadChanged();
 	}
 
 	/**
@@ -181,6 +655,7 @@ public class BlockMessage extends Message {
 	 */
 	public void setPreviousHash(byte[] previousHash) {
 		this.previousHash = previousHash;
+		payloadChanged();
 	}
 
 	/**
@@ -195,6 +670,7 @@ public class BlockMessage extends Message {
 	 */
 	public void setMerkleRoot(byte[] merkleRoot) {
 		this.merkleRoot = merkleRoot;
+		payloadChanged();
 	}
 
 	/**
@@ -209,12 +685,31 @@ public class BlockMessage extends Message {
 	 */
 	public void setNonce(byte[] nonce) {
 		this.nonce = nonce;
+		payloadChanged();
 	}
 
 	/**
+	 * The list of transactions. For a streaming block it is parsed on the
+	 * first call.
+	 *
 	 * @return the transactions
+	 * @throws IllegalStateException if the transactions are neither parsed nor
+	 * 		available as raw bytes.
 	 */
 	public List<Transaction> getTransactions() {
+		if(transactions == null){
+			final List<Transaction> list = new LinkedList<Transaction>();
+			try {
+				visitTransactions(new TransactionVisitor() {
+					public void visit(BlockMessage block, int index, Transaction transaction) {
+						list.add(transaction);
+					}
+				});
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to parse the transactions of the block.", e);
+			}
+			transactions = list;
+		}
 		return transactions;
 	}
 	
@@ -225,7 +720,7 @@ public class BlockMessage extends Message {
 	public String toString() {
 		StringBuilder sb = new StringBuilder("Block[hash=");
 		try {
-			sb.append(StringUtils.getHexString(this.getHash()));
+			sb.append(this.getHash256().toHexString());
 		} catch (Exception e) {
 		}
 		sb.append("]");
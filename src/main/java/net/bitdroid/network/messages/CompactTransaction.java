@@ -0,0 +1,353 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.messages;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+
+import net.bitdroid.network.messages.Transaction.TxInput;
+import net.bitdroid.network.messages.Transaction.TxOutput;
+import net.bitdroid.network.messages.Transaction.TxOutputPoint;
+import net.bitdroid.network.wire.LittleEndianBufferReader;
+import net.bitdroid.network.wire.LittleEndianOutputStream;
+import net.bitdroid.utils.Hash256;
+import net.bitdroid.utils.Sha256d;
+
+/**
+ * A read-only transaction for holding on to many of them, for example in a
+ * memory pool.
+ *
+ * The transaction is kept as its serialized bytes plus a table of where each
+ * input and output ends up in them, so it takes a handful of objects no
+ * matter how many inputs and outputs it has. The fields are decoded from the
+ * bytes whenever they are asked for. Values are plain satoshi longs.
+ *
+ * Use {@link #toTransaction()} to get a regular {@link Transaction} that can
+ * be changed.
+ *
+ * @author cdecker
+ *
+ */
+public final class CompactTransaction {
+	private static final int OUTPOINT_SIZE = 32 + 4;
+
+	private final byte[] data;
+	// For every input where it starts and where its script ends, the
+	// sequence follows right after.
+	private final int[] inputOffsets;
+	// For every output where it starts and where its script ends.
+	private final int[] outputOffsets;
+	// Memoized hash, computed on first use
+	private Hash256 hash = null;
+
+	private CompactTransaction(byte[] data, int[] inputOffsets, int[] outputOffsets){
+		this.data = data;
+		this.inputOffsets = inputOffsets;
+		this.outputOffsets = outputOffsets;
+	}
+
+	/**
+	 * Read a transaction, copying its bytes.
+	 *
+	 * @param in reader positioned at the start of a transaction, it is left
+	 * 		right after it.
+	 * @return the transaction.
+	 * @throws IOException if the transaction is truncated.
+	 */
+	public static CompactTransaction read(LittleEndianBufferReader in) throws IOException {
+		int start = in.position();
+		Transaction.skip(in);
+		byte[] data = new byte[in.position() - start];
+		in.position(start);
+		in.readFully(data);
+
+		// The bytes have been checked by the skip, so no more bounds checks
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(data);
+		reader.position(4);
+		int[] inputOffsets = new int[2 * reader.readVariableCount()];
+		for(int i=0; i<inputOffsets.length; i+=2){
+			inputOffsets[i] = reader.position();
+			reader.position(reader.position() + OUTPOINT_SIZE);
+			int scriptLength = reader.readVariableCount();
+			inputOffsets[i + 1] = reader.position() + scriptLength;
+			reader.position(inputOffsets[i + 1] + 4);
+		}
+		int[] outputOffsets = new int[2 * reader.readVariableCount()];
+		for(int i=0; i<outputOffsets.length; i+=2){
+			outputOffsets[i] = reader.position();
+			reader.position(reader.position() + 8);
+			int scriptLength = reader.readVariableCount();
+			outputOffsets[i + 1] = reader.position() + scriptLength;
+			reader.position(outputOffsets[i + 1]);
+		}
+		return new CompactTransaction(data, inputOffsets, outputOffsets);
+	}
+
+	/**
+	 * Read a transaction from a buffer holding exactly one transaction.
+	 *
+	 * @param payload the serialized transaction, its position is left
+	 * 		untouched.
+	 * @return the transaction.
+	 * @throws IOException if the transaction is truncated or followed by
+	 * 		other bytes.
+	 */
+	public static CompactTransaction read(ByteBuffer payload) throws IOException {
+		LittleEndianBufferReader in = new LittleEndianBufferReader(payload.duplicate());
+		CompactTransaction tx = read(in);
+		if(in.hasRemaining())
+			throw new IOException("Transaction is followed by " + in.remaining() + " bytes.");
+		return tx;
+	}
+
+	/**
+	 * Compact a transaction, from its raw bytes if it still has them.
+	 *
+	 * @param transaction the transaction.
+	 * @return the compact copy.
+	 * @throws IOException if the transaction cannot be serialized.
+	 */
+	public static CompactTransaction of(Transaction transaction) throws IOException {
+		ByteBuffer raw = transaction.getRawPayload();
+		if(raw == null){
+			byte[] b = new byte[transaction.getSerializedSize()];
+			transaction.toWire(LittleEndianOutputStream.wrap(b));
+			raw = ByteBuffer.wrap(b);
+		}
+		return read(raw);
+	}
+
+	/**
+	 * @return a regular transaction with the same content.
+	 */
+	public Transaction toTransaction() {
+		Transaction t = new Transaction();
+		t.setRawPayload(ByteBuffer.wrap(data));
+		try {
+			t.read(new LittleEndianBufferReader(data));
+		} catch (IOException e) {
+			// Can't happen, the bytes have been parsed before
+			throw new IllegalStateException(e);
+		}
+		return t;
+	}
+
+	/**
+	 * @return the serialized transaction, read-only.
+	 */
+	public ByteBuffer getPayload() {
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+
+	public void toWire(LittleEndianOutputStream leos) throws IOException {
+		leos.write(data);
+	}
+
+	public int getSerializedSize() {
+		return data.length;
+	}
+
+	/**
+	 * @return the hash of the transaction, in the usual reversed byte order.
+	 */
+	public byte[] getHash() {
+		return getHash256().getReversedBytes();
+	}
+
+	/**
+	 * @return the hash of the transaction.
+	 */
+	public Hash256 getHash256() {
+		if(hash == null)
+			hash = Hash256.wrap(Sha256d.hash(data));
+		return hash;
+	}
+
+	public int getVersion() {
+		return getInt(0);
+	}
+
+	public int getLocktime() {
+		return getInt(data.length - 4);
+	}
+
+	public int getInputCount() {
+		return inputOffsets.length / 2;
+	}
+
+	public int getOutputCount() {
+		return outputOffsets.length / 2;
+	}
+
+	/**
+	 * @param input index of the input.
+	 * @return the hash of the transaction the input spends from.
+	 */
+	public byte[] getPreviousHash(int input) {
+		byte[] b = new byte[32];
+		copyPreviousHash(input, b, 0);
+		return b;
+	}
+
+	/**
+	 * Copy the hash of the transaction the input spends from, without
+	 * allocating.
+	 *
+	 * @param input index of the input.
+	 * @param dest destination.
+	 * @param offset where the 32 bytes start in dest.
+	 */
+	public void copyPreviousHash(int input, byte[] dest, int offset) {
+		System.arraycopy(data, inputOffsets[2 * input], dest, offset, 32);
+	}
+
+	/**
+	 * @param input index of the input.
+	 * @return the index of the output the input spends.
+	 */
+	public int getPreviousIndex(int input) {
+		return getInt(inputOffsets[2 * input] + 32);
+	}
+
+	/**
+	 * @param input index of the input.
+	 * @return a read-only view of the signature script.
+	 */
+	public ByteBuffer getSignature(int input) {
+		int start = inputOffsets[2 * input] + OUTPOINT_SIZE;
+		return view(start + getVariableSizeLength(start), inputOffsets[2 * input + 1]);
+	}
+
+	public long getSequence(int input) {
+		return getInt(inputOffsets[2 * input + 1]) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @param output index of the output.
+	 * @return the value in satoshi.
+	 */
+	public long getValue(int output) {
+		int offset = outputOffsets[2 * output];
+		return (getInt(offset) & 0xFFFFFFFFL) | (long)getInt(offset + 4) << 32;
+	}
+
+	/**
+	 * @param output index of the output.
+	 * @return a read-only view of the output script.
+	 */
+	public ByteBuffer getScript(int output) {
+		int start = outputOffsets[2 * output] + 8;
+		return view(start + getVariableSizeLength(start), outputOffsets[2 * output + 1]);
+	}
+
+	/**
+	 * The inputs in the form of {@link Transaction#getInputs()}. The list is
+	 * a read-only view, every access decodes a new input.
+	 *
+	 * @return the inputs.
+	 */
+	public List<TxInput> getInputs() {
+		final Transaction owner = new Transaction();
+		return new AbstractList<TxInput>() {
+			@Override
+			public TxInput get(int index) {
+				if(index < 0 || index >= getInputCount())
+					throw new IndexOutOfBoundsException("No input " + index);
+				TxOutputPoint o = owner.new TxOutputPoint();
+				o.setHash(getPreviousHash(index));
+				o.setIndex(getPreviousIndex(index));
+				TxInput txIn = owner.new TxInput();
+				txIn.setPrevious(o);
+				txIn.setSignature(copyOf(getSignature(index)));
+				txIn.setSequence(getSequence(index));
+				return txIn;
+			}
+
+			@Override
+			public int size() {
+				return getInputCount();
+			}
+		};
+	}
+
+	/**
+	 * The outputs in the form of {@link Transaction#getOutputs()}. The list
+	 * is a read-only view, every access decodes a new output.
+	 *
+	 * @return the outputs.
+	 */
+	public List<TxOutput> getOutputs() {
+		final Transaction owner = new Transaction();
+		return new AbstractList<TxOutput>() {
+			@Override
+			public TxOutput get(int index) {
+				if(index < 0 || index >= getOutputCount())
+					throw new IndexOutOfBoundsException("No output " + index);
+				TxOutput txOut = owner.new TxOutput();
+				long value = getValue(index);
+				// Same as reading an unsigned long
+				BigInteger v = BigInteger.valueOf(value & Long.MAX_VALUE);
+				if(value < 0)
+					v = v.setBit(63);
+				txOut.setValue(v);
+				txOut.setScript(copyOf(getScript(index)));
+				return txOut;
+			}
+
+			@Override
+			public int size() {
+				return getOutputCount();
+			}
+		};
+	}
+
+	private int getInt(int offset) {
+		return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 |
+			(data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+	}
+
+	private int getVariableSizeLength(int offset) {
+		switch(data[offset] & 0xFF){
+		case 0xfd: return 3;
+		case 0xfe: return 5;
+		case 0xff: return 9;
+		default: return 1;
+		}
+	}
+
+	private ByteBuffer view(int start, int end) {
+		return ByteBuffer.wrap(data, start, end - start).slice().asReadOnlyBuffer();
+	}
+
+	private static byte[] copyOf(ByteBuffer b) {
+		byte[] a = new byte[b.remaining()];
+		b.get(a);
+		return a;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CompactTransaction[hash=" + getHash256().toHexString() + "]";
+	}
+}
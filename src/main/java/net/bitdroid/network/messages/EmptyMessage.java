@@ -48,4 +48,12 @@ public abstract class EmptyMessage extends Message{
 		// Nothing here either :-)
 	}
 
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#getSerializedSize()
+	 */
+	@Override
+	public int getSerializedSize() {
+		return 0;
+	}
+
 }
@@ -19,13 +19,12 @@
 package net.bitdroid.network.messages;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.LinkedList;
 import java.util.List;
 
 import net.bitdroid.network.wire.LittleEndianInputStream;
 import net.bitdroid.network.wire.LittleEndianOutputStream;
-import net.bitdroid.utils.StringUtils;
+import net.bitdroid.utils.Hash256;
 
 public class InventoryMessage extends Message {
 	public EventType getType(){
@@ -38,14 +37,10 @@ public class InventoryMessage extends Message {
 
 	@Override
 	public void read(LittleEndianInputStream in) throws IOException {
-		long count = in.readVariableSize();
+		int count = in.readVariableCount();
 		for(int i=0; i<count; i++){
-			byte[] buffer = new byte[32];
 			int t = in.readInt();
-			in.read(buffer);
-			// We like hashes with leading 0s, and it's the format used by the BBE.
-			StringUtils.reverse(buffer);
-			items.add(new InventoryItem(t, buffer));
+			items.add(new InventoryItem(t, Hash256.read(in)));
 		}
 	}
 
@@ -54,18 +49,32 @@ public class InventoryMessage extends Message {
 		leos.writeVariableSize(items.size());
 		for(InventoryItem i : items){
 			leos.writeInt(i.getType());
-			byte b[] = i.getHash().clone();
-			StringUtils.reverse(b);
-			leos.write(b);
+			i.getHash256().write(leos);
 		}
 	}
 
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#getSerializedSize()
+	 */
+	@Override
+	public int getSerializedSize() {
+		return LittleEndianOutputStream.getVariableSizeLength(items.size()) + items.size() * 36;
+	}
+
 	public class InventoryItem {
-		private byte[] hash;
+		private Hash256 hash;
 		/**
-		 * @return the hash
+		 * We like hashes with leading 0s, and it's the format used by the BBE.
+		 *
+		 * @return the hash, in reversed byte order.
 		 */
 		public final byte[] getHash() {
+			return hash.getReversedBytes();
+		}
+		/**
+		 * @return the hash
+		 */
+		public final Hash256 getHash256() {
 			return hash;
 		}
 		/**
@@ -75,7 +84,14 @@ public class InventoryMessage extends Message {
 			return type;
 		}
 		private int type;
+		/**
+		 * @param type the type of the item.
+		 * @param hash the hash, in reversed byte order.
+		 */
 		public InventoryItem(int type, byte hash[]){
+			this(type, Hash256.wrapReversed(hash));
+		}
+		public InventoryItem(int type, Hash256 hash){
 			this.hash = hash;
 			this.type = type;
 		}
@@ -100,9 +116,7 @@ public class InventoryMessage extends Message {
 				break;
 			}
 
-			try {
-				sb.append(",hash=").append(StringUtils.getHexString(hash));
-			} catch (UnsupportedEncodingException e) {}
+			sb.append(",hash=").append(hash.toHexString());
 			sb.append("]");
 			return sb.toString();
 		}
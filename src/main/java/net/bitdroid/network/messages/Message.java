@@ -19,6 +19,9 @@
 package net.bitdroid.network.messages;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import net.bitdroid.network.Event;
 import net.bitdroid.network.wire.LittleEndianInputStream;
@@ -32,6 +35,8 @@ public abstract class Message extends Event {
 	 */
 	public abstract String getCommand();
 	private int payloadSize;
+	// The bytes the message has been read from, while they are still valid
+	private ByteBuffer rawPayload = null;
 
 	public int getPayloadSize() {
 		return payloadSize;
@@ -44,4 +49,98 @@ public abstract class Message extends Event {
 	public abstract void read(LittleEndianInputStream in) throws IOException;
 	public abstract void toWire(LittleEndianOutputStream leos) throws IOException;
 
+	/**
+	 * Number of bytes {@link #toWire(LittleEndianOutputStream)} is going to
+	 * write for this message. This allows the frame to be allocated and the
+	 * header to be written before the payload is serialized.
+	 *
+	 * The default implementation serializes the message and counts the bytes,
+	 * subclasses should override it with something cheaper.
+	 *
+	 * @return size of the serialized payload in bytes.
+	 * @throws IOException if the message cannot be serialized.
+	 */
+	public int getSerializedSize() throws IOException {
+		final int[] count = new int[1];
+		toWire(new LittleEndianOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				count[0]++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				count[0] += len;
+			}
+		}));
+		return count[0];
+	}
+
+	/**
+	 * Whether the network should keep a copy of the bytes the message has been
+	 * read from. Messages that are hashed or relayed as they are say so, the
+	 * copy then saves re-serializing them.
+	 *
+	 * @return <code>false</code> unless overridden.
+	 */
+	public boolean isRetainingRawPayload() {
+		return false;
+	}
+
+	/**
+	 * @return a view of the bytes the message has been read from, or
+	 * 		<code>null</code> if they were not kept or the message has been
+	 * 		modified since.
+	 */
+	public ByteBuffer getRawPayload() {
+		if(rawPayload == null)
+			return null;
+		return rawPayload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return number of raw payload bytes, or -1 if there are none.
+	 */
+	public int getRawPayloadSize() {
+		return rawPayload == null ? -1 : rawPayload.remaining();
+	}
+
+	/**
+	 * Attach the bytes the message has been, or is about to be, read from.
+	 * They must not change afterwards and must be backed by an array.
+	 *
+	 * @param rawPayload exactly the serialized payload of this message.
+	 */
+	public void setRawPayload(ByteBuffer rawPayload) {
+		if(rawPayload != null && !rawPayload.hasArray())
+			throw new IllegalArgumentException("Raw payloads have to be backed by an array.");
+		this.rawPayload = rawPayload;
+	}
+
+	/**
+	 * Called by the setters of a message, the raw bytes no longer match its
+	 * content. Subclasses override it to drop whatever they cached and have to
+	 * call it. Changes made directly to the lists of a message are not
+	 * tracked, use {@link #setRawPayload(ByteBuffer)} with <code>null</code> after
+	 * doing so.
+	 */
+	protected void payloadChanged() {
+		rawPayload = null;
+	}
+
+	/**
+	 * Write the payload of the message, copying the raw bytes if they are
+	 * still valid and serializing it with
+	 * {@link #toWire(LittleEndianOutputStream)} otherwise.
+	 *
+	 * @param leos destination.
+	 * @throws IOException if writing fails.
+	 */
+	public final void writePayload(LittleEndianOutputStream leos) throws IOException {
+		ByteBuffer raw = rawPayload;
+		if(raw != null)
+			leos.write(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+		else
+			toWire(leos);
+	}
 }
@@ -30,6 +30,11 @@ public class PeerAddress extends Message implements Comparable<PeerAddress>{
 		return EventType.PART_TYPE;
 	}
 
+	/**
+	 * Services, IPv6 (or IPv4-mapped) address and port.
+	 */
+	public static final int SERIALIZED_SIZE = 8 + 16 + 2;
+
 	private long services;
 	private int lastSeen = 0;
 
@@ -104,9 +109,7 @@ public class PeerAddress extends Message implements Comparable<PeerAddress>{
 		in.read(b);
 		setAddress(InetAddress.getByAddress(b));
 		// Port uses network byte order, goddamn mix of ordering...
-		b = new byte[2];
-		in.read(b);
-		setPort((b[0] & 0xFF) << 8 | (b[1] & 0xFF));
+		setPort(in.readUnsignedByte() << 8 | in.readUnsignedByte());
 		//setPort(in.readUnsignedShort());
 	}
 
@@ -124,6 +127,11 @@ public class PeerAddress extends Message implements Comparable<PeerAddress>{
 		leos.write(new byte[]{(byte)(port >> 8 & 0xFF), (byte)(port & 0xFF)});
 	}
 
+	@Override
+	public int getSerializedSize() {
+		return SERIALIZED_SIZE;
+	}
+
 	@Override
 	public String getCommand() {
 		return null;
@@ -17,17 +17,18 @@
  */
 package net.bitdroid.network.messages;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
 
+import net.bitdroid.network.wire.LittleEndianBufferReader;
 import net.bitdroid.network.wire.LittleEndianInputStream;
 import net.bitdroid.network.wire.LittleEndianOutputStream;
-import net.bitdroid.utils.StringUtils;
+import net.bitdroid.utils.Hash256;
+import net.bitdroid.utils.Sha256d;
 
 /**
  * @author cdecker
@@ -42,6 +43,8 @@ public class Transaction extends Message {
 	private int locktime;
 	private List<TxInput> inputs = new LinkedList<TxInput>();
 	private List<TxOutput> outputs = new LinkedList<TxOutput>();
+	// Memoized hash, computed on first use
+	private Hash256 hash = null;
 
 	/* (non-Javadoc)
 	 * @see net.bitdroid.network.Message#getCommand()
@@ -59,7 +62,7 @@ public class Transaction extends Message {
 		version = in.readInt();
 
 		// Read inputs
-		long inputCount = in.readVariableSize();
+		int inputCount = in.readVariableCount();
 		for(int i=0; i<inputCount; i++){
 			TxOutputPoint o = new TxOutputPoint();
 			byte[] b = new byte[32];
@@ -68,20 +71,18 @@ public class Transaction extends Message {
 			o.setIndex(in.readInt());
 			TxInput txIn = new TxInput();
 			txIn.setPrevious(o);
-			long sigLength = in.readVariableSize();
-			byte sig[] = new byte[(int) sigLength];
+			byte sig[] = new byte[in.readVariableCount()];
 			in.read(sig);
 			txIn.setSignature(sig);
 			txIn.setSequence(in.readUnsignedInt());
 			inputs.add(txIn);
 		}
 
-		long outputCount = in.readVariableSize();
+		int outputCount = in.readVariableCount();
 		for(int i=0; i<outputCount; i++){
 			TxOutput txOut = new TxOutput();
 			txOut.setValue(in.readUnsignedLong());
-			long scriptLength = in.readVariableSize();
-			byte script[] = new byte[(int)scriptLength];
+			byte script[] = new byte[in.readVariableCount()];
 			in.read(script);
 			txOut.setScript(script);
 			outputs.add(txOut);
@@ -89,6 +90,34 @@ public class Transaction extends Message {
 		locktime = in.readInt();
 	}
 
+	/**
+	 * Move the reader past a serialized transaction without building it.
+	 *
+	 * @param in reader positioned at the start of a transaction.
+	 * @throws IOException if the transaction is truncated.
+	 */
+	public static void skip(LittleEndianBufferReader in) throws IOException {
+		skip(in, 4);
+		int inputCount = in.readVariableCount();
+		for(int i=0; i<inputCount; i++){
+			skip(in, 32 + 4);
+			skip(in, in.readVariableCount());
+			skip(in, 4);
+		}
+		int outputCount = in.readVariableCount();
+		for(int i=0; i<outputCount; i++){
+			skip(in, 8);
+			skip(in, in.readVariableCount());
+		}
+		skip(in, 4);
+	}
+
+	private static void skip(LittleEndianBufferReader in, long n) throws IOException {
+		if(n < 0 || n > in.remaining())
+			throw new EOFException("Transaction is truncated.");
+		in.position(in.position() + (int)n);
+	}
+
 	/* (non-Javadoc)
 	 * @see net.bitdroid.network.Message#toWire(net.bitdroid.network.wire.LittleEndianOutputStream)
 	 */
@@ -115,6 +144,24 @@ public class Transaction extends Message {
 		leos.writeInt(locktime);
 	}
 
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#getSerializedSize()
+	 */
+	@Override
+	public int getSerializedSize() {
+		if(getRawPayloadSize() >= 0)
+			return getRawPayloadSize();
+		int size = 4 + LittleEndianOutputStream.getVariableSizeLength(inputs.size());
+		for(TxInput txIn : inputs)
+			size += 32 + 4 + LittleEndianOutputStream.getVariableSizeLength(txIn.getSignature().length) +
+				txIn.getSignature().length + 4;
+		size += LittleEndianOutputStream.getVariableSizeLength(outputs.size());
+		for(TxOutput o : outputs)
+			size += 8 + LittleEndianOutputStream.getVariableSizeLength(o.getScript().length) +
+				o.getScript().length;
+		return size + 4;
+	}
+
 	public class TxOutput {
 		private BigInteger value;
 		private byte[] script;
@@ -233,6 +280,7 @@ public class Transaction extends Message {
 	 */
 	public void setVersion(int version) {
 		this.version = version;
+		payloadChanged();
 	}
 
 	/**
@@ -247,6 +295,7 @@ public class Transaction extends Message {
 	 */
 	public void setLocktime(int locktime) {
 		this.locktime = locktime;
+		payloadChanged();
 	}
 
 	/**
@@ -261,6 +310,7 @@ public class Transaction extends Message {
 	 */
 	public void setInputs(List<TxInput> inputs) {
 		this.inputs = inputs;
+		payloadChanged();
 	}
 
 	/**
@@ -275,26 +325,72 @@ public class Transaction extends Message {
 	 */
 	public void setOutputs(List<TxOutput> outputs) {
 		this.outputs = outputs;
+		payloadChanged();
 	}
 	
 	/**
-	 * @return
-	 * @throws NoSuchAlgorithmException 
+	 * @return the hash of the transaction, in the usual reversed byte order.
 	 */
-	public byte[] getHash() throws NoSuchAlgorithmException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		LittleEndianOutputStream leos = new LittleEndianOutputStream(baos);
-		try {
-			this.toWire(leos);
-		} catch (IOException e) {
-			e.printStackTrace();
+	public byte[] getHash() {
+		return getHash256().getReversedBytes();
+	}
+
+	/**
+	 * @return whether the hash has been computed already.
+	 */
+	boolean isHashed() {
+		return hash != null;
+	}
+
+	/**
+	 * The hash is computed once, from the raw bytes if the transaction has
+	 * been read from the network, and kept until the transaction is changed.
+	 *
+	 * @return the hash of the transaction.
+	 */
+	public Hash256 getHash256() {
+		if(hash == null){
+			ByteBuffer raw = getRawPayload();
+			if(raw != null){
+				hash = Hash256.wrap(Sha256d.hash(raw));
+			}else{
+				byte b[] = new byte[getSerializedSize()];
+				try {
+					this.toWire(LittleEndianOutputStream.wrap(b));
+				} catch (IOException e) {
+					// Should never happen since the buffer has exactly the right size
+					e.printStackTrace();
+				}
+				hash = Hash256.wrap(Sha256d.hash(b));
+			}
 		}
-		MessageDigest hasher = MessageDigest.getInstance("SHA-256");
-		byte h[] = hasher.digest(baos.toByteArray());
-		hasher.reset();
-		h = hasher.digest(h);
-		StringUtils.reverse(h);
-		return h;
+		return hash;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#isRetainingRawPayload()
+	 */
+	@Override
+	public boolean isRetainingRawPayload() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#setRawPayload(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void setRawPayload(ByteBuffer rawPayload) {
+		super.setRawPayload(rawPayload);
+		hash = null;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#payloadChanged()
+	 */
+	@Override
+	protected void payloadChanged() {
+		super.payloadChanged();
+		hash = null;
 	}
 	
 	/* (non-Javadoc)
@@ -304,7 +400,7 @@ public class Transaction extends Message {
 	public String toString() {
 		StringBuilder sb = new StringBuilder("Transaction[hash=");
 		try {
-			sb.append(StringUtils.getHexString(this.getHash()));
+			sb.append(this.getHash256().toHexString());
 		} catch (Exception e) {
 		}
 		sb.append("]");
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.messages;
+
+import java.io.IOException;
+
+/**
+ * Walks the transactions of a block one at a time, see
+ * {@link BlockMessage#visitTransactions(TransactionVisitor)}.
+ *
+ * @author cdecker
+ *
+ */
+public interface TransactionVisitor {
+	/**
+	 * Called for every transaction of the block, in order. The block does not
+	 * keep the transaction, unless its list has been built anyway.
+	 *
+	 * @param block the block the transaction belongs to.
+	 * @param index position of the transaction within the block.
+	 * @param transaction the transaction.
+	 * @throws IOException to abort the walk.
+	 */
+	public void visit(BlockMessage block, int index, Transaction transaction) throws IOException;
+}
@@ -65,6 +65,14 @@ public class UnknownMessage extends Message {
 		throw new RuntimeException("Why would I ever try to send a message I don't know the meaning of?");
 	}
 
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#getSerializedSize()
+	 */
+	@Override
+	public int getSerializedSize() {
+		return content == null ? 0 : content.length;
+	}
+
 	public String toString(){
 		return "UnknownMessage[" + getCommand() + "]";
 	}
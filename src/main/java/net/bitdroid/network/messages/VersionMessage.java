@@ -100,14 +100,13 @@ public class VersionMessage extends Message {
 		// We ignore that it's unsigned because the highest bit is not 1
 		// for any value until the end of the world...
 		timestamp = in.readLong();
-		byte b[] = new byte[26];
-		in.read(b);
+		// Addresses in the version message are not prefixed with a timestamp,
+		// so they can be read straight from the stream.
 		PeerAddress a = new PeerAddress();
-		a.read(LittleEndianInputStream.wrap(b));
+		a.read(in);
 		setMyAddress(a);
-		in.read(b);
 		a = new PeerAddress();
-		a.read(LittleEndianInputStream.wrap(b));
+		a.read(in);
 		setYourAddress(a);
 		setNonce(in.readLong());
 		setClientVersion(in.readString());
@@ -125,6 +124,17 @@ public class VersionMessage extends Message {
 		leos.writeUnsignedInt(getHeight());
 	}
 
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.messages.Message#getSerializedSize()
+	 */
+	@Override
+	public int getSerializedSize() {
+		int clientVersionLength = getClientVersion().getBytes().length;
+		return 4 + localServices.length + 8 + 2 * PeerAddress.SERIALIZED_SIZE + 8 +
+			LittleEndianOutputStream.getVariableSizeLength(clientVersionLength) +
+			clientVersionLength + 4;
+	}
+
 	/**
 	 * @param myAddress the myAddress to set
 	 */
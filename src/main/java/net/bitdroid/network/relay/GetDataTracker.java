@@ -0,0 +1,322 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.bitdroid.network.BitcoinEventListener;
+import net.bitdroid.network.BitcoinNetwork;
+import net.bitdroid.network.Event;
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.PeerInfo;
+import net.bitdroid.network.messages.GetDataMessage;
+import net.bitdroid.network.messages.InventoryMessage.InventoryItem;
+import net.bitdroid.network.tasks.RepeatingDeferredTask;
+import net.bitdroid.utils.Hash256;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the items we asked peers for.
+ *
+ * Every item is requested from one peer at a time. The other peers that
+ * announce it while the request is in flight are remembered as fallbacks.
+ * If the item doesn't arrive before the deadline, or the peer disconnects,
+ * it is requested from the fallback with the fewest requests in flight. Items
+ * without any fallback left are forgotten, so the next announcement
+ * requests them again. No peer has more than
+ * {@link #MAX_IN_FLIGHT_PER_PEER} requests in flight, items beyond that wait
+ * for a slot with any of their announcers, and are forgotten if they don't
+ * get one within the timeout. A peer is remembered as announcer of at most
+ * {@link #MAX_ANNOUNCED_PER_PEER} items, so made up announcements can't grow
+ * the tracker without bound.
+ *
+ * Like the {@link net.bitdroid.network.PoolMaintainerListener} it has to be
+ * added to the network both as listener and as task, the task checks the
+ * deadlines.
+ *
+ * @author cdecker
+ *
+ */
+public class GetDataTracker extends RepeatingDeferredTask implements BitcoinEventListener {
+	/**
+	 * How often the deadlines are checked.
+	 */
+	public static final long CHECK_INTERVAL_MILLI = 1000;
+
+	public static final long DEFAULT_TIMEOUT_MILLI = 30 * 1000;
+
+	public static final int MAX_IN_FLIGHT_PER_PEER = 100;
+
+	/**
+	 * Most items a peer is requested from or remembered as fallback for,
+	 * further announcements of the peer are ignored.
+	 */
+	public static final int MAX_ANNOUNCED_PER_PEER = 5000;
+
+	/**
+	 * Most announcers remembered per item.
+	 */
+	public static final int MAX_FALLBACKS = 8;
+
+	/**
+	 * The events the tracker needs to be added for.
+	 */
+	public static final EventType[] SUBSCRIPTIONS = {EventType.DISCONNECTED_TYPE};
+
+	private Logger log = LoggerFactory.getLogger(GetDataTracker.class);
+	private final BitcoinNetwork network;
+	private final long timeout;
+	// In the order they were requested, so the first ones expire first
+	private final Map<Hash256, Request> requests = new LinkedHashMap<Hash256, Request>();
+	private final Map<PeerInfo, Integer> inFlight = new HashMap<PeerInfo, Integer>();
+	private final Map<PeerInfo, Integer> announced = new HashMap<PeerInfo, Integer>();
+
+	private static class Request {
+		final InventoryItem item;
+		// null while waiting for a slot
+		PeerInfo peer;
+		// When the peer has to deliver, or the slot has to be found by
+		long deadline;
+		final Set<PeerInfo> fallbacks = new LinkedHashSet<PeerInfo>();
+
+		Request(InventoryItem item){
+			this.item = item;
+		}
+	}
+
+	public GetDataTracker(BitcoinNetwork network){
+		this(network, DEFAULT_TIMEOUT_MILLI);
+	}
+
+	/**
+	 * @param network the network to send requests on.
+	 * @param timeout how long a peer gets to deliver an item.
+	 */
+	public GetDataTracker(BitcoinNetwork network, long timeout){
+		super(CHECK_INTERVAL_MILLI);
+		this.network = network;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Note that a peer announced an item we don't have.
+	 *
+	 * @param peer the peer announcing the item.
+	 * @param item the item.
+	 * @return <code>true</code> if the item should be requested from the peer
+	 * 		now, the caller is expected to send the request.
+	 */
+	public synchronized boolean announced(PeerInfo peer, InventoryItem item){
+		Request request = requests.get(item.getHash256());
+		if(request != null && request.peer == peer)
+			return false;
+		boolean fallback = request != null && request.fallbacks.contains(peer);
+		if(!fallback && getAnnounced(peer) >= MAX_ANNOUNCED_PER_PEER){
+			log.debug("{} announced too many items, ignoring {}", peer, item);
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		if(request == null){
+			request = new Request(item);
+			// Waits for a slot no longer than it would wait for the item
+			request.deadline = now + timeout;
+			requests.put(item.getHash256(), request);
+		}
+		if(request.peer != null || getInFlight(peer) >= MAX_IN_FLIGHT_PER_PEER){
+			if(!fallback && request.fallbacks.size() < MAX_FALLBACKS){
+				request.fallbacks.add(peer);
+				count(announced, peer, 1);
+			}
+			return false;
+		}
+		if(fallback)
+			request.fallbacks.remove(peer);
+		else
+			count(announced, peer, 1);
+		assign(request, peer, now);
+		return true;
+	}
+
+	/**
+	 * Note that an item arrived, from whichever peer.
+	 *
+	 * @param hash the hash of the item.
+	 */
+	public synchronized void received(Hash256 hash){
+		Request request = requests.remove(hash);
+		if(request != null)
+			forget(request);
+	}
+
+	/**
+	 * @param hash the hash of an item.
+	 * @return whether the item is being requested.
+	 */
+	public synchronized boolean isRequested(Hash256 hash){
+		return requests.containsKey(hash);
+	}
+
+	/**
+	 * @param peer a peer.
+	 * @return the number of requests the peer hasn't answered yet.
+	 */
+	public synchronized int getInFlight(PeerInfo peer){
+		Integer count = inFlight.get(peer);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * @param peer a peer.
+	 * @return the number of items the peer is requested from or remembered
+	 * 		as fallback for.
+	 */
+	public synchronized int getAnnounced(PeerInfo peer){
+		Integer count = announced.get(peer);
+		return count == null ? 0 : count;
+	}
+
+	private void assign(Request request, PeerInfo peer, long now){
+		request.peer = peer;
+		request.deadline = now + timeout;
+		count(inFlight, peer, 1);
+	}
+
+	/**
+	 * Let go of the peers of a request that is removed.
+	 */
+	private void forget(Request request){
+		if(request.peer != null){
+			count(inFlight, request.peer, -1);
+			count(announced, request.peer, -1);
+		}
+		for(PeerInfo fallback : request.fallbacks)
+			count(announced, fallback, -1);
+	}
+
+	private static void count(Map<PeerInfo, Integer> counts, PeerInfo peer, int delta){
+		Integer count = counts.get(peer);
+		int updated = (count == null ? 0 : count) + delta;
+		if(updated <= 0)
+			counts.remove(peer);
+		else
+			counts.put(peer, updated);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.tasks.DeferredTask#execute()
+	 */
+	@Override
+	public void execute() {
+		Map<PeerInfo, GetDataMessage> retries = new HashMap<PeerInfo, GetDataMessage>();
+		synchronized(this){
+			long now = System.currentTimeMillis();
+			List<Request> moved = new ArrayList<Request>();
+			Iterator<Request> it = requests.values().iterator();
+			while(it.hasNext()){
+				Request request = it.next();
+				if(request.peer != null){
+					if(request.deadline > now)
+						continue;
+					log.debug("{} did not deliver {} in time", request.peer, request.item);
+					count(inFlight, request.peer, -1);
+					count(announced, request.peer, -1);
+					request.peer = null;
+					request.deadline = now + timeout;
+				}
+				PeerInfo next = nextPeer(request);
+				if(next == null){
+					// Nobody left to ask, or nobody had a slot in time
+					if(request.fallbacks.isEmpty() || request.deadline <= now){
+						forget(request);
+						it.remove();
+					}
+					continue;
+				}
+				request.fallbacks.remove(next);
+				assign(request, next, now);
+				// Reinserted at the end, to keep the deadline order
+				it.remove();
+				moved.add(request);
+				GetDataMessage gdm = retries.get(next);
+				if(gdm == null){
+					gdm = new GetDataMessage();
+					retries.put(next, gdm);
+				}
+				gdm.getItems().add(request.item);
+			}
+			for(Request request : moved)
+				requests.put(request.item.getHash256(), request);
+		}
+		// Sent outside the lock, the network calls back into listeners
+		for(Map.Entry<PeerInfo, GetDataMessage> e : retries.entrySet()){
+			try {
+				network.sendMessage(e.getKey(), e.getValue());
+			} catch (IOException ex) {
+				log.error("Unable to request inventory from " + e.getKey(), ex);
+			}
+		}
+	}
+
+	/**
+	 * @return the fallback with the fewest requests in flight and room for
+	 * 		another, or <code>null</code>.
+	 */
+	private PeerInfo nextPeer(Request request){
+		PeerInfo best = null;
+		int bestCount = MAX_IN_FLIGHT_PER_PEER;
+		for(PeerInfo peer : request.fallbacks){
+			int count = getInFlight(peer);
+			if(count < bestCount){
+				best = peer;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.BitcoinEventListener#eventReceived(net.bitdroid.network.Event)
+	 */
+	public synchronized void eventReceived(Event e) {
+		if(e.getType() != EventType.DISCONNECTED_TYPE)
+			return;
+		// Its requests expire right away, and it's no fallback anymore
+		PeerInfo peer = e.getOrigin();
+		for(Request request : requests.values()){
+			if(request.fallbacks.remove(peer))
+				count(announced, peer, -1);
+			if(request.peer == peer)
+				request.deadline = 0;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.BitcoinEventListener#messageSent(net.bitdroid.network.Event)
+	 */
+	public void messageSent(Event e) {}
+}
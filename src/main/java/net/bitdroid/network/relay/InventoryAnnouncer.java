@@ -0,0 +1,215 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.bitdroid.network.BitcoinEventListener;
+import net.bitdroid.network.BitcoinNetwork;
+import net.bitdroid.network.BitcoinReactorNetwork.BitcoinReactorPeerInfo;
+import net.bitdroid.network.Event;
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.PeerInfo;
+import net.bitdroid.network.messages.InventoryMessage;
+import net.bitdroid.network.messages.InventoryMessage.InventoryItem;
+import net.bitdroid.network.messages.VerackMessage;
+import net.bitdroid.network.tasks.RepeatingDeferredTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Announces inventory to the connected peers.
+ *
+ * Blocks are announced right away. Transactions are queued per peer and
+ * trickled out: every peer flushes its queue at random times, as a Poisson
+ * process with a mean interval of {@link #TRICKLE_INTERVAL_MILLI}. So peers
+ * don't all get their announcements at the same moment, and a transaction
+ * is usually announced within a second. Items a reactor peer is known to
+ * have are left out when the queue is flushed.
+ *
+ * Like the {@link net.bitdroid.network.PoolMaintainerListener} it has to be
+ * added to the network both as listener and as task.
+ *
+ * @author cdecker
+ *
+ */
+public class InventoryAnnouncer extends RepeatingDeferredTask implements BitcoinEventListener {
+	/**
+	 * How often the queues are checked for a flush.
+	 */
+	public static final long TICK_MILLI = 100;
+
+	/**
+	 * Mean time between two flushes of the queue of a peer.
+	 */
+	public static final long TRICKLE_INTERVAL_MILLI = 500;
+
+	/**
+	 * Most items sent in one inventory.
+	 */
+	public static final int MAX_INVENTORY_ITEMS = 1000;
+
+	/**
+	 * Most items waiting for a peer, newer ones are dropped.
+	 */
+	public static final int MAX_QUEUED_ITEMS = 10 * MAX_INVENTORY_ITEMS;
+
+	/**
+	 * The events the announcer needs to be added for.
+	 */
+	public static final EventType[] SUBSCRIPTIONS = {EventType.VERACK_TYPE, EventType.DISCONNECTED_TYPE};
+
+	private Logger log = LoggerFactory.getLogger(InventoryAnnouncer.class);
+	private final BitcoinNetwork network;
+	private final Map<PeerInfo, PeerQueue> queues = new HashMap<PeerInfo, PeerQueue>();
+	private final Random random = new Random();
+
+	private static class PeerQueue {
+		List<InventoryItem> items = new ArrayList<InventoryItem>();
+		long nextFlush;
+	}
+
+	public InventoryAnnouncer(BitcoinNetwork network){
+		super(TICK_MILLI);
+		this.network = network;
+	}
+
+	/**
+	 * Announce an item to all peers but one.
+	 *
+	 * @param item the item to announce.
+	 * @param exclude the peer the item came from, or <code>null</code>.
+	 */
+	public void announce(InventoryItem item, PeerInfo exclude){
+		if(item.getType() == InventoryMessage.MSG_BLOCK){
+			InventoryMessage inv = new InventoryMessage();
+			inv.getItems().add(item);
+			// Filtered by known inventory in the reactor
+			network.broadcast(inv, exclude);
+			return;
+		}
+		synchronized(this){
+			for(Map.Entry<PeerInfo, PeerQueue> e : queues.entrySet()){
+				if(e.getKey() == exclude)
+					continue;
+				List<InventoryItem> items = e.getValue().items;
+				if(items.size() < MAX_QUEUED_ITEMS)
+					items.add(item);
+				else
+					log.debug("Announcement queue of {} is full, dropping {}", e.getKey(), item);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.tasks.DeferredTask#execute()
+	 */
+	@Override
+	public void execute() {
+		long now = System.currentTimeMillis();
+		List<PeerInfo> peers = new ArrayList<PeerInfo>();
+		List<InventoryMessage> messages = new ArrayList<InventoryMessage>();
+		synchronized(this){
+			for(Map.Entry<PeerInfo, PeerQueue> e : queues.entrySet()){
+				PeerQueue queue = e.getValue();
+				if(queue.nextFlush > now || queue.items.isEmpty())
+					continue;
+				queue.nextFlush = now + nextInterval();
+				InventoryMessage inv = take(e.getKey(), queue);
+				if(inv != null){
+					peers.add(e.getKey());
+					messages.add(inv);
+				}
+			}
+		}
+		// Sent outside the lock, the network calls back into listeners
+		for(int i=0; i<peers.size(); i++){
+			try {
+				network.sendMessage(peers.get(i), messages.get(i));
+			} catch (IOException e) {
+				log.error("Unable to announce inventory to " + peers.get(i), e);
+			}
+		}
+	}
+
+	/**
+	 * Take up to {@link #MAX_INVENTORY_ITEMS} items the peer doesn't know yet
+	 * off its queue.
+	 */
+	private InventoryMessage take(PeerInfo peer, PeerQueue queue){
+		RollingBloomFilter known = null;
+		if(peer instanceof BitcoinReactorPeerInfo)
+			known = ((BitcoinReactorPeerInfo)peer).getKnownInventory();
+		InventoryMessage inv = new InventoryMessage();
+		List<InventoryItem> items = inv.getItems();
+		int taken = 0;
+		while(taken < queue.items.size() && items.size() < MAX_INVENTORY_ITEMS){
+			InventoryItem item = queue.items.get(taken++);
+			if(known == null || !known.mightContain(item.getHash256()))
+				items.add(item);
+		}
+		queue.items.subList(0, taken).clear();
+		return items.isEmpty() ? null : inv;
+	}
+
+	/**
+	 * @return exponentially distributed time until the next flush.
+	 */
+	private long nextInterval(){
+		return (long)(-Math.log(1 - random.nextDouble()) * TRICKLE_INTERVAL_MILLI);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.BitcoinEventListener#eventReceived(net.bitdroid.network.Event)
+	 */
+	public synchronized void eventReceived(Event e) {
+		PeerInfo peer = e.getOrigin();
+		if(peer == null)
+			return;
+		if(e instanceof VerackMessage){
+			// Only announce to peers that are done with the handshake
+			if(!queues.containsKey(peer)){
+				PeerQueue queue = new PeerQueue();
+				queue.nextFlush = System.currentTimeMillis() + nextInterval();
+				queues.put(peer, queue);
+			}
+		}else if(e.getType() == EventType.DISCONNECTED_TYPE){
+			queues.remove(peer);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see net.bitdroid.network.BitcoinEventListener#messageSent(net.bitdroid.network.Event)
+	 */
+	public void messageSent(Event e) {}
+
+	/**
+	 * @param peer a connected peer.
+	 * @return the number of items waiting to be announced to the peer.
+	 */
+	public synchronized int getQueuedItems(PeerInfo peer){
+		PeerQueue queue = queues.get(peer);
+		return queue == null ? 0 : queue.items.size();
+	}
+}
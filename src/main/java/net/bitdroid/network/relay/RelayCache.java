@@ -0,0 +1,218 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.bitdroid.network.EncodedFrame;
+import net.bitdroid.network.FrameEncoder;
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.network.wire.PooledBuffer;
+import net.bitdroid.network.wire.Slab;
+import net.bitdroid.utils.Hash256;
+
+/**
+ * Keeps the items we relay around to answer getdata requests, bounded by the
+ * number of bytes rather than the number of items.
+ *
+ * Items are stored as complete frames, encoded once when they are put in,
+ * in a {@link Slab} of direct memory the size of the budget. So the cache
+ * doesn't hold on to decoded messages, and requests are answered by queueing
+ * the stored frame as it is. Every frame takes up its own size, rounded up
+ * to {@link Slab#ALIGNMENT} bytes. When the slab has no room for a frame the
+ * least recently used ones are evicted until it does. Frames are reference
+ * counted, an evicted frame that is still being sent to a peer stays valid,
+ * and keeps its memory, until it has been written.
+ *
+ * @author cdecker
+ *
+ */
+public class RelayCache {
+	private final long budget;
+	private final Slab slab;
+	private final FrameEncoder encoder = new FrameEncoder();
+	// In access order, the least recently used first
+	private final LinkedHashMap<Hash256, Entry> frames = new LinkedHashMap<Hash256, Entry>(16, 0.75f, true);
+	private long size = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	private static class Entry {
+		final EncodedFrame frame;
+		final int size;
+
+		Entry(EncodedFrame frame, int size){
+			this.frame = frame;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @param budget bytes of direct memory the stored frames may take up, at
+	 * 		most 2GB.
+	 */
+	public RelayCache(long budget){
+		if(budget <= 0 || budget > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid budget: " + budget);
+		this.budget = budget;
+		this.slab = new Slab((int)budget);
+	}
+
+	/**
+	 * Encode and store a message, unless it is stored already.
+	 *
+	 * @param hash the hash the message is requested by.
+	 * @param message the message.
+	 * @return <code>true</code> if the message has been stored,
+	 * 		<code>false</code> if it was there already, is larger than the
+	 * 		whole budget or there is no room for it besides the memory of
+	 * 		evicted frames that are still being sent.
+	 * @throws IOException if the message cannot be serialized.
+	 */
+	public boolean put(Hash256 hash, Message message) throws IOException {
+		if(contains(hash))
+			return false;
+		int frameSize = FrameEncoder.getFrameSize(message, true);
+		if(Slab.align(frameSize) > slab.getCapacity())
+			return false;
+		PooledBuffer buffer;
+		synchronized(this){
+			buffer = slab.allocate(frameSize);
+			while(buffer == null && evictLeastRecent())
+				buffer = slab.allocate(frameSize);
+		}
+		// Evicted frames still being sent hold on to their memory
+		if(buffer == null)
+			return false;
+		try{
+			// Encoded outside of the cache lock, blocks take a while
+			synchronized(encoder){
+				encoder.encode(message, true, buffer.getBuffer());
+			}
+		}catch(IOException ioe){
+			buffer.release();
+			throw ioe;
+		}
+		buffer.getBuffer().flip();
+		EncodedFrame frame = new EncodedFrame(buffer);
+		synchronized(this){
+			if(frames.containsKey(hash)){
+				frame.release();
+				return false;
+			}
+			frames.put(hash, new Entry(frame, frameSize));
+			size += frameSize;
+		}
+		return true;
+	}
+
+	/**
+	 * Evict the least recently used frame.
+	 *
+	 * @return <code>false</code> if there was none.
+	 */
+	private boolean evictLeastRecent(){
+		Iterator<Entry> it = frames.values().iterator();
+		if(!it.hasNext())
+			return false;
+		Entry entry = it.next();
+		it.remove();
+		size -= entry.size;
+		entry.frame.release();
+		evictions++;
+		return true;
+	}
+
+	/**
+	 * Get the frame of an item, counting as a use of it.
+	 *
+	 * @param hash the hash of the item.
+	 * @return the frame with a reference for the caller, who has to release
+	 * 		it or pass it on, or <code>null</code> if it's not stored.
+	 */
+	public synchronized EncodedFrame get(Hash256 hash){
+		Entry entry = frames.get(hash);
+		if(entry == null){
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.frame.retain();
+	}
+
+	/**
+	 * @param hash the hash of an item.
+	 * @return whether the item is stored, without counting as a use.
+	 */
+	public synchronized boolean contains(Hash256 hash){
+		return frames.containsKey(hash);
+	}
+
+	/**
+	 * Drop all stored frames.
+	 */
+	public synchronized void clear(){
+		for(Entry entry : frames.values())
+			entry.frame.release();
+		frames.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return the number of stored items.
+	 */
+	public synchronized int getCount(){
+		return frames.size();
+	}
+
+	/**
+	 * @return the bytes of the stored frames.
+	 */
+	public synchronized long getSize(){
+		return size;
+	}
+
+	public long getBudget(){
+		return budget;
+	}
+
+	/**
+	 * @return the number of requests that found their item.
+	 */
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	/**
+	 * @return the number of requests for items that weren't stored.
+	 */
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * @return the number of items evicted to stay within the budget.
+	 */
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.bitdroid.utils.Hash256;
+
+/**
+ * A Bloom filter over the most recently added hashes.
+ *
+ * The filter is made up of two halves, hashes are added to the current one
+ * and looked up in both. Once the current half holds the capacity the older
+ * half is cleared and becomes the current one. So the last
+ * <code>capacity</code> hashes are always found, older ones fade out, and
+ * the memory stays the same no matter how many hashes are added.
+ *
+ * The hashes are digests already, so the bit positions are derived from
+ * their words directly, mixed with a random tweak per filter so that peers
+ * can't line up collisions across all of our filters.
+ *
+ * @author cdecker
+ *
+ */
+public class RollingBloomFilter {
+	private static final Random TWEAKS = new Random();
+
+	private long[] current;
+	private long[] previous;
+	private final int bits;
+	private final int hashFunctions;
+	private final int generationSize;
+	private final long tweak;
+	private int count = 0;
+
+	/**
+	 * @param capacity how many of the most recent hashes are guaranteed to
+	 * 		be found.
+	 * @param falsePositiveRate the rate of false positives at capacity.
+	 */
+	public RollingBloomFilter(int capacity, double falsePositiveRate){
+		if(capacity < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("Invalid capacity or false positive rate.");
+		// Each half is looked up together with the other, so it gets half
+		// the false positive rate.
+		generationSize = capacity;
+		double rate = falsePositiveRate / 2;
+		double ln2 = Math.log(2);
+		long m = (long)Math.ceil(-generationSize * Math.log(rate) / (ln2 * ln2));
+		bits = (int)Math.min(Integer.MAX_VALUE - 63, Math.max(64, (m + 63) & ~63L));
+		hashFunctions = Math.max(1, (int)Math.round((double)bits / generationSize * ln2));
+		current = new long[bits / 64];
+		previous = new long[bits / 64];
+		synchronized(TWEAKS){
+			tweak = TWEAKS.nextLong();
+		}
+	}
+
+	/**
+	 * @param hash the hash to add.
+	 */
+	public synchronized void add(Hash256 hash){
+		if(count >= generationSize){
+			long[] recycled = previous;
+			Arrays.fill(recycled, 0);
+			previous = current;
+			current = recycled;
+			count = 0;
+		}
+		long h1 = mix(hash.getWord(0) ^ tweak);
+		long h2 = mix(hash.getWord(1) + tweak) | 1;
+		for(int i=0; i<hashFunctions; i++){
+			int bit = index(h1 + i * h2);
+			current[bit >>> 6] |= 1L << bit;
+		}
+		count++;
+	}
+
+	/**
+	 * @param hash the hash to look for.
+	 * @return <code>false</code> if the hash is not among the recently added
+	 * 		ones, <code>true</code> if it most likely is.
+	 */
+	public synchronized boolean mightContain(Hash256 hash){
+		long h1 = mix(hash.getWord(0) ^ tweak);
+		long h2 = mix(hash.getWord(1) + tweak) | 1;
+		return contains(current, h1, h2) || contains(previous, h1, h2);
+	}
+
+	private boolean contains(long[] set, long h1, long h2){
+		for(int i=0; i<hashFunctions; i++){
+			int bit = index(h1 + i * h2);
+			if((set[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private int index(long h){
+		return (int)((h >>> 1) % bits);
+	}
+
+	private static long mix(long v){
+		v *= 0x9E3779B97F4A7C15L;
+		return v ^ (v >>> 32);
+	}
+
+	/**
+	 * Forget all hashes.
+	 */
+	public synchronized void clear(){
+		Arrays.fill(current, 0);
+		Arrays.fill(previous, 0);
+		count = 0;
+	}
+
+	/**
+	 * @return the number of bytes used by the bits of the filter.
+	 */
+	public int getSize(){
+		return 2 * bits / 8;
+	}
+}
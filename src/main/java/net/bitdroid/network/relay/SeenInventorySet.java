@@ -0,0 +1,256 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.bitdroid.utils.Hash256;
+
+/**
+ * Remembers which inventory hashes have been seen recently, in a fixed
+ * amount of memory outside of the heap.
+ *
+ * The hashes are kept in buckets of {@link #SLOTS_PER_BUCKET} slots in direct
+ * buffers, every slot holding the 32 bytes of a hash and the generation it
+ * was last seen in. Time is split up into generations; once a hash is more
+ * than the configured number of generations old it counts as unseen and its
+ * slot is free to be reused. When all slots of a bucket are taken the one
+ * seen longest ago is evicted. So the set never grows, and does not create
+ * any garbage, no matter how many hashes go through it.
+ *
+ * Lookups don't lock: every bucket has a version which is odd while the
+ * bucket is being written, readers retry if it changed under them. Writers
+ * lock one of a few stripes. The version is checked again with a
+ * compare-and-set rather than a plain read, since only that keeps the reads
+ * of the slots from moving past the check, so a lookup that passes it never
+ * saw a half written slot.
+ *
+ * @author cdecker
+ *
+ */
+public class SeenInventorySet {
+	public static final int SLOTS_PER_BUCKET = 8;
+
+	// 32 bytes of hash per slot, followed by a generation per slot
+	private static final int KEYS_SIZE = SLOTS_PER_BUCKET * Hash256.SIZE;
+	private static final int BUCKET_SIZE = KEYS_SIZE + SLOTS_PER_BUCKET * 4;
+	// Buckets per direct buffer, keeping each buffer below 2GB
+	private static final int SEGMENT_SHIFT = 20;
+	private static final int LOCK_STRIPES = 64;
+	private static final int MAX_OPTIMISTIC_READS = 4;
+
+	private final ByteBuffer[] segments;
+	private final int bucketMask;
+	private final AtomicIntegerArray versions;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	private final int generations;
+	private final long generationMillis;
+	// Generation 0 marks empty slots
+	private volatile int generation = 1;
+	private volatile long nextGeneration;
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param memoryBudget bytes of direct memory to use at most.
+	 * @param retentionMillis how long a hash is remembered, at most. Since
+	 * 		it expires with the generation it was seen in, a hash may be
+	 * 		forgotten up to one generation earlier, or sooner still if it is
+	 * 		evicted.
+	 * @param generations how many generations the retention is split up
+	 * 		in, more generations expire hashes closer to their retention.
+	 */
+	public SeenInventorySet(long memoryBudget, long retentionMillis, int generations){
+		if(generations < 1)
+			throw new IllegalArgumentException("Need at least one generation.");
+		long buckets = Long.highestOneBit(Math.max(1, memoryBudget / BUCKET_SIZE));
+		if(buckets > Integer.MAX_VALUE / 2 + 1)
+			throw new IllegalArgumentException("Memory budget too large: " + memoryBudget);
+		int bucketCount = (int)buckets;
+		bucketMask = bucketCount - 1;
+		versions = new AtomicIntegerArray(bucketCount);
+		int perSegment = Math.min(bucketCount, 1 << SEGMENT_SHIFT);
+		segments = new ByteBuffer[bucketCount / perSegment];
+		for(int i=0; i<segments.length; i++)
+			segments[i] = ByteBuffer.allocateDirect(perSegment * BUCKET_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for(int i=0; i<LOCK_STRIPES; i++)
+			locks[i] = new Object();
+		this.generations = generations;
+		this.generationMillis = Math.max(1, retentionMillis / generations);
+		this.nextGeneration = System.currentTimeMillis() + generationMillis;
+	}
+
+	/**
+	 * @param hash the hash to look for.
+	 * @return whether the hash has been seen within the retention.
+	 */
+	public boolean contains(Hash256 hash){
+		int bucket = bucket(hash);
+		int oldest = generation - generations;
+		for(int attempt=0; attempt<MAX_OPTIMISTIC_READS; attempt++){
+			int version = versions.get(bucket);
+			if((version & 1) != 0)
+				continue;
+			boolean found = find(bucket, hash, oldest) >= 0;
+			// Writes nothing new, but orders the reads above before it
+			if(versions.compareAndSet(bucket, version, version))
+				return found;
+		}
+		// Keeps being written, wait for the writer
+		synchronized(lock(bucket)){
+			return find(bucket, hash, oldest) >= 0;
+		}
+	}
+
+	/**
+	 * Mark a hash as seen now.
+	 *
+	 * @param hash the hash.
+	 * @return <code>true</code> if the hash had not been seen within the
+	 * 		retention.
+	 */
+	public boolean add(Hash256 hash){
+		advance(System.currentTimeMillis());
+		int bucket = bucket(hash);
+		ByteBuffer segment = segment(bucket);
+		int base = base(bucket);
+		synchronized(lock(bucket)){
+			int current = generation;
+			int oldest = current - generations;
+			int slot = find(bucket, hash, oldest);
+			if(slot >= 0){
+				// Already there, just refresh it
+				segment.putInt(base + KEYS_SIZE + 4 * slot, current);
+				return false;
+			}
+			// Take a free or expired slot, or evict the least recent one
+			int victim = 0;
+			int victimGeneration = Integer.MAX_VALUE;
+			for(int i=0; i<SLOTS_PER_BUCKET; i++){
+				int g = segment.getInt(base + KEYS_SIZE + 4 * i);
+				if(isFree(g, oldest)){
+					victim = i;
+					victimGeneration = g;
+					break;
+				}
+				if(g < victimGeneration){
+					victim = i;
+					victimGeneration = g;
+				}
+			}
+			if(!isFree(victimGeneration, oldest))
+				evictions.incrementAndGet();
+
+			versions.incrementAndGet(bucket);
+			int offset = base + victim * Hash256.SIZE;
+			for(int w=0; w<4; w++)
+				segment.putLong(offset + 8 * w, hash.getWord(w));
+			segment.putInt(base + KEYS_SIZE + 4 * victim, current);
+			versions.incrementAndGet(bucket);
+			return true;
+		}
+	}
+
+	/**
+	 * @return the slot holding the hash, or -1.
+	 */
+	private int find(int bucket, Hash256 hash, int oldest){
+		ByteBuffer segment = segment(bucket);
+		int base = base(bucket);
+		long w0 = hash.getWord(0);
+		for(int i=0; i<SLOTS_PER_BUCKET; i++){
+			int offset = base + i * Hash256.SIZE;
+			if(segment.getLong(offset) != w0)
+				continue;
+			if(isFree(segment.getInt(base + KEYS_SIZE + 4 * i), oldest))
+				continue;
+			if(segment.getLong(offset + 8) == hash.getWord(1) &&
+					segment.getLong(offset + 16) == hash.getWord(2) &&
+					segment.getLong(offset + 24) == hash.getWord(3))
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean isFree(int slotGeneration, int oldest){
+		return slotGeneration == 0 || slotGeneration <= oldest;
+	}
+
+	/**
+	 * Start a new generation if the current one is over, letting the oldest
+	 * one expire.
+	 *
+	 * @param now the current time in milliseconds.
+	 */
+	public void advance(long now){
+		if(now < nextGeneration)
+			return;
+		synchronized(this){
+			if(now < nextGeneration)
+				return;
+			long skipped = (now - nextGeneration) / generationMillis + 1;
+			generation += (int)Math.min(skipped, generations);
+			nextGeneration += skipped * generationMillis;
+		}
+	}
+
+	/**
+	 * Start a new generation right away, regardless of the time.
+	 */
+	public synchronized void advance(){
+		generation++;
+		nextGeneration = System.currentTimeMillis() + generationMillis;
+	}
+
+	private int bucket(Hash256 hash){
+		// The word compared first is not used for the bucket
+		long h = hash.getWord(1) * 0x9E3779B97F4A7C15L;
+		return (int)(h >>> 32) & bucketMask;
+	}
+
+	private ByteBuffer segment(int bucket){
+		return segments[bucket >>> SEGMENT_SHIFT];
+	}
+
+	private int base(int bucket){
+		return (bucket & ((1 << SEGMENT_SHIFT) - 1)) * BUCKET_SIZE;
+	}
+
+	private Object lock(int bucket){
+		return locks[bucket & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * @return the number of hashes that fit in the set.
+	 */
+	public long getCapacity(){
+		return (long)(bucketMask + 1) * SLOTS_PER_BUCKET;
+	}
+
+	/**
+	 * @return the number of hashes evicted before they expired, if this keeps
+	 * 		growing the memory budget is too small for the retention.
+	 */
+	public long getEvictions(){
+		return evictions.get();
+	}
+}
@@ -41,7 +41,9 @@ public abstract class DeferredTask implements Delayed {
 	 * @see java.lang.Comparable#compareTo(java.lang.Object)
 	 */
 	public int compareTo(Delayed arg0) {
-		return (int)(this.getDelay(TimeUnit.SECONDS) - arg0.getDelay(TimeUnit.SECONDS));
+		// Milliseconds, tasks may be scheduled less than a second apart
+		long d = this.getDelay(TimeUnit.MILLISECONDS) - arg0.getDelay(TimeUnit.MILLISECONDS);
+		return d < 0 ? -1 : (d > 0 ? 1 : 0);
 	}
 
 	/* (non-Javadoc)
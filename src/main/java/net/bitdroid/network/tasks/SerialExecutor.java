@@ -0,0 +1,114 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.tasks;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks one after the other, in the order they were submitted, on the
+ * threads of another executor. Many serial executors can share a pool, tasks
+ * of different serial executors run in parallel.
+ *
+ * After {@link #MAX_BATCH} tasks the executor hands its thread back to the
+ * pool and queues itself again, so a busy one doesn't starve the others. If
+ * the pool doesn't take it anymore the remaining tasks run on the thread it
+ * has.
+ *
+ * @author cdecker
+ *
+ */
+public class SerialExecutor implements Executor {
+	public static final int MAX_BATCH = 16;
+
+	private static Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+	private boolean scheduled = false;
+
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			while(true){
+				for(int i=0; i<MAX_BATCH; i++){
+					Runnable task;
+					synchronized(SerialExecutor.this){
+						task = tasks.poll();
+						if(task == null){
+							scheduled = false;
+							return;
+						}
+					}
+					try{
+						task.run();
+					}catch(RuntimeException e){
+						log.error("Error while running serial task", e);
+					}
+				}
+				try{
+					executor.execute(this);
+					return;
+				}catch(RejectedExecutionException e){
+					// Shutting down, finish what was queued on this thread
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param executor the executor providing the threads.
+	 */
+	public SerialExecutor(Executor executor){
+		this.executor = executor;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute(Runnable task) {
+		synchronized(this){
+			tasks.add(task);
+			if(scheduled)
+				return;
+			scheduled = true;
+		}
+		schedule();
+	}
+
+	private void schedule(){
+		try{
+			executor.execute(drain);
+		}catch(RuntimeException e){
+			synchronized(this){
+				scheduled = false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of tasks waiting to be run.
+	 */
+	public synchronized int getQueued(){
+		return tasks.size();
+	}
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A pool of buffers for payloads, organized in three size classes: small
+ * (inv, ping, getdata, ...), medium (transactions) and large (blocks).
+ *
+ * Requests are served from the smallest class that fits, anything larger
+ * than the large class is allocated on demand and never pooled. The sizes
+ * of the classes follow the observed frame sizes: every
+ * {@link #ADAPT_INTERVAL} recorded frames, each class is resized to the
+ * power of two covering its percentile of the size histogram. Pooled buffers
+ * of a class that was resized are dropped. Only the sizes of buffers
+ * actually taken from the pool should be recorded, and hot paths record
+ * through a {@link SizeRecorder} of their own, which merges its counts into
+ * the pool in batches. The large class can be kept from shrinking below the
+ * size some user needs, see {@link #requireLargeSize(int)}.
+ *
+ * The pool is thread-safe, buffers may be released from any thread.
+ *
+ * @author cdecker
+ *
+ */
+public class BufferPool {
+	public static final int SMALL = 0, MEDIUM = 1, LARGE = 2;
+
+	/**
+	 * Number of recorded frames after which the class sizes are adapted.
+	 */
+	public static final int ADAPT_INTERVAL = 4096;
+
+	/**
+	 * Number of sizes a {@link SizeRecorder} collects before merging them.
+	 */
+	public static final int FLUSH_INTERVAL = 64;
+
+	private static final int MIN_CLASS_SIZE = 256;
+	private static final int MAX_CLASS_SIZE = 4 * 1024 * 1024;
+	// Percentile of the frame sizes each class should cover
+	private static final double[] PERCENTILES = new double[]{0.5, 0.9, 0.99};
+
+	private final boolean direct;
+	private final int[] classSizes = new int[]{4 * 1024, 64 * 1024, 1024 * 1024};
+	private final int[] maxPooled;
+	private final List<LinkedList<ByteBuffer>> free;
+	// The large class doesn't shrink below this
+	private int minLargeSize = 0;
+
+	// Histogram of the frame sizes by power of two
+	private final long[] histogram = new long[32];
+	private int recorded = 0;
+
+	private long allocations = 0;
+	private long reuses = 0;
+
+	public BufferPool(boolean direct){
+		this(direct, 256, 64, 8);
+	}
+
+	/**
+	 * @param direct whether the buffers are allocated outside of the heap.
+	 * @param maxSmall maximum number of idle small buffers to keep.
+	 * @param maxMedium maximum number of idle medium buffers to keep.
+	 * @param maxLarge maximum number of idle large buffers to keep.
+	 */
+	public BufferPool(boolean direct, int maxSmall, int maxMedium, int maxLarge){
+		this.direct = direct;
+		this.maxPooled = new int[]{maxSmall, maxMedium, maxLarge};
+		this.free = new ArrayList<LinkedList<ByteBuffer>>(classSizes.length);
+		for(int i=0; i<classSizes.length; i++)
+			free.add(new LinkedList<ByteBuffer>());
+	}
+
+	/**
+	 * Get a buffer of at least <code>size</code> bytes. The buffer is
+	 * cleared, in little endian order and its limit is set to
+	 * <code>size</code>.
+	 *
+	 * @param size number of bytes needed.
+	 * @return the buffer, holding a single reference.
+	 */
+	public PooledBuffer acquire(int size){
+		ByteBuffer buffer = null;
+		int sizeClass = -1;
+		synchronized(this){
+			for(int i=0; i<classSizes.length; i++){
+				if(size <= classSizes[i]){
+					sizeClass = i;
+					break;
+				}
+			}
+			if(sizeClass >= 0 && !free.get(sizeClass).isEmpty()){
+				buffer = free.get(sizeClass).removeFirst();
+				reuses++;
+			}else{
+				allocations++;
+			}
+		}
+		if(buffer == null){
+			int capacity = sizeClass >= 0 ? classSizes[sizeClass] : size;
+			buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+		buffer.clear();
+		buffer.limit(size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return new PooledBuffer(buffer, this, sizeClass);
+	}
+
+	/**
+	 * Return the buffer of a released {@link PooledBuffer}.
+	 */
+	synchronized void recycle(PooledBuffer pooled){
+		int sizeClass = pooled.getSizeClass();
+		ByteBuffer buffer = pooled.getBuffer();
+		// Buffers of a class that has been resized in the meantime are dropped
+		if(sizeClass < 0 || buffer.capacity() != classSizes[sizeClass])
+			return;
+		if(free.get(sizeClass).size() < maxPooled[sizeClass])
+			free.get(sizeClass).addFirst(buffer);
+	}
+
+	/**
+	 * Record the size of an incoming frame, used to adapt the size classes.
+	 *
+	 * @param size payload size of the frame.
+	 */
+	public synchronized void record(int size){
+		histogram[bucket(size)]++;
+		if(++recorded >= ADAPT_INTERVAL){
+			adapt();
+			recorded = 0;
+		}
+	}
+
+	/**
+	 * Merge the counts of a recorder.
+	 */
+	private synchronized void merge(long[] counts, int count){
+		for(int i=0; i<counts.length; i++)
+			histogram[i] += counts[i];
+		recorded += count;
+		if(recorded >= ADAPT_INTERVAL){
+			adapt();
+			recorded = 0;
+		}
+	}
+
+	/**
+	 * @return a new recorder for sizes of this pool, to be used by a
+	 * 		single thread.
+	 */
+	public SizeRecorder newRecorder(){
+		return new SizeRecorder();
+	}
+
+	/**
+	 * Collects sizes for the pool without locking it, every
+	 * {@link BufferPool#FLUSH_INTERVAL} sizes are merged at once. Not
+	 * thread-safe, every thread recording has a recorder of its own.
+	 */
+	public class SizeRecorder {
+		private final long[] counts = new long[histogram.length];
+		private int count = 0;
+
+		private SizeRecorder(){}
+
+		/**
+		 * @param size size of a buffer taken from the pool.
+		 */
+		public void record(int size){
+			counts[bucket(size)]++;
+			if(++count >= FLUSH_INTERVAL)
+				flush();
+		}
+
+		/**
+		 * Merge the sizes collected so far into the pool.
+		 */
+		public void flush(){
+			if(count == 0)
+				return;
+			merge(counts, count);
+			Arrays.fill(counts, 0);
+			count = 0;
+		}
+	}
+
+	/**
+	 * Keep the large class at least this big, so buffers of the size are
+	 * always pooled no matter what the other recorded sizes are. Several
+	 * users of a pool may require a size, the largest one is kept.
+	 *
+	 * @param size the size the large class must not drop below.
+	 */
+	public synchronized void requireLargeSize(int size){
+		if(size <= minLargeSize)
+			return;
+		minLargeSize = size;
+		if(classSizes[LARGE] < size){
+			classSizes[LARGE] = size;
+			free.get(LARGE).clear();
+		}
+	}
+
+	/**
+	 * @return index of the smallest power of two that is at least size.
+	 */
+	private static int bucket(int size){
+		if(size <= 1)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	private void adapt(){
+		long total = 0;
+		for(long c : histogram)
+			total += c;
+		int previous = 0;
+		for(int i=0; i<classSizes.length; i++){
+			long threshold = (long)Math.ceil(total * PERCENTILES[i]);
+			long seen = 0;
+			int b = 0;
+			while(b < histogram.length - 1 && seen + histogram[b] < threshold){
+				seen += histogram[b];
+				b++;
+			}
+			int size = Math.max(MIN_CLASS_SIZE, Math.min(MAX_CLASS_SIZE, 1 << Math.min(b, 30)));
+			if(i == LARGE)
+				size = Math.max(size, minLargeSize);
+			// Classes have to be strictly increasing
+			if(size <= previous)
+				size = previous << 1;
+			if(size != classSizes[i]){
+				classSizes[i] = size;
+				free.get(i).clear();
+			}
+			previous = size;
+		}
+		// Let old observations fade out
+		for(int i=0; i<histogram.length; i++)
+			histogram[i] >>= 1;
+	}
+
+	/**
+	 * @param sizeClass one of {@link #SMALL}, {@link #MEDIUM} or {@link #LARGE}.
+	 * @return the current buffer size of the class.
+	 */
+	public synchronized int getClassSize(int sizeClass){
+		return classSizes[sizeClass];
+	}
+
+	/**
+	 * @return number of buffers that had to be allocated.
+	 */
+	public synchronized long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * @return number of requests served from the pool.
+	 */
+	public synchronized long getReuses() {
+		return reuses;
+	}
+
+	public boolean isDirect(){
+		return direct;
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A bounded ring of bytes, used to collect outgoing frames for a peer until
+ * the socket is able to take them.
+ *
+ * Bytes are either copied in with {@link #put(ByteBuffer)} or written in
+ * place through {@link #reserve(int)} and {@link #commit(int)}. The content
+ * is flushed with a single gathering write covering both the tail and the
+ * wrapped head of the ring.
+ *
+ * The ring is not thread-safe, it is meant to be used by the selecting thread
+ * only.
+ *
+ * @author cdecker
+ *
+ */
+public class ByteRingBuffer {
+	private final ByteBuffer buffer;
+	private final int capacity;
+	// Index of the first byte to be written out
+	private int head = 0;
+	// Number of bytes in the ring
+	private int size = 0;
+
+	// Views reused for copying and writing, to avoid allocating on each call
+	private final ByteBuffer putView;
+	private final ByteBuffer reserveView;
+	private final ByteBuffer[] writeViews = new ByteBuffer[2];
+
+	/**
+	 * @param capacity maximum number of bytes the ring can hold.
+	 * @param direct whether to allocate the ring outside of the heap.
+	 */
+	public ByteRingBuffer(int capacity, boolean direct) {
+		this.capacity = capacity;
+		this.buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		this.putView = buffer.duplicate();
+		this.reserveView = buffer.duplicate();
+		this.writeViews[0] = buffer.duplicate();
+		this.writeViews[1] = buffer.duplicate();
+	}
+
+	public int capacity(){
+		return capacity;
+	}
+
+	/**
+	 * @return number of bytes waiting to be written.
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return number of bytes that can still be added.
+	 */
+	public int free(){
+		return capacity - size;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	private int tail(){
+		return (head + size) % capacity;
+	}
+
+	/**
+	 * Copy as many of the remaining bytes of <code>src</code> into the ring
+	 * as fit. The position of <code>src</code> is advanced accordingly.
+	 *
+	 * @param src bytes to be added.
+	 * @return number of bytes copied.
+	 */
+	public int put(ByteBuffer src){
+		if(size == 0)
+			head = 0;
+		int n = Math.min(src.remaining(), free());
+		int copied = 0;
+		while(copied < n){
+			int tail = tail();
+			int chunk = Math.min(n - copied, capacity - tail);
+			int limit = src.limit();
+			src.limit(src.position() + chunk);
+			putView.clear();
+			putView.position(tail);
+			putView.put(src);
+			src.limit(limit);
+			size += chunk;
+			copied += chunk;
+		}
+		return copied;
+	}
+
+	/**
+	 * Reserve a contiguous region of <code>length</code> bytes at the end of
+	 * the ring so it can be written in place. The bytes only become part of
+	 * the ring once they are committed with {@link #commit(int)}.
+	 *
+	 * @param length number of bytes to be written.
+	 * @return a view whose position is at the start of the region and whose
+	 * 		limit is at its end, or <code>null</code> if there is no contiguous
+	 * 		region of that size. The view is reused by the next call.
+	 */
+	public ByteBuffer reserve(int length){
+		if(size == 0)
+			head = 0;
+		int tail = tail();
+		int contiguous;
+		if(size == capacity)
+			contiguous = 0;
+		else if(tail >= head)
+			contiguous = capacity - tail;
+		else
+			contiguous = head - tail;
+		if(contiguous < length)
+			return null;
+		reserveView.clear();
+		reserveView.position(tail);
+		reserveView.limit(tail + length);
+		return reserveView;
+	}
+
+	/**
+	 * Add the bytes written to the region returned by {@link #reserve(int)}.
+	 *
+	 * @param length number of bytes written, at most the reserved length.
+	 */
+	public void commit(int length){
+		size += length;
+	}
+
+	/**
+	 * Write as many bytes as the channel accepts with a single gathering write.
+	 *
+	 * @param channel destination.
+	 * @return number of bytes written.
+	 * @throws IOException if the channel fails.
+	 */
+	public long writeTo(GatheringByteChannel channel) throws IOException {
+		if(size == 0)
+			return 0;
+		int first = Math.min(size, capacity - head);
+		writeViews[0].clear();
+		writeViews[0].position(head);
+		writeViews[0].limit(head + first);
+		int count = 1;
+		if(first < size){
+			writeViews[1].clear();
+			writeViews[1].limit(size - first);
+			count = 2;
+		}
+		long written = channel.write(writeViews, 0, count);
+		head = (int)((head + written) % capacity);
+		size -= written;
+		if(size == 0)
+			head = 0;
+		return written;
+	}
+
+	/**
+	 * Drop all bytes in the ring.
+	 */
+	public void clear(){
+		head = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link LittleEndianInputStream} reading directly from a {@link ByteBuffer}.
+ *
+ * Instead of going through a chain of streams and reading single bytes, the
+ * primitive reads are delegated to a little endian view of the buffer. The
+ * reader works on a slice of the buffer, so offsets for the absolute reads
+ * are relative to the position the buffer had when the reader was created,
+ * and the original buffer is never modified.
+ *
+ * Since it is a {@link LittleEndianInputStream} it can be handed to every
+ * {@link net.bitdroid.network.messages.Message#read(LittleEndianInputStream)}
+ * implementation. Unlike the stream, reading past the end of the buffer
+ * results in an {@link EOFException} instead of silently returning garbage.
+ *
+ * @author cdecker
+ *
+ */
+public class LittleEndianBufferReader extends LittleEndianInputStream {
+	private final ByteBuffer buffer;
+
+	/**
+	 * Create a new reader over the remaining bytes of the given buffer.
+	 *
+	 * @param buffer the buffer to read from.
+	 */
+	public LittleEndianBufferReader(ByteBuffer buffer) {
+		super(null);
+		this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public LittleEndianBufferReader(byte[] b){
+		this(ByteBuffer.wrap(b));
+	}
+
+	public LittleEndianBufferReader(byte[] b, int offset, int length){
+		this(ByteBuffer.wrap(b, offset, length));
+	}
+
+	/**
+	 * Make sure there are at least <code>n</code> bytes left to read.
+	 *
+	 * @param n number of bytes about to be read.
+	 * @throws EOFException if the buffer does not hold enough bytes.
+	 */
+	private void require(int n) throws EOFException {
+		if(n < 0 || buffer.remaining() < n)
+			throw new EOFException("Tried to read " + n + " bytes, but only " + buffer.remaining() + " are left.");
+	}
+
+	/**
+	 * @return the current position relative to the start of the reader.
+	 */
+	public int position(){
+		return buffer.position();
+	}
+
+	/**
+	 * Move the read position to an absolute offset.
+	 *
+	 * @param position new offset relative to the start of the reader.
+	 */
+	public void position(int position){
+		buffer.position(position);
+	}
+
+	/**
+	 * @return total number of bytes this reader covers.
+	 */
+	public int limit(){
+		return buffer.limit();
+	}
+
+	/**
+	 * @return number of bytes left to read.
+	 */
+	public int remaining(){
+		return buffer.remaining();
+	}
+
+	public boolean hasRemaining(){
+		return buffer.hasRemaining();
+	}
+
+	// ========================================================================
+	// InputStream
+
+	@Override
+	public int read() throws IOException {
+		if(!buffer.hasRemaining())
+			return -1;
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		if(!buffer.hasRemaining())
+			return -1;
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	/**
+	 * Read exactly <code>b.length</code> bytes into the array.
+	 *
+	 * @param b destination
+	 * @throws EOFException if less than <code>b.length</code> bytes are left.
+	 */
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		require(len);
+		buffer.get(b, off, len);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		int s = (int)Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + s);
+		return s;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		buffer.mark();
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		buffer.reset();
+	}
+
+	@Override
+	public void close() throws IOException {
+		// Nothing to close, the buffer belongs to the caller.
+	}
+
+	// ========================================================================
+	// Relative reads
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		require(1);
+		return buffer.get() != 0;
+	}
+
+	@Override
+	public byte readByte(int b) throws IOException {
+		require(1);
+		return buffer.get();
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException {
+		require(1);
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		require(2);
+		return buffer.getShort();
+	}
+
+	@Override
+	public int readUnsignedShort() throws IOException {
+		require(2);
+		return buffer.getShort() & 0xFFFF;
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		require(2);
+		return buffer.getChar();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		require(4);
+		return buffer.getInt();
+	}
+
+	@Override
+	public long readUnsignedInt() throws IOException {
+		require(4);
+		return buffer.getInt() & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		require(8);
+		return buffer.getLong();
+	}
+
+	@Override
+	public BigInteger readUnsignedLong() throws IOException {
+		long l = readLong();
+		BigInteger i = BigInteger.valueOf(l & Long.MAX_VALUE);
+		if(l < 0)
+			i = i.setBit(63);
+		return i;
+	}
+
+	/**
+	 * Read a variable length integer. Values using the full 0xFF (uint64)
+	 * encoding are returned as their raw 64 bits, i.e. they have to be
+	 * interpreted as unsigned by the caller.
+	 */
+	@Override
+	public long readVariableSize() throws IOException {
+		int b = readUnsignedByte();
+		if(b == 255)
+			return readLong();
+		else if(b == 254)
+			return readUnsignedInt();
+		else if(b == 253)
+			return readUnsignedShort();
+		else
+			return b;
+	}
+
+	/**
+	 * Read a count of elements or bytes. Every element takes up at least a
+	 * byte, so the count can't be larger than what is left in the buffer.
+	 *
+	 * @return the count.
+	 * @throws IOException if the count is negative or exceeds the remaining
+	 * 		bytes.
+	 */
+	@Override
+	public int readVariableCount() throws IOException {
+		long count = readVariableSize();
+		if(count < 0 || count > buffer.remaining())
+			throw new IOException("Count " + count + " exceeds the remaining " + buffer.remaining() + " bytes.");
+		return (int)count;
+	}
+
+	@Override
+	public String readString() throws IOException {
+		byte[] b = new byte[readVariableCount()];
+		buffer.get(b);
+		return new String(b);
+	}
+
+	// ========================================================================
+	// Absolute reads, the position is not changed.
+
+	public byte getByte(int index){
+		return buffer.get(index);
+	}
+
+	public int getUnsignedByte(int index){
+		return buffer.get(index) & 0xFF;
+	}
+
+	public int getUnsignedShort(int index){
+		return buffer.getShort(index) & 0xFFFF;
+	}
+
+	public int getInt(int index){
+		return buffer.getInt(index);
+	}
+
+	public long getUnsignedInt(int index){
+		return buffer.getInt(index) & 0xFFFFFFFFL;
+	}
+
+	public long getLong(int index){
+		return buffer.getLong(index);
+	}
+
+	// ========================================================================
+	// Slicing
+
+	/**
+	 * Create a reader covering the next <code>length</code> bytes and advance
+	 * this reader past them. No bytes are copied.
+	 *
+	 * @param length number of bytes the slice should cover.
+	 * @return a new reader for the slice.
+	 * @throws EOFException if less than <code>length</code> bytes are left.
+	 */
+	public LittleEndianBufferReader readSlice(int length) throws IOException {
+		require(length);
+		LittleEndianBufferReader slice = new LittleEndianBufferReader(slice(buffer.position(), length));
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+
+	/**
+	 * Return a little endian view of a region of this reader. No bytes are
+	 * copied and the position is not changed.
+	 *
+	 * @param offset start of the region relative to the start of the reader.
+	 * @param length size of the region.
+	 * @return view of the region.
+	 * @throws IndexOutOfBoundsException if the region is not within the reader.
+	 */
+	public ByteBuffer slice(int offset, int length){
+		if(offset < 0 || length < 0 || offset + length > buffer.limit())
+			throw new IndexOutOfBoundsException("Region [" + offset + ", " + (offset + length) + ") exceeds limit " + buffer.limit());
+		ByteBuffer b = buffer.duplicate();
+		b.clear().position(offset);
+		b.limit(offset + length);
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
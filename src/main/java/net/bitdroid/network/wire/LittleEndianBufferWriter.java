@@ -0,0 +1,177 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link LittleEndianOutputStream} writing directly into a
+ * {@link ByteBuffer}.
+ *
+ * The writer can be pointed to a new buffer with {@link #setBuffer(ByteBuffer)}
+ * so a single instance can be reused for every message that is encoded.
+ * Writing beyond the limit of the buffer raises an {@link IOException}.
+ *
+ * @see LittleEndianBufferReader
+ * @author cdecker
+ *
+ */
+public class LittleEndianBufferWriter extends LittleEndianOutputStream {
+	private ByteBuffer buffer;
+
+	public LittleEndianBufferWriter() {
+		super(null);
+	}
+
+	public LittleEndianBufferWriter(ByteBuffer buffer) {
+		super(null);
+		setBuffer(buffer);
+	}
+
+	/**
+	 * Direct all further writes to the given buffer, starting at its current
+	 * position. The byte order of the buffer is set to little endian.
+	 *
+	 * @param buffer the buffer to write to.
+	 */
+	public void setBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+		if(buffer != null)
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	private void require(int n) throws IOException {
+		if(buffer.remaining() < n)
+			throw new IOException("Buffer overflow, tried to write " + n + " bytes with only " + buffer.remaining() + " left.");
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		require(1);
+		buffer.put((byte)b);
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		require(length);
+		buffer.put(data, offset, length);
+	}
+
+	/**
+	 * Copy the remaining bytes of <code>src</code> into the buffer.
+	 *
+	 * @param src bytes to be written, its position is advanced.
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		try{
+			buffer.put(src);
+		}catch(BufferOverflowException boe){
+			throw new IOException("Buffer overflow while copying " + src.remaining() + " bytes.");
+		}
+	}
+
+	@Override
+	public void writeByte(int b) throws IOException {
+		write(b);
+	}
+
+	@Override
+	public void writeShort(int s) throws IOException {
+		require(2);
+		buffer.putShort((short)s);
+	}
+
+	@Override
+	public void writeUnsignedShort(int s) throws IOException {
+		writeShort(s);
+	}
+
+	@Override
+	public void writeChar(int c) throws IOException {
+		writeShort(c);
+	}
+
+	@Override
+	public void writeInt(int i) throws IOException {
+		require(4);
+		buffer.putInt(i);
+	}
+
+	@Override
+	public void writeUnsignedInt(long v) throws IOException {
+		writeInt((int)v);
+	}
+
+	@Override
+	public void writeLong(long l) throws IOException {
+		require(8);
+		buffer.putLong(l);
+	}
+
+	@Override
+	public void writeUnsignedLong(BigInteger i) throws IOException {
+		writeLong(i.longValue());
+	}
+
+	@Override
+	public void writeVariableSize(long size) throws IOException {
+		if(size >= 0 && size < 253)
+			write((int)size);
+		else if(size >= 0 && size <= 0xFFFF){
+			write(253);
+			writeShort((int) size);
+		}else if(size >= 0 && size <= 0xFFFFFFFFL){
+			write(254);
+			writeInt((int) size);
+		}else{
+			write(255);
+			writeLong(size);
+		}
+	}
+
+	@Override
+	public void writeString(String s) throws IOException {
+		byte[] b = s.getBytes();
+		writeVariableSize(b.length);
+		write(b);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// Nothing to flush, everything is already in the buffer.
+	}
+
+	@Override
+	public void close() throws IOException {
+		// The buffer belongs to the caller.
+	}
+}
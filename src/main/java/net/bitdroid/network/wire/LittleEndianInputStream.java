@@ -60,7 +60,8 @@ public class LittleEndianInputStream extends FilterInputStream {
 	public long readVariableSize() throws IOException{
 		int b = readUnsignedByte();
 		if(b == 255){
-			throw new RuntimeException("I was never expecting a length of UInt64, please slap the developer.");
+			// Full uint64, the caller has to treat it as unsigned
+			return readLong();
 		}else if(b == 254){
 			return readUnsignedInt();
 		}else if(b == 253)
@@ -69,9 +70,23 @@ public class LittleEndianInputStream extends FilterInputStream {
 			return b;
 	}
 
+	/**
+	 * Read a variable size integer counting the elements or bytes that
+	 * follow it.
+	 *
+	 * @return the count.
+	 * @throws IOException if the count is negative or doesn't fit an int.
+	 */
+	public int readVariableCount() throws IOException{
+		long count = readVariableSize();
+		if(count < 0 || count > Integer.MAX_VALUE)
+			throw new IOException("Invalid count " + count + ".");
+		return (int)count;
+	}
+
 	public String readString() throws IOException{
-		long length = readVariableSize();
-		byte[] b = new byte[(int) length];
+		int length = readVariableCount();
+		byte[] b = new byte[length];
 		in.read(b);
 		return new String(b);
 	}
@@ -343,7 +358,12 @@ public class LittleEndianInputStream extends FilterInputStream {
 	 * @exception  IOException  if the underlying stream throws an IOException.
 	 */
 	public final int skipBytes(int n) throws IOException {
-		for (int i = 0; i < n; i += (int) skip(n - i));
+		for (int i = 0; i < n;){
+			int s = (int) skip(n - i);
+			if(s <= 0)
+				throw new EOFException();
+			i += s;
+		}
 		return n;
 	}
 
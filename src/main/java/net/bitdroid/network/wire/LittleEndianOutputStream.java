@@ -273,20 +273,42 @@ public class LittleEndianOutputStream extends FilterOutputStream {
 //	}
 
 	public void writeVariableSize(long size) throws IOException {
-		if(size < 253)
+		if(size >= 0 && size < 253)
 			out.write((int) size);
-		else if(size < 65535){
+		else if(size >= 0 && size <= 0xFFFF){
 			write((int)253);
 			writeUnsignedShort((int) size);
-		}else{
+		}else if(size >= 0 && size <= 0xFFFFFFFFL){
 			write((int)254);
 			writeUnsignedInt(size);
+		}else{
+			write((int)255);
+			writeLong(size);
 		}
 	}
 
+	/**
+	 * Number of bytes {@link #writeVariableSize(long)} uses to encode the
+	 * given size.
+	 *
+	 * @param size the value to be encoded.
+	 * @return 1, 3, 5 or 9 bytes.
+	 */
+	public static int getVariableSizeLength(long size) {
+		if(size >= 0 && size < 253)
+			return 1;
+		else if(size >= 0 && size <= 0xFFFF)
+			return 3;
+		else if(size >= 0 && size <= 0xFFFFFFFFL)
+			return 5;
+		else
+			return 9;
+	}
+
 	public void writeString(String s) throws IOException {
-		writeVariableSize(s.length());
-		out.write(s.getBytes());
+		byte[] b = s.getBytes();
+		writeVariableSize(b.length);
+		out.write(b);
 	}
 
 	public static LittleEndianOutputStream wrap(final byte[] b){
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted buffer handed out by a {@link BufferPool} or a
+ * {@link Slab}.
+ *
+ * The buffer starts with a single reference held by whoever acquired it.
+ * Every additional user has to {@link #retain()} it and everybody has to
+ * {@link #release()} it once done. When the last reference is released the
+ * buffer goes back to where it came from and must not be touched anymore.
+ *
+ * @author cdecker
+ *
+ */
+public class PooledBuffer {
+	private final ByteBuffer buffer;
+	private final BufferPool pool;
+	private final int sizeClass;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	PooledBuffer(ByteBuffer buffer, BufferPool pool, int sizeClass) {
+		this.buffer = buffer;
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+	}
+
+	/**
+	 * For buffers that don't come from a pool, they have to override
+	 * {@link #recycle()}.
+	 */
+	PooledBuffer(ByteBuffer buffer) {
+		this(buffer, null, -1);
+	}
+
+	/**
+	 * @return the buffer, its limit is set to the requested size.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the size class the buffer belongs to, or -1 if it was too big
+	 * 		to be pooled.
+	 */
+	int getSizeClass() {
+		return sizeClass;
+	}
+
+	/**
+	 * Add a reference to the buffer.
+	 *
+	 * @return this buffer.
+	 * @throws IllegalStateException if the buffer has already been released.
+	 */
+	public PooledBuffer retain() {
+		while(true){
+			int count = references.get();
+			if(count <= 0)
+				throw new IllegalStateException("Buffer has already been released.");
+			if(references.compareAndSet(count, count + 1))
+				return this;
+		}
+	}
+
+	/**
+	 * Drop a reference to the buffer, giving it back if it was the last one.
+	 *
+	 * @return <code>true</code> if the buffer has been given back.
+	 * @throws IllegalStateException if the buffer has already been released.
+	 */
+	public boolean release() {
+		int count = references.decrementAndGet();
+		if(count < 0)
+			throw new IllegalStateException("Buffer has already been released.");
+		if(count == 0){
+			recycle();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Give the buffer back once the last reference is gone.
+	 */
+	void recycle() {
+		pool.recycle(this);
+	}
+
+	/**
+	 * @return the number of outstanding references.
+	 */
+	public int getReferenceCount() {
+		return references.get();
+	}
+}
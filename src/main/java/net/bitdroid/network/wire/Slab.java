@@ -0,0 +1,181 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A fixed block of direct memory handing out regions of exactly the
+ * requested size, rounded up to {@link #ALIGNMENT} bytes.
+ *
+ * Free regions are kept both by offset and by length. A request takes the
+ * smallest free region that fits, and a freed region is merged with the
+ * free regions next to it. Unlike a {@link BufferPool} the slab never
+ * allocates, when no free region is large enough the request fails and the
+ * caller has to free something first.
+ *
+ * Regions are handed out as {@link PooledBuffer}s, the region is freed when
+ * the last reference is released. The slab is thread-safe.
+ *
+ * @author cdecker
+ *
+ */
+public class Slab {
+	public static final int ALIGNMENT = 16;
+
+	private final ByteBuffer memory;
+	// Lengths of the free regions by their offset
+	private final TreeMap<Integer, Integer> freeByOffset = new TreeMap<Integer, Integer>();
+	// Free regions ordered by length, then offset, see pack()
+	private final TreeSet<Long> freeByLength = new TreeSet<Long>();
+	private int used = 0;
+
+	/**
+	 * @param capacity bytes of direct memory, rounded down to the alignment.
+	 */
+	public Slab(int capacity){
+		if(capacity < 0)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		capacity -= capacity % ALIGNMENT;
+		memory = ByteBuffer.allocateDirect(capacity);
+		if(capacity > 0)
+			addFree(0, capacity);
+	}
+
+	/**
+	 * @param size a number of bytes.
+	 * @return the bytes a region of the size takes up in the slab.
+	 */
+	public static int align(int size){
+		return (size + ALIGNMENT - 1) & -ALIGNMENT;
+	}
+
+	/**
+	 * Take a region of the slab. The buffer is in little endian order, its
+	 * capacity and limit are <code>size</code>.
+	 *
+	 * @param size number of bytes needed.
+	 * @return the region holding a single reference, or <code>null</code> if
+	 * 		no free region is large enough.
+	 */
+	public PooledBuffer allocate(int size){
+		if(size <= 0)
+			throw new IllegalArgumentException("Invalid size: " + size);
+		if(size > memory.capacity())
+			return null;
+		int length = align(size);
+		int offset;
+		synchronized(this){
+			Long fit = freeByLength.ceiling(pack(length, 0));
+			if(fit == null)
+				return null;
+			int freeLength = (int)(fit >>> 32);
+			offset = (int)fit.longValue();
+			removeFree(offset, freeLength);
+			if(freeLength > length)
+				addFree(offset + length, freeLength - length);
+			used += length;
+		}
+		// The slab's own position and limit are never changed, so it can be
+		// duplicated without the lock
+		ByteBuffer region = memory.duplicate();
+		region.limit(offset + size);
+		region.position(offset);
+		region = region.slice();
+		region.order(ByteOrder.LITTLE_ENDIAN);
+		return new Region(region, offset, length);
+	}
+
+	/**
+	 * Return a region, merging it with its free neighbours.
+	 */
+	private synchronized void free(int offset, int length){
+		used -= length;
+		Map.Entry<Integer, Integer> before = freeByOffset.lowerEntry(offset);
+		if(before != null && before.getKey() + before.getValue() == offset){
+			removeFree(before.getKey(), before.getValue());
+			offset = before.getKey();
+			length += before.getValue();
+		}
+		Integer after = freeByOffset.get(offset + length);
+		if(after != null){
+			removeFree(offset + length, after);
+			length += after;
+		}
+		addFree(offset, length);
+	}
+
+	private void addFree(int offset, int length){
+		freeByOffset.put(offset, length);
+		freeByLength.add(pack(length, offset));
+	}
+
+	private void removeFree(int offset, int length){
+		freeByOffset.remove(offset);
+		freeByLength.remove(pack(length, offset));
+	}
+
+	private static long pack(int length, int offset){
+		return ((long)length << 32) | offset;
+	}
+
+	/**
+	 * @return bytes of direct memory held by the slab.
+	 */
+	public int getCapacity(){
+		return memory.capacity();
+	}
+
+	/**
+	 * @return bytes taken up by regions that haven't been freed yet.
+	 */
+	public synchronized int getUsed(){
+		return used;
+	}
+
+	/**
+	 * @return the largest region that could be allocated right now.
+	 */
+	public synchronized int getLargestFree(){
+		return freeByLength.isEmpty() ? 0 : (int)(freeByLength.last() >>> 32);
+	}
+
+	private class Region extends PooledBuffer {
+		private final int offset;
+		private final int length;
+
+		Region(ByteBuffer buffer, int offset, int length){
+			super(buffer);
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/* (non-Javadoc)
+		 * @see net.bitdroid.network.wire.PooledBuffer#recycle()
+		 */
+		@Override
+		void recycle(){
+			free(offset, length);
+		}
+	}
+}
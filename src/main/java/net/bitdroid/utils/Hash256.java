@@ -0,0 +1,295 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.utils;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+
+import net.bitdroid.network.wire.LittleEndianBufferReader;
+import net.bitdroid.network.wire.LittleEndianInputStream;
+import net.bitdroid.network.wire.LittleEndianOutputStream;
+
+/**
+ * An immutable 32 byte hash, usable as a key in hash maps.
+ *
+ * The bytes are kept in the order they come out of the digest and go over
+ * the wire, packed into four little endian longs. The reversed order the
+ * hashes are usually displayed in, and the hex string of it, are only built
+ * when asked for.
+ *
+ * Many of the hashes used as keys are announced by peers, who don't need
+ * any work to pick them. So the hash code is a SipHash-2-4 of the bytes
+ * under a random key per process, like Bitcoin Core salts its maps, and
+ * peers can't line up collisions in our maps.
+ *
+ * @author cdecker
+ *
+ */
+public final class Hash256 {
+	public static final int SIZE = 32;
+
+	public static final Hash256 ZERO = new Hash256(0, 0, 0, 0);
+
+	private final long l0;
+	private final long l1;
+	private final long l2;
+	private final long l3;
+	// Computed on first use, 0 until then
+	private int hashCode = 0;
+	private String hex = null;
+
+	private static final long SALT0;
+	private static final long SALT1;
+	static {
+		SecureRandom random = new SecureRandom();
+		SALT0 = random.nextLong();
+		SALT1 = random.nextLong();
+	}
+
+	private Hash256(long l0, long l1, long l2, long l3){
+		this.l0 = l0;
+		this.l1 = l1;
+		this.l2 = l2;
+		this.l3 = l3;
+	}
+
+	/**
+	 * @param b the hash, in digest order.
+	 * @return the hash.
+	 */
+	public static Hash256 wrap(byte[] b){
+		return wrap(b, 0);
+	}
+
+	/**
+	 * @param b array holding the hash, in digest order.
+	 * @param offset where the hash starts.
+	 * @return the hash.
+	 */
+	public static Hash256 wrap(byte[] b, int offset){
+		return new Hash256(getLong(b, offset), getLong(b, offset + 8),
+				getLong(b, offset + 16), getLong(b, offset + 24));
+	}
+
+	/**
+	 * @param b the hash, in the reversed display order.
+	 * @return the hash.
+	 */
+	public static Hash256 wrapReversed(byte[] b){
+		byte[] c = b.clone();
+		StringUtils.reverse(c);
+		return wrap(c);
+	}
+
+	/**
+	 * Read the hash at an absolute index of a buffer, without copying it and
+	 * without moving the position of the buffer.
+	 *
+	 * @param b the buffer, in any byte order.
+	 * @param index where the hash starts.
+	 * @return the hash.
+	 */
+	public static Hash256 get(ByteBuffer b, int index){
+		ByteBuffer le = b.order() == ByteOrder.LITTLE_ENDIAN ? b : b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		return new Hash256(le.getLong(index), le.getLong(index + 8),
+				le.getLong(index + 16), le.getLong(index + 24));
+	}
+
+	/**
+	 * Read a hash as it is sent over the wire.
+	 *
+	 * @param in the stream.
+	 * @return the hash.
+	 * @throws IOException if the stream ends before the hash does.
+	 */
+	public static Hash256 read(LittleEndianInputStream in) throws IOException {
+		if(in instanceof LittleEndianBufferReader){
+			LittleEndianBufferReader reader = (LittleEndianBufferReader)in;
+			if(reader.remaining() < SIZE)
+				throw new IOException("Hash is truncated.");
+			int position = reader.position();
+			Hash256 h = new Hash256(reader.getLong(position), reader.getLong(position + 8),
+					reader.getLong(position + 16), reader.getLong(position + 24));
+			reader.position(position + SIZE);
+			return h;
+		}
+		byte[] b = new byte[SIZE];
+		in.read(b);
+		return wrap(b);
+	}
+
+	/**
+	 * Write the hash as it is sent over the wire.
+	 *
+	 * @param leos the stream.
+	 * @throws IOException if the stream cannot be written.
+	 */
+	public void write(LittleEndianOutputStream leos) throws IOException {
+		leos.write(getBytes());
+	}
+
+	/**
+	 * @return the hash, in digest order.
+	 */
+	public byte[] getBytes(){
+		byte[] b = new byte[SIZE];
+		copyTo(b, 0);
+		return b;
+	}
+
+	/**
+	 * Copy the hash in digest order, without allocating.
+	 *
+	 * @param dest destination.
+	 * @param offset where the hash starts in dest.
+	 */
+	public void copyTo(byte[] dest, int offset){
+		putLong(dest, offset, l0);
+		putLong(dest, offset + 8, l1);
+		putLong(dest, offset + 16, l2);
+		putLong(dest, offset + 24, l3);
+	}
+
+	/**
+	 * @param index which of the four words, 0 being the first 8 bytes.
+	 * @return 8 bytes of the hash, read as a little endian long.
+	 */
+	public long getWord(int index){
+		switch(index){
+		case 0: return l0;
+		case 1: return l1;
+		case 2: return l2;
+		case 3: return l3;
+		default: throw new IndexOutOfBoundsException("No word " + index);
+		}
+	}
+
+	/**
+	 * @return the hash, in the reversed display order.
+	 */
+	public byte[] getReversedBytes(){
+		byte[] b = getBytes();
+		StringUtils.reverse(b);
+		return b;
+	}
+
+	/**
+	 * @return hex string of the hash, in the reversed display order.
+	 */
+	public String toHexString(){
+		String h = hex;
+		if(h == null){
+			try {
+				h = StringUtils.getHexString(getReversedBytes());
+			} catch (UnsupportedEncodingException e) {
+				// ASCII is always there
+				throw new RuntimeException(e);
+			}
+			hex = h;
+		}
+		return h;
+	}
+
+	private static long getLong(byte[] b, int offset){
+		long v = 0;
+		for(int i=7; i>=0; i--)
+			v = v << 8 | (b[offset + i] & 0xFFL);
+		return v;
+	}
+
+	private static void putLong(byte[] b, int offset, long v){
+		for(int i=0; i<8; i++)
+			b[offset + i] = (byte)(v >>> (8 * i));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		int h = hashCode;
+		if(h == 0){
+			h = sipHash(l0, l1, l2, l3);
+			// 0 marks a missing hash code, it isn't worth computing again
+			if(h == 0)
+				h = 1;
+			hashCode = h;
+		}
+		return h;
+	}
+
+	/**
+	 * SipHash-2-4 of the 32 bytes under the salt of the process.
+	 */
+	private static int sipHash(long l0, long l1, long l2, long l3){
+		long[] v = new long[]{
+			0x736f6d6570736575L ^ SALT0, 0x646f72616e646f6dL ^ SALT1,
+			0x6c7967656e657261L ^ SALT0, 0x7465646279746573L ^ SALT1
+		};
+		compress(v, l0);
+		compress(v, l1);
+		compress(v, l2);
+		compress(v, l3);
+		// The last block only holds the length
+		compress(v, (long)SIZE << 56);
+		v[2] ^= 0xff;
+		for(int i=0; i<4; i++)
+			round(v);
+		long h = v[0] ^ v[1] ^ v[2] ^ v[3];
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private static void compress(long[] v, long m){
+		v[3] ^= m;
+		round(v);
+		round(v);
+		v[0] ^= m;
+	}
+
+	private static void round(long[] v){
+		v[0] += v[1]; v[1] = Long.rotateLeft(v[1], 13); v[1] ^= v[0]; v[0] = Long.rotateLeft(v[0], 32);
+		v[2] += v[3]; v[3] = Long.rotateLeft(v[3], 16); v[3] ^= v[2];
+		v[0] += v[3]; v[3] = Long.rotateLeft(v[3], 21); v[3] ^= v[0];
+		v[2] += v[1]; v[1] = Long.rotateLeft(v[1], 17); v[1] ^= v[2]; v[2] = Long.rotateLeft(v[2], 32);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj)
+			return true;
+		if(!(obj instanceof Hash256))
+			return false;
+		Hash256 other = (Hash256)obj;
+		return l0 == other.l0 && l1 == other.l1 && l2 == other.l2 && l3 == other.l3;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return toHexString();
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The merkle tree over the transaction hashes of a block.
+ *
+ * Hashes are in the order they come out of the digest, not reversed as they
+ * are usually displayed. Each level is kept as one flat array of 32 byte
+ * hashes, so the two children of a node are adjacent and hashed in place.
+ * If a level has an odd number of nodes the last one is paired with itself.
+ *
+ * Given a pool, levels with many nodes are reduced by fork-join tasks, small
+ * levels are always hashed by the calling thread.
+ *
+ * @author cdecker
+ *
+ */
+public class MerkleTree {
+	/**
+	 * Levels with fewer pairs are hashed sequentially.
+	 */
+	public static final int PARALLEL_THRESHOLD = 256;
+
+	private static final int HASH_SIZE = Sha256d.HASH_SIZE;
+
+	// levels.get(0) are the leaves, the last one is the root
+	private final List<byte[]> levels = new ArrayList<byte[]>();
+	private final int leafCount;
+
+	/**
+	 * Build the tree.
+	 *
+	 * @param leaves the leaf hashes, 32 bytes each, back to back.
+	 * @param pool pool to reduce large levels with, or <code>null</code>.
+	 */
+	public MerkleTree(byte[] leaves, ForkJoinPool pool){
+		if(leaves.length == 0 || leaves.length % HASH_SIZE != 0)
+			throw new IllegalArgumentException("Leaves have to be a non-empty sequence of 32 byte hashes.");
+		leafCount = leaves.length / HASH_SIZE;
+		byte[] level = leaves;
+		levels.add(level);
+		while(level.length > HASH_SIZE){
+			int count = level.length / HASH_SIZE;
+			int pairs = (count + 1) / 2;
+			byte[] parent = new byte[pairs * HASH_SIZE];
+			if(pool != null && pairs >= PARALLEL_THRESHOLD)
+				pool.invoke(new ReduceTask(level, parent, 0, pairs));
+			else
+				reduce(level, parent, 0, pairs);
+			levels.add(parent);
+			level = parent;
+		}
+	}
+
+	/**
+	 * Hash the pairs <code>from</code> (inclusive) to <code>to</code>
+	 * (exclusive) of a level into its parent level.
+	 */
+	private static void reduce(byte[] level, byte[] parent, int from, int to){
+		int count = level.length / HASH_SIZE;
+		byte[] odd = null;
+		for(int i=from; i<to; i++){
+			int left = 2 * i;
+			ByteBuffer pair;
+			if(left + 1 < count){
+				pair = ByteBuffer.wrap(level, left * HASH_SIZE, 2 * HASH_SIZE);
+			}else{
+				// Last node of an odd level, paired with itself
+				odd = new byte[2 * HASH_SIZE];
+				System.arraycopy(level, left * HASH_SIZE, odd, 0, HASH_SIZE);
+				System.arraycopy(level, left * HASH_SIZE, odd, HASH_SIZE, HASH_SIZE);
+				pair = ByteBuffer.wrap(odd);
+			}
+			Sha256d.hash(pair, parent, i * HASH_SIZE);
+		}
+	}
+
+	private static class ReduceTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final byte[] level;
+		private final byte[] parent;
+		private final int from;
+		private final int to;
+
+		ReduceTask(byte[] level, byte[] parent, int from, int to){
+			this.level = level;
+			this.parent = parent;
+			this.from = from;
+			this.to = to;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			if(to - from <= PARALLEL_THRESHOLD){
+				reduce(level, parent, from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ReduceTask(level, parent, from, middle),
+					new ReduceTask(level, parent, middle, to));
+		}
+	}
+
+	/**
+	 * @return the merkle root.
+	 */
+	public byte[] getRoot(){
+		return levels.get(levels.size() - 1).clone();
+	}
+
+	public int getLeafCount(){
+		return leafCount;
+	}
+
+	/**
+	 * The merkle branch of a leaf: the sibling of the leaf and of each of its
+	 * ancestors below the root, bottom up.
+	 *
+	 * @param index position of the leaf.
+	 * @return the sibling hashes, bottom up.
+	 */
+	public List<byte[]> getBranch(int index){
+		if(index < 0 || index >= leafCount)
+			throw new IndexOutOfBoundsException("No leaf " + index + " in a tree of " + leafCount);
+		List<byte[]> branch = new ArrayList<byte[]>(levels.size() - 1);
+		for(int l=0; l<levels.size() - 1; l++){
+			byte[] level = levels.get(l);
+			int count = level.length / HASH_SIZE;
+			// An odd node is its own sibling
+			int sibling = Math.min(index ^ 1, count - 1);
+			branch.add(Arrays.copyOfRange(level, sibling * HASH_SIZE, (sibling + 1) * HASH_SIZE));
+			index >>= 1;
+		}
+		return branch;
+	}
+
+	/**
+	 * Compute the root a leaf leads to through its branch.
+	 *
+	 * @param leaf the leaf hash.
+	 * @param branch the branch of the leaf, see {@link #getBranch(int)}.
+	 * @param index position of the leaf.
+	 * @return the merkle root.
+	 */
+	public static byte[] getRoot(byte[] leaf, List<byte[]> branch, int index){
+		byte[] pair = new byte[2 * HASH_SIZE];
+		byte[] current = leaf.clone();
+		for(byte[] sibling : branch){
+			if((index & 1) == 0){
+				System.arraycopy(current, 0, pair, 0, HASH_SIZE);
+				System.arraycopy(sibling, 0, pair, HASH_SIZE, HASH_SIZE);
+			}else{
+				System.arraycopy(sibling, 0, pair, 0, HASH_SIZE);
+				System.arraycopy(current, 0, pair, HASH_SIZE, HASH_SIZE);
+			}
+			Sha256d.hash(ByteBuffer.wrap(pair), current, 0);
+			index >>= 1;
+		}
+		return current;
+	}
+}
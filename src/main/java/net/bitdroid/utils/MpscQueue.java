@@ -0,0 +1,175 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An unbounded queue for many producers and a single consumer, without
+ * locks.
+ *
+ * Elements are kept in linked chunks of {@link #CHUNK_SIZE} slots. A
+ * producer claims a slot by incrementing the tail and stores its element
+ * there, the consumer takes the elements in the order of their slots. So
+ * producers only contend on the tail counter, and a new object is only
+ * allocated once per chunk rather than per element. The tail and the
+ * consumer's position are padded so they don't share a cache line.
+ *
+ * An element whose slot has been claimed but not filled yet holds back the
+ * ones behind it, {@link #poll()} returns <code>null</code> until it is
+ * there. A producer that wakes up the consumer after {@link #offer(Object)}
+ * returns is therefore sure the element is found.
+ *
+ * Only one thread at a time may call {@link #poll()}, {@link #peek()} and
+ * {@link #isEmpty()}.
+ *
+ * @author cdecker
+ *
+ */
+public class MpscQueue<E> {
+	/**
+	 * Slots per chunk.
+	 */
+	public static final int CHUNK_SIZE = 256;
+
+	private static final class Chunk<E> {
+		final long base;
+		final AtomicReferenceArray<E> slots = new AtomicReferenceArray<E>(CHUNK_SIZE);
+		final AtomicReference<Chunk<E>> next = new AtomicReference<Chunk<E>>();
+
+		Chunk(long base){
+			this.base = base;
+		}
+	}
+
+	// The value is followed by enough padding to fill a cache line
+	@SuppressWarnings("serial")
+	private static final class PaddedAtomicLong extends AtomicLong {
+		long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	// Only written by the consumer
+	private static final class Cursor<E> {
+		long index = 0;
+		long p1, p2, p3, p4, p5, p6, p7;
+		// Read by producers overtaken by others
+		volatile Chunk<E> chunk;
+	}
+
+	private final PaddedAtomicLong tail = new PaddedAtomicLong();
+	// Where producers start looking for their chunk, only moves forward
+	private final AtomicReference<Chunk<E>> producerChunk;
+	private final Cursor<E> head = new Cursor<E>();
+
+	public MpscQueue(){
+		Chunk<E> first = new Chunk<E>(0);
+		producerChunk = new AtomicReference<Chunk<E>>(first);
+		head.chunk = first;
+	}
+
+	/**
+	 * Add an element, from any thread.
+	 *
+	 * @param e the element, not <code>null</code>.
+	 */
+	public void offer(E e){
+		if(e == null)
+			throw new NullPointerException();
+		long index = tail.getAndIncrement();
+		Chunk<E> start = producerChunk.get();
+		Chunk<E> chunk = start;
+		// Others moved on already, the consumer can't be past the slot
+		// since it isn't filled yet
+		if(chunk.base > index)
+			chunk = head.chunk;
+		while(index >= chunk.base + CHUNK_SIZE){
+			Chunk<E> next = chunk.next.get();
+			if(next == null){
+				next = new Chunk<E>(chunk.base + CHUNK_SIZE);
+				if(!chunk.next.compareAndSet(null, next))
+					next = chunk.next.get();
+			}
+			chunk = next;
+		}
+		if(chunk.base > start.base)
+			producerChunk.compareAndSet(start, chunk);
+		chunk.slots.set((int)(index - chunk.base), e);
+	}
+
+	/**
+	 * @return the chunk holding the consumer's next slot, <code>null</code>
+	 * 		if it hasn't been created yet.
+	 */
+	private Chunk<E> consumerChunk(){
+		Chunk<E> chunk = head.chunk;
+		if(head.index < chunk.base + CHUNK_SIZE)
+			return chunk;
+		Chunk<E> next = chunk.next.get();
+		if(next != null)
+			// The old chunk is garbage once no producer starts from it
+			head.chunk = next;
+		return next;
+	}
+
+	/**
+	 * Take the next element, consumer only.
+	 *
+	 * @return the element, or <code>null</code> if there is none yet.
+	 */
+	public E poll(){
+		Chunk<E> chunk = consumerChunk();
+		if(chunk == null)
+			return null;
+		int offset = (int)(head.index - chunk.base);
+		E e = chunk.slots.get(offset);
+		if(e == null)
+			return null;
+		chunk.slots.lazySet(offset, null);
+		head.index++;
+		return e;
+	}
+
+	/**
+	 * Look at the next element without taking it, consumer only.
+	 *
+	 * @return the element, or <code>null</code> if there is none yet.
+	 */
+	public E peek(){
+		Chunk<E> chunk = consumerChunk();
+		if(chunk == null)
+			return null;
+		return chunk.slots.get((int)(head.index - chunk.base));
+	}
+
+	/**
+	 * @return whether there is no element to take, consumer only.
+	 */
+	public boolean isEmpty(){
+		return peek() == null;
+	}
+
+	/**
+	 * @return an estimate of the number of elements, including the ones being
+	 * 		added.
+	 */
+	public long size(){
+		return Math.max(0, tail.get() - head.index);
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.utils;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Double SHA-256, as used for checksums, transaction and block hashes.
+ *
+ * Every thread gets its own digest, so the static methods can be called from
+ * anywhere without locking and without looking up a new digest each time.
+ * Buffers are hashed in place, from their position to their limit, without
+ * copying them and without moving their position.
+ *
+ * @author cdecker
+ *
+ */
+public class Sha256d {
+	public static final int HASH_SIZE = 32;
+
+	private static final ThreadLocal<Sha256d> LOCAL = new ThreadLocal<Sha256d>(){
+		@Override
+		protected Sha256d initialValue() {
+			return new Sha256d();
+		}
+	};
+
+	private final MessageDigest digest;
+	private final byte[] first = new byte[HASH_SIZE];
+
+	private Sha256d(){
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Cannot continue without a SHA-256 implementation.", e);
+		}
+	}
+
+	/**
+	 * Hash the remaining bytes of the buffer.
+	 *
+	 * @param b the bytes to hash, its position is left untouched.
+	 * @return the 32 byte hash, in the order it comes out of the digest.
+	 */
+	public static byte[] hash(ByteBuffer b){
+		byte[] out = new byte[HASH_SIZE];
+		LOCAL.get().digest(b, out, 0);
+		return out;
+	}
+
+	/**
+	 * Hash the remaining bytes of the buffer into <code>out</code>, without
+	 * allocating.
+	 *
+	 * @param b the bytes to hash, its position is left untouched.
+	 * @param out destination.
+	 * @param offset where the 32 bytes of the hash start in out.
+	 */
+	public static void hash(ByteBuffer b, byte[] out, int offset){
+		LOCAL.get().digest(b, out, offset);
+	}
+
+	public static byte[] hash(byte[] b){
+		return hash(b, 0, b.length);
+	}
+
+	public static byte[] hash(byte[] b, int offset, int length){
+		return hash(ByteBuffer.wrap(b, offset, length));
+	}
+
+	/**
+	 * The 4 byte checksum of a frame payload, that is the first 4 bytes of the
+	 * hash read as a little endian int, just like the frame header carries
+	 * it. Does not allocate.
+	 *
+	 * @param payload the payload, its position is left untouched.
+	 * @return the checksum.
+	 */
+	public static int checksum(ByteBuffer payload){
+		Sha256d sha = LOCAL.get();
+		byte[] h = sha.first;
+		sha.digest(payload, h, 0);
+		return (h[0] & 0xFF) | (h[1] & 0xFF) << 8 | (h[2] & 0xFF) << 16 | (h[3] & 0xFF) << 24;
+	}
+
+	/**
+	 * @param payload the payload.
+	 * @return the 4 byte checksum of the payload.
+	 */
+	public static byte[] checksum(byte[] payload){
+		int c = checksum(ByteBuffer.wrap(payload));
+		return new byte[]{(byte)c, (byte)(c >>> 8), (byte)(c >>> 16), (byte)(c >>> 24)};
+	}
+
+	/**
+	 * Double hash the buffer into <code>out</code>, which may be the
+	 * intermediate buffer itself.
+	 */
+	private void digest(ByteBuffer b, byte[] out, int offset){
+		try {
+			digest.reset();
+			int position = b.position();
+			digest.update(b);
+			b.position(position);
+			digest.digest(first, 0, HASH_SIZE);
+			digest.update(first, 0, HASH_SIZE);
+			digest.digest(out, offset, HASH_SIZE);
+		} catch (DigestException e) {
+			// Only happens if the output is too small, which it isn't
+			throw new RuntimeException(e);
+		}
+	}
+}
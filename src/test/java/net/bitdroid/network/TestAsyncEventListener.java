@@ -0,0 +1,170 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.bitdroid.network.AsyncEventListener.OverflowPolicy;
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.messages.PingMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestAsyncEventListener {
+	private ExecutorService executor;
+
+	/**
+	 * Records the events per peer, waiting for the gate first.
+	 */
+	private static class SlowListener implements BitcoinEventListener {
+		final CountDownLatch gate;
+		final Map<PeerInfo, List<Integer>> received = new HashMap<PeerInfo, List<Integer>>();
+		int count = 0;
+
+		SlowListener(CountDownLatch gate){
+			this.gate = gate;
+		}
+
+		public void eventReceived(Event e) throws Exception {
+			gate.await();
+			synchronized(this){
+				List<Integer> l = received.get(e.getOrigin());
+				if(l == null){
+					l = new ArrayList<Integer>();
+					received.put(e.getOrigin(), l);
+				}
+				l.add(((PingMessage)e).getPayloadSize());
+				count++;
+				notifyAll();
+			}
+		}
+
+		public void messageSent(Event e) {}
+
+		synchronized void await(int expected) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while(count < expected && System.currentTimeMillis() < deadline)
+				wait(100);
+		}
+	}
+
+	@Before
+	public void setUp(){
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown(){
+		executor.shutdownNow();
+	}
+
+	private PingMessage message(PeerInfo origin, int i){
+		PingMessage ping = new PingMessage();
+		ping.setOrigin(origin);
+		// Just a sequence number to check the order
+		ping.setPayloadSize(i);
+		return ping;
+	}
+
+	@Test
+	public void testPerOriginOrder() throws Exception {
+		SlowListener slow = new SlowListener(new CountDownLatch(0));
+		AsyncEventListener async = new AsyncEventListener(slow, executor, 1000, OverflowPolicy.BLOCK);
+		List<PeerInfo> peers = new ArrayList<PeerInfo>();
+		for(int p=0; p<5; p++)
+			peers.add(new PeerInfo(InetAddress.getByName("127.0.0.1"), p));
+		for(int i=0; i<200; i++)
+			for(PeerInfo peer : peers)
+				async.eventReceived(message(peer, i));
+		slow.await(1000);
+
+		synchronized(slow){
+			assertEquals(5, slow.received.size());
+			for(List<Integer> l : slow.received.values()){
+				assertEquals(200, l.size());
+				for(int i=0; i<200; i++)
+					assertEquals(i, (int)l.get(i));
+			}
+		}
+		assertEquals(1000, async.getHandled());
+		assertEquals(0, async.getDropped());
+	}
+
+	@Test
+	public void testDropWhenFull() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		SlowListener slow = new SlowListener(gate);
+		AsyncEventListener async = new AsyncEventListener(slow, executor, 3, OverflowPolicy.DROP);
+		PeerInfo peer = new PeerInfo(InetAddress.getByName("127.0.0.1"), 1);
+
+		// Returns right away even though the listener is stuck
+		long start = System.currentTimeMillis();
+		for(int i=0; i<10; i++)
+			async.eventReceived(message(peer, i));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(3, async.getQueueDepth());
+		assertEquals(7, async.getDropped());
+
+		gate.countDown();
+		slow.await(3);
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+		assertEquals(3, async.getHandled());
+		assertEquals(0, async.getQueueDepth());
+		assertTrue(async.getMaxHandlingNanos() >= async.getAverageHandlingNanos());
+	}
+
+	@Test
+	public void testDisconnectLast() throws Exception {
+		final List<EventType> types = new ArrayList<EventType>();
+		BitcoinEventListener recorder = new BitcoinEventListener() {
+			public synchronized void eventReceived(Event e) {
+				types.add(e.getType());
+			}
+			public void messageSent(Event e) {}
+		};
+		AsyncEventListener async = new AsyncEventListener(recorder, executor, 100, OverflowPolicy.BLOCK);
+		PeerInfo peer = new PeerInfo(InetAddress.getByName("127.0.0.1"), 1);
+		for(int i=0; i<20; i++)
+			async.eventReceived(message(peer, i));
+		async.eventReceived(new Event(peer, EventType.DISCONNECTED_TYPE));
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+		synchronized(recorder){
+			assertEquals(21, types.size());
+			assertEquals(EventType.DISCONNECTED_TYPE, types.get(20));
+		}
+	}
+}
@@ -22,7 +22,10 @@ package net.bitdroid.network;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 
 import junit.framework.TestCase;
 import net.bitdroid.network.BitcoinNetwork.SocketState;
@@ -33,6 +36,7 @@ import net.bitdroid.network.messages.Message;
 import net.bitdroid.network.messages.PeerAddress;
 import net.bitdroid.network.messages.Transaction;
 import net.bitdroid.network.messages.Transaction.TxInput;
+import net.bitdroid.network.messages.TransactionVisitor;
 import net.bitdroid.network.messages.VerackMessage;
 import net.bitdroid.network.messages.VersionMessage;
 import net.bitdroid.network.wire.LittleEndianInputStream;
@@ -245,6 +249,97 @@ public class TestBitcoinClientSocket extends TestCase {
 		assertEquals(buf, output);
 	}
 
+	@Test
+	public void testSerializedSize() throws IOException {
+		String dumps[] = new String[]{"bitcoin-version-1.dump", "bitcoin-inv-2.dump", "bitcoin-tx-14.dump",
+				"bitcoin-block-3.dump", "bitcoin-addr-11.dump", "bitcoin-getdata-72.dump"};
+		for(String dump : dumps){
+			ThreadedBitcoinNetwork s = prepareWithDump(dump);
+			if(!dump.startsWith("bitcoin-version"))
+				s.state.currentState = SocketState.OPEN;
+			Message m = s.readMessage();
+			assertEquals(dump, m.getPayloadSize(), m.getSerializedSize());
+		}
+	}
+
+	@Test
+	public void testRawPayload() throws IOException {
+		ThreadedBitcoinNetwork s = prepareWithDump("bitcoin-block-3.dump");
+		s.state.currentState = SocketState.OPEN;
+		BlockMessage m = (BlockMessage)s.readMessage();
+		assertEquals(m.getPayloadSize(), m.getRawPayloadSize());
+		byte[] hash = m.getHash();
+		for(Transaction t : m.getTransactions()){
+			// Each transaction got its part of the block
+			ByteBuffer raw = t.getRawPayload();
+			assertNotNull(raw);
+			byte[] rawBytes = new byte[raw.remaining()];
+			raw.get(rawBytes);
+			byte[] h = t.getHash();
+
+			// Serializing it again gives the same bytes and the same hash
+			t.setRawPayload(null);
+			byte[] wire = new byte[t.getSerializedSize()];
+			t.toWire(LittleEndianOutputStream.wrap(wire));
+			assertEquals(StringUtils.getHexString(rawBytes), StringUtils.getHexString(wire));
+			assertEquals(StringUtils.getHexString(h), StringUtils.getHexString(t.getHash()));
+		}
+		m.setRawPayload(null);
+		assertEquals(StringUtils.getHexString(hash), StringUtils.getHexString(m.getHash()));
+
+		// Changing the header invalidates the cached hash
+		s = prepareWithDump("bitcoin-block-3.dump");
+		s.state.currentState = SocketState.OPEN;
+		m = (BlockMessage)s.readMessage();
+		m.setTimestamp(m.getTimestamp() + 1);
+		assertNull(m.getRawPayload());
+		assertFalse(Arrays.equals(hash, m.getHash()));
+	}
+
+	@Test
+	public void testStreamingBlock() throws IOException {
+		ThreadedBitcoinNetwork s = prepareWithDump("bitcoin-block-3.dump");
+		s.state.currentState = SocketState.OPEN;
+		BlockMessage eager = (BlockMessage)s.readMessage();
+
+		final List<String> visited = new LinkedList<String>();
+		s = prepareWithDump("bitcoin-block-3.dump");
+		s.state.currentState = SocketState.OPEN;
+		s.getCodecRegistry().register("block", new MessageFactory() {
+			public Message create() {
+				BlockMessage block = new BlockMessage(true);
+				block.setTransactionVisitor(new TransactionVisitor() {
+					public void visit(BlockMessage block, int index, Transaction transaction) throws IOException {
+						visited.add(StringUtils.getHexString(transaction.getHash()));
+					}
+				});
+				return block;
+			}
+		});
+		BlockMessage streamed = (BlockMessage)s.readMessage();
+		assertTrue(streamed.isStreaming());
+		assertEquals(eager.getTransactions().size(), streamed.getTransactionCount());
+		assertEquals(eager.getTransactions().size(), visited.size());
+
+		// Visiting later on parses the transactions again
+		final List<String> revisited = new LinkedList<String>();
+		streamed.visitTransactions(new TransactionVisitor() {
+			public void visit(BlockMessage block, int index, Transaction transaction) throws IOException {
+				revisited.add(StringUtils.getHexString(transaction.getHash()));
+			}
+		});
+		assertEquals(visited, revisited);
+
+		// Changing the header builds the list before dropping the raw bytes
+		streamed.setTimestamp(eager.getTimestamp());
+		assertEquals(visited.size(), streamed.getTransactions().size());
+		byte[] buf = readDump("bitcoin-block-3.dump", 7266);
+		byte[] output = new byte[7266];
+		s.outputStream = LittleEndianOutputStream.wrap(output);
+		s.sendMessage(null, streamed);
+		assertEquals(StringUtils.getHexString(buf), StringUtils.getHexString(output));
+	}
+
 	/**
 	 * Simpler helper
 	 * @param expected
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.messages.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestBitcoinNetwork {
+	private BitcoinNetwork network;
+
+	private static class NullNetwork extends BitcoinNetwork {
+		@Override
+		public void sendMessage(Message message) throws IOException {}
+
+		@Override
+		public void broadcast(Message message, Object exclude) {}
+	}
+
+	/**
+	 * Records the types it is notified of, and stops the propagation if
+	 * asked to.
+	 */
+	private static class RecordingListener implements BitcoinEventListener {
+		final List<EventType> received = new ArrayList<EventType>();
+		final List<EventType> sent = new ArrayList<EventType>();
+		final boolean stop;
+
+		RecordingListener(boolean stop){
+			this.stop = stop;
+		}
+
+		public void eventReceived(Event e) {
+			received.add(e.getType());
+			if(stop)
+				e.setPropagate(false);
+		}
+
+		public void messageSent(Event e) {
+			sent.add(e.getType());
+		}
+	}
+
+	@Before
+	public void setUp(){
+		network = new NullNetwork();
+	}
+
+	@Test
+	public void testSubscriptions(){
+		RecordingListener all = new RecordingListener(false);
+		RecordingListener pings = new RecordingListener(false);
+		network.addListener(all);
+		network.addListener(pings, EventType.PING_TYPE, EventType.DISCONNECTED_TYPE);
+		network.publishReceivedEvent(new Event(null, EventType.PING_TYPE));
+		network.publishReceivedEvent(new Event(null, EventType.INVENTORY_TYPE));
+		network.publishReceivedEvent(new Event(null, EventType.DISCONNECTED_TYPE));
+		network.publishSentEvent(new Event(null, EventType.PING_TYPE));
+		network.publishSentEvent(new Event(null, EventType.VERACK_TYPE));
+		assertEquals(3, all.received.size());
+		assertEquals(2, all.sent.size());
+		assertEquals(2, pings.received.size());
+		assertEquals(EventType.DISCONNECTED_TYPE, pings.received.get(1));
+		assertEquals(1, pings.sent.size());
+
+		// Events without a type only go to those interested in everything
+		network.publishReceivedEvent(new Event());
+		assertEquals(4, all.received.size());
+		assertEquals(2, pings.received.size());
+	}
+
+	@Test
+	public void testAddedOnce(){
+		RecordingListener listener = new RecordingListener(false);
+		network.addListener(listener, EventType.PING_TYPE);
+		network.addListener(listener, EventType.PING_TYPE, EventType.VERACK_TYPE);
+		network.publishReceivedEvent(new Event(null, EventType.PING_TYPE));
+		network.publishReceivedEvent(new Event(null, EventType.VERACK_TYPE));
+		assertEquals(2, listener.received.size());
+	}
+
+	@Test
+	public void testStopPropagation(){
+		RecordingListener first = new RecordingListener(false);
+		RecordingListener stopper = new RecordingListener(true);
+		RecordingListener last = new RecordingListener(false);
+		network.addListener(first);
+		network.addListener(stopper, EventType.INVENTORY_TYPE);
+		network.addListener(last);
+		network.publishReceivedEvent(new Event(null, EventType.INVENTORY_TYPE));
+		network.publishReceivedEvent(new Event(null, EventType.PING_TYPE));
+		assertEquals(2, first.received.size());
+		assertEquals(1, stopper.received.size());
+		// Didn't get the inventory, which the stopper consumed
+		assertEquals(1, last.received.size());
+		assertEquals(EventType.PING_TYPE, last.received.get(0));
+
+		// Stopping a dispatch doesn't stop the next one of the same event
+		Event relayed = new Event(null, EventType.INVENTORY_TYPE);
+		network.publishReceivedEvent(relayed);
+		network.publishSentEvent(relayed);
+		assertEquals(1, last.sent.size());
+	}
+}
@@ -0,0 +1,460 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.messages.AddrMessage;
+import net.bitdroid.network.messages.BlockMessage;
+import net.bitdroid.network.messages.InventoryMessage;
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.network.messages.PingMessage;
+import net.bitdroid.network.messages.Transaction;
+import net.bitdroid.utils.Hash256;
+import net.bitdroid.utils.Sha256d;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestBitcoinReactorNetwork {
+	private static final int LOOPS = 3;
+	private static final int PEERS = 6;
+	private static final int MESSAGES = 50;
+
+	private BitcoinReactorNetwork network;
+	private Recorder recorder = new Recorder();
+	private List<Socket> sockets = new ArrayList<Socket>();
+	private ExecutorService executor = null;
+
+	/**
+	 * Records the inventories of every peer and the threads they came from.
+	 */
+	private static class Recorder implements BitcoinEventListener {
+		Map<PeerInfo, List<Hash256>> received = new HashMap<PeerInfo, List<Hash256>>();
+		Map<PeerInfo, Set<String>> threads = new HashMap<PeerInfo, Set<String>>();
+		int count = 0;
+		// Messages received before each disconnect
+		List<Integer> disconnects = new ArrayList<Integer>();
+		long delay = 0;
+
+		public synchronized void eventReceived(Event e) throws InterruptedException {
+			if(e.getType() == EventType.DISCONNECTED_TYPE){
+				List<Hash256> hashes = received.get(e.getOrigin());
+				disconnects.add(hashes == null ? 0 : hashes.size());
+				notifyAll();
+				return;
+			}
+			if(!(e instanceof InventoryMessage))
+				return;
+			if(delay > 0)
+				Thread.sleep(delay);
+			PeerInfo origin = e.getOrigin();
+			if(!received.containsKey(origin)){
+				received.put(origin, new ArrayList<Hash256>());
+				threads.put(origin, new HashSet<String>());
+			}
+			received.get(origin).add(((InventoryMessage)e).getItems().get(0).getHash256());
+			threads.get(origin).add(Thread.currentThread().getName());
+			count++;
+			notifyAll();
+		}
+
+		public void messageSent(Event e) {}
+
+		synchronized void await(int expected) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while(count < expected && System.currentTimeMillis() < deadline)
+				wait(100);
+		}
+
+		synchronized void awaitDisconnects(int expected) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while(disconnects.size() < expected && System.currentTimeMillis() < deadline)
+				wait(100);
+		}
+	}
+
+	private void start(BitcoinReactorNetwork network){
+		this.network = network;
+		network.addListener(recorder);
+		Thread thread = new Thread(network, "reactor-loop-0");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for(Socket s : sockets)
+			s.close();
+		if(executor != null)
+			executor.shutdownNow();
+	}
+
+	private Hash256 hash(int peer, int i){
+		return Hash256.wrap(Sha256d.hash(new byte[]{(byte)peer, (byte)i}));
+	}
+
+	/**
+	 * Connect the peers and have every one of them send its inventories in
+	 * order, interleaved with the others.
+	 */
+	private void sendAll(int messages) throws IOException {
+		FrameEncoder encoder = new FrameEncoder();
+		for(int p=0; p<PEERS; p++){
+			Socket s = new Socket(InetAddress.getByName("127.0.0.1"), network.getLocalPort());
+			sockets.add(s);
+		}
+		for(int i=0; i<messages; i++){
+			for(int p=0; p<PEERS; p++){
+				InventoryMessage inv = new InventoryMessage();
+				inv.getItems().add(inv.new InventoryItem(InventoryMessage.MSG_TX, hash(p, i)));
+				ByteBuffer frame = encoder.encode(inv, false);
+				OutputStream out = sockets.get(p).getOutputStream();
+				out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+			}
+		}
+	}
+
+	/**
+	 * Check every peer's messages arrived in order.
+	 *
+	 * @return the names of the threads the messages came from.
+	 */
+	private Set<String> checkOrder(int messages){
+		Set<String> allThreads = new HashSet<String>();
+		synchronized(recorder){
+			assertEquals(PEERS * messages, recorder.count);
+			assertEquals(PEERS, recorder.received.size());
+			for(Map.Entry<PeerInfo, List<Hash256>> e : recorder.received.entrySet()){
+				List<Hash256> hashes = e.getValue();
+				allThreads.addAll(recorder.threads.get(e.getKey()));
+				int p = -1;
+				for(int q=0; q<PEERS; q++)
+					if(hash(q, 0).equals(hashes.get(0)))
+						p = q;
+				assertTrue(p >= 0);
+				for(int i=0; i<messages; i++)
+					assertEquals(hash(p, i), hashes.get(i));
+			}
+		}
+		return allThreads;
+	}
+
+	@Test
+	public void testShardedAndOrdered() throws Exception {
+		start(new BitcoinReactorNetwork(0, LOOPS));
+		sendAll(MESSAGES);
+		recorder.await(PEERS * MESSAGES);
+		Set<String> allThreads = checkOrder(MESSAGES);
+		// Every peer's messages come from a single loop
+		for(Set<String> threads : recorder.threads.values())
+			assertEquals(1, threads.size());
+		// The least loaded loop gets the next peer
+		assertEquals(LOOPS, allThreads.size());
+
+		// A broadcast from this thread reaches the peers of all loops
+		network.broadcast(new PingMessage());
+		for(Socket s : sockets){
+			s.setSoTimeout(10000);
+			byte[] header = new byte[FrameEncoder.HEADER_SIZE];
+			new DataInputStream(s.getInputStream()).readFully(header);
+			assertEquals("ping", new String(header, 4, 4, "US-ASCII"));
+		}
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		BitcoinReactorNetwork pipelined = new BitcoinReactorNetwork(0);
+		executor = Executors.newFixedThreadPool(4);
+		pipelined.setDecodeExecutor(executor);
+		start(pipelined);
+		// A slow listener makes the peers pile up more than they may
+		recorder.delay = 1;
+		int messages = 2 * BitcoinReactorNetwork.MAX_PENDING_PAYLOADS;
+		sendAll(messages);
+		recorder.await(PEERS * messages);
+		Set<String> allThreads = checkOrder(messages);
+		assertFalse(allThreads.contains("reactor-loop-0"));
+
+		// The disconnect comes after all messages of the peer
+		for(Socket s : sockets)
+			s.close();
+		recorder.awaitDisconnects(PEERS);
+		synchronized(recorder){
+			assertEquals(PEERS, recorder.disconnects.size());
+			for(int count : recorder.disconnects)
+				assertEquals(messages, count);
+		}
+	}
+
+	@Test
+	public void testSkipUnsubscribed() throws Exception {
+		network = new BitcoinReactorNetwork(0);
+		final List<Event> events = new ArrayList<Event>();
+		network.addListener(new BitcoinEventListener() {
+			public void eventReceived(Event e) {
+				synchronized(events){
+					events.add(e);
+					events.notifyAll();
+				}
+			}
+
+			public void messageSent(Event e) {}
+		}, EventType.PING_TYPE, EventType.SKIPPED_TYPE);
+		Thread thread = new Thread(network, "reactor-loop-0");
+		thread.setDaemon(true);
+		thread.start();
+
+		Socket s = new Socket(InetAddress.getByName("127.0.0.1"), network.getLocalPort());
+		sockets.add(s);
+		FrameEncoder encoder = new FrameEncoder();
+		OutputStream out = s.getOutputStream();
+		// Unknown commands, no listener wants them
+		Message[] messages = {new AddrMessage(), new PingMessage(), new AddrMessage()};
+		int payloadSize = 0;
+		for(Message m : messages){
+			ByteBuffer frame = encoder.encode(m, false);
+			if(m instanceof AddrMessage){
+				payloadSize = frame.remaining() - FrameEncoder.HEADER_SIZE;
+				byte[] command = new byte[12];
+				System.arraycopy("headers".getBytes("US-ASCII"), 0, command, 0, 7);
+				frame.duplicate().position(frame.position() + 4).put(command);
+			}
+			out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		}
+		synchronized(events){
+			long deadline = System.currentTimeMillis() + 10000;
+			while(events.size() < messages.length && System.currentTimeMillis() < deadline)
+				events.wait(100);
+			assertEquals(messages.length, events.size());
+			// In order, the unknown frames only as their header
+			assertTrue(events.get(1) instanceof PingMessage);
+			for(int i=0; i<messages.length; i+=2){
+				SkippedFrameEvent skipped = (SkippedFrameEvent)events.get(i);
+				assertEquals("headers", skipped.getCommand());
+				assertEquals(EventType.UNKNOWN_TYPE, skipped.getMessageType());
+				assertEquals(payloadSize, skipped.getPayloadSize());
+			}
+		}
+		assertEquals(2, network.getSkippedFrames());
+	}
+
+	@Test
+	public void testSentEventPerDestination() throws Exception {
+		network = new BitcoinReactorNetwork(0);
+		final List<PeerInfo> connected = new ArrayList<PeerInfo>();
+		final List<SentMessageEvent> sent = new ArrayList<SentMessageEvent>();
+		network.addListener(new BitcoinEventListener() {
+			public void eventReceived(Event e) {
+				synchronized(sent){
+					connected.add(e.getOrigin());
+				}
+			}
+
+			public void messageSent(Event e) {
+				synchronized(sent){
+					sent.add((SentMessageEvent)e);
+				}
+			}
+		}, EventType.INCOMING_CONNECTION_TYPE, EventType.PING_TYPE);
+		Thread thread = new Thread(network, "reactor-loop-0");
+		thread.setDaemon(true);
+		thread.start();
+		for(int p=0; p<2; p++)
+			sockets.add(new Socket(InetAddress.getByName("127.0.0.1"), network.getLocalPort()));
+		long deadline = System.currentTimeMillis() + 10000;
+		while(System.currentTimeMillis() < deadline){
+			synchronized(sent){
+				if(connected.size() == 2)
+					break;
+			}
+			Thread.sleep(10);
+		}
+
+		PingMessage ping = new PingMessage();
+		network.broadcast(ping);
+		for(Socket s : sockets){
+			s.setSoTimeout(10000);
+			new DataInputStream(s.getInputStream()).readFully(new byte[FrameEncoder.HEADER_SIZE]);
+		}
+		while(System.currentTimeMillis() < deadline){
+			synchronized(sent){
+				if(sent.size() == 2)
+					break;
+			}
+			Thread.sleep(10);
+		}
+		synchronized(sent){
+			assertEquals(2, sent.size());
+			// The same message, to each of the peers
+			Set<PeerInfo> destinations = new HashSet<PeerInfo>();
+			for(SentMessageEvent e : sent){
+				assertTrue(e.getMessage() == ping);
+				destinations.add(e.getDestination());
+			}
+			assertEquals(new HashSet<PeerInfo>(connected), destinations);
+		}
+	}
+
+	@Test
+	public void testFramesAfterDisconnectReleased() throws Exception {
+		network = new BitcoinReactorNetwork(0);
+		final List<PeerInfo> peers = new ArrayList<PeerInfo>();
+		final List<PeerInfo> disconnected = new ArrayList<PeerInfo>();
+		network.addListener(new BitcoinEventListener() {
+			public void eventReceived(Event e) {
+				synchronized(peers){
+					if(e.getType() == EventType.DISCONNECTED_TYPE)
+						disconnected.add(e.getOrigin());
+					else
+						peers.add(e.getOrigin());
+					peers.notifyAll();
+				}
+			}
+
+			public void messageSent(Event e) {}
+		}, EventType.INCOMING_CONNECTION_TYPE, EventType.DISCONNECTED_TYPE);
+		Thread thread = new Thread(network, "reactor-loop-0");
+		thread.setDaemon(true);
+		thread.start();
+		Socket s = new Socket(InetAddress.getByName("127.0.0.1"), network.getLocalPort());
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized(peers){
+			while(peers.isEmpty() && System.currentTimeMillis() < deadline)
+				peers.wait(100);
+		}
+		s.close();
+		synchronized(peers){
+			while(disconnected.isEmpty() && System.currentTimeMillis() < deadline)
+				peers.wait(100);
+			assertEquals(peers, disconnected);
+		}
+
+		EncodedFrame frame = new EncodedFrame(new PingMessage());
+		network.sendFrame(disconnected.get(0), frame.retain());
+		// The queue released its reference instead of keeping the frame
+		assertEquals(1, frame.getReferenceCount());
+		frame.release();
+	}
+
+	@Test
+	public void testPipelinedRawPayload() throws Exception {
+		network = new BitcoinReactorNetwork(0);
+		executor = Executors.newFixedThreadPool(2);
+		network.setDecodeExecutor(executor);
+		final List<Transaction> received = new ArrayList<Transaction>();
+		network.addListener(new BitcoinEventListener() {
+			public void eventReceived(Event e) {
+				synchronized(received){
+					received.add((Transaction)e);
+					received.notifyAll();
+				}
+			}
+
+			public void messageSent(Event e) {}
+		}, EventType.TRANSACTION_TYPE);
+		Thread thread = new Thread(network, "reactor-loop-0");
+		thread.setDaemon(true);
+		thread.start();
+
+		Transaction tx = new Transaction();
+		ByteBuffer frame = new FrameEncoder().encode(tx, false);
+		Socket s = new Socket(InetAddress.getByName("127.0.0.1"), network.getLocalPort());
+		sockets.add(s);
+		s.getOutputStream().write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized(received){
+			while(received.isEmpty() && System.currentTimeMillis() < deadline)
+				received.wait(100);
+			assertEquals(1, received.size());
+			// Read from the bytes it keeps, they hash to the same
+			Transaction copy = received.get(0);
+			assertEquals(tx.getSerializedSize(), copy.getRawPayloadSize());
+			assertEquals(tx.getHash256(), copy.getHash256());
+		}
+	}
+
+	@Test
+	public void testLargeBlockOffLoop() throws Exception {
+		network = new BitcoinReactorNetwork(0);
+		final List<Event> received = new ArrayList<Event>();
+		final List<String> threads = new ArrayList<String>();
+		network.addListener(new BitcoinEventListener() {
+			public void eventReceived(Event e) {
+				synchronized(received){
+					received.add(e);
+					threads.add(Thread.currentThread().getName());
+					received.notifyAll();
+				}
+			}
+
+			public void messageSent(Event e) {}
+		}, EventType.BLOCK_TYPE, EventType.PING_TYPE);
+		Thread thread = new Thread(network, "reactor-loop-0");
+		thread.setDaemon(true);
+		thread.start();
+
+		BlockMessage block = new BlockMessage();
+		for(int i=0; i<BlockMessage.PARALLEL_DECODE_THRESHOLD; i++)
+			block.getTransactions().add(new Transaction());
+		// An encoder reuses its buffer, so each frame gets its own
+		ByteBuffer blockFrame = new FrameEncoder().encode(block, false);
+		ByteBuffer pingFrame = new FrameEncoder().encode(new PingMessage(), false);
+		Socket s = new Socket(InetAddress.getByName("127.0.0.1"), network.getLocalPort());
+		sockets.add(s);
+		// Both in one go, the ping is already buffered when the block is read
+		byte[] bytes = new byte[blockFrame.remaining() + pingFrame.remaining()];
+		blockFrame.get(bytes, 0, blockFrame.remaining());
+		pingFrame.get(bytes, bytes.length - pingFrame.remaining(), pingFrame.remaining());
+		s.getOutputStream().write(bytes);
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized(received){
+			while(received.size() < 2 && System.currentTimeMillis() < deadline)
+				received.wait(100);
+			assertEquals(2, received.size());
+			// Decoded by the pool, but published on the loop and in order
+			BlockMessage decoded = (BlockMessage)received.get(0);
+			assertEquals(BlockMessage.PARALLEL_DECODE_THRESHOLD, decoded.getTransactions().size());
+			assertTrue(received.get(1) instanceof PingMessage);
+			assertEquals("reactor-loop-0", threads.get(0));
+			assertEquals("reactor-loop-0", threads.get(1));
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.messages.InventoryMessage;
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.network.messages.Transaction;
+import net.bitdroid.network.messages.VerackMessage;
+import net.bitdroid.network.relay.GetDataTracker;
+import net.bitdroid.network.relay.InventoryAnnouncer;
+import net.bitdroid.network.relay.RelayCache;
+import net.bitdroid.network.relay.SeenInventorySet;
+import net.bitdroid.network.tasks.DeferredTask;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestBroadcastListener {
+
+	/**
+	 * Records what would be sent instead of sending it.
+	 */
+	private static class RecordingNetwork extends BitcoinNetwork {
+		List<Message> sent = new ArrayList<Message>();
+		List<DeferredTask> tasks = new ArrayList<DeferredTask>();
+		List<Message> broadcast = new ArrayList<Message>();
+
+		@Override
+		public void sendMessage(Message event) throws IOException {
+			sent.add(event);
+		}
+
+		@Override
+		public void broadcast(Message message, Object exclude) {
+			broadcast.add(message);
+		}
+
+		@Override
+		public void queueTask(DeferredTask task) {
+			tasks.add(task);
+		}
+	}
+
+	private InventoryMessage announce(PeerInfo origin, Transaction tx){
+		InventoryMessage inv = new InventoryMessage();
+		inv.getItems().add(inv.new InventoryItem(InventoryMessage.MSG_TX, tx.getHash256()));
+		inv.setOrigin(origin);
+		return inv;
+	}
+
+	@Test
+	public void testDefaultTracker() throws Exception {
+		RecordingNetwork network = new RecordingNetwork();
+		BroadcastListener listener = new BroadcastListener(network, new SeenInventorySet(64 * 1024, 60 * 1000, 4),
+				null, null, new RelayCache(64 * 1024));
+		// The announcer first, then the tracker
+		assertEquals(2, network.tasks.size());
+		assertTrue(network.tasks.get(0) instanceof InventoryAnnouncer);
+		GetDataTracker tracker = (GetDataTracker)network.tasks.get(1);
+		assertTrue(network.isSubscribed(EventType.DISCONNECTED_TYPE));
+		assertTrue(network.isSubscribed(EventType.VERACK_TYPE));
+		PeerInfo first = new PeerInfo(InetAddress.getByName("127.0.0.1"), 1);
+		PeerInfo second = new PeerInfo(InetAddress.getByName("127.0.0.1"), 2);
+		Transaction tx = new Transaction();
+
+		listener.eventReceived(announce(first, tx));
+		assertEquals(1, network.sent.size());
+		assertSame(first, network.sent.get(0).getOrigin());
+		assertEquals(1, tracker.getInFlight(first));
+
+		// Only one request at a time, the second announcer is the fallback
+		listener.eventReceived(announce(second, tx));
+		assertEquals(1, network.sent.size());
+		assertEquals(1, tracker.getAnnounced(second));
+
+		// Once it arrived nobody is asked anymore
+		tx.setOrigin(first);
+		listener.eventReceived(tx);
+		assertFalse(tracker.isRequested(tx.getHash256()));
+		listener.eventReceived(announce(second, tx));
+		assertEquals(1, network.sent.size());
+	}
+
+	@Test
+	public void testDefaultAnnouncer() throws Exception {
+		RecordingNetwork network = new RecordingNetwork();
+		BroadcastListener listener = new BroadcastListener(network, new SeenInventorySet(64 * 1024, 60 * 1000, 4),
+				null, null, new RelayCache(64 * 1024));
+		InventoryAnnouncer announcer = (InventoryAnnouncer)network.tasks.get(0);
+		PeerInfo origin = new PeerInfo(InetAddress.getByName("127.0.0.1"), 1);
+		PeerInfo peer = new PeerInfo(InetAddress.getByName("127.0.0.1"), 2);
+		VerackMessage verack = new VerackMessage();
+		verack.setOrigin(peer);
+		network.publishReceivedEvent(verack);
+
+		// Transactions are trickled out instead of broadcast
+		Transaction tx = new Transaction();
+		tx.setOrigin(origin);
+		listener.eventReceived(tx);
+		assertTrue(network.broadcast.isEmpty());
+		assertEquals(1, announcer.getQueuedItems(peer));
+	}
+
+	@Test
+	public void testRelayedWithoutCache() throws Exception {
+		RecordingNetwork network = new RecordingNetwork();
+		// Too small for any frame
+		RelayCache cache = new RelayCache(1);
+		BroadcastListener listener = new BroadcastListener(network, new SeenInventorySet(64 * 1024, 60 * 1000, 4),
+				null, null, cache);
+		InventoryAnnouncer announcer = (InventoryAnnouncer)network.tasks.get(0);
+		PeerInfo origin = new PeerInfo(InetAddress.getByName("127.0.0.1"), 1);
+		PeerInfo peer = new PeerInfo(InetAddress.getByName("127.0.0.1"), 2);
+		VerackMessage verack = new VerackMessage();
+		verack.setOrigin(peer);
+		network.publishReceivedEvent(verack);
+
+		Transaction tx = new Transaction();
+		tx.setOrigin(origin);
+		listener.eventReceived(tx);
+		assertEquals(0, cache.getCount());
+		assertEquals(1, announcer.getQueuedItems(peer));
+
+		// Announced once only
+		listener.eventReceived(tx);
+		assertEquals(1, announcer.getQueuedItems(peer));
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.network.wire.BufferPool;
+import net.bitdroid.network.wire.LittleEndianBufferReader;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestEncodedFrame {
+
+	protected byte[] readDump(String filename) throws IOException{
+		InputStream in = ClassLoader.getSystemResourceAsStream(filename);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1)
+			out.write(b);
+		return out.toByteArray();
+	}
+
+	private byte[] concat(ByteBuffer[] buffers){
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(ByteBuffer b : buffers)
+			while(b.hasRemaining())
+				out.write(b.get());
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testSharedViews() throws IOException {
+		byte[] dump = readDump("bitcoin-inv-2.dump");
+		Message inv = MessageCodecRegistry.createDefault().create("inv");
+		inv.read(new LittleEndianBufferReader(dump, 24, dump.length - 24));
+
+		BufferPool pool = new BufferPool(false);
+		EncodedFrame frame = EncodedFrame.encode(inv, new FrameEncoder(), pool);
+		assertTrue(frame.isEncoded());
+		assertEquals(dump.length, frame.getSize(true));
+		assertEquals(dump.length - 4, frame.getSize(false));
+
+		// Two peers consuming their views independently
+		frame.retain();
+		ByteBuffer[] first = frame.getBuffers(true);
+		ByteBuffer[] second = frame.getBuffers(true);
+		assertArrayEquals(dump, concat(first));
+		assertArrayEquals(dump, concat(second));
+		assertTrue(first[0].isReadOnly());
+
+		byte[] noChecksum = concat(frame.getBuffers(false));
+		assertEquals(dump.length - 4, noChecksum.length);
+		for(int i=0; i<20; i++)
+			assertEquals(dump[i], noChecksum[i]);
+		for(int i=20; i<noChecksum.length; i++)
+			assertEquals(dump[i + 4], noChecksum[i]);
+
+		frame.release();
+		assertTrue(frame.isEncoded());
+		frame.release();
+		assertFalse(frame.isEncoded());
+		// The buffer went back to the pool
+		EncodedFrame.encode(inv, new FrameEncoder(), pool);
+		assertEquals(1, pool.getReuses());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testUnencoded() throws IOException {
+		Message verack = MessageCodecRegistry.createDefault().create("verack");
+		EncodedFrame frame = new EncodedFrame(verack);
+		assertFalse(frame.isEncoded());
+		assertEquals(20, frame.getSize(false));
+		frame.getBuffers(false);
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import net.bitdroid.network.wire.BufferPool;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestFrameDecoder {
+
+	protected byte[] readDump(String filename) throws IOException{
+		InputStream in = ClassLoader.getSystemResourceAsStream(filename);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1)
+			out.write(b);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Channel handing out at most <code>chunk</code> bytes per read, to
+	 * simulate short reads from the socket.
+	 */
+	protected ReadableByteChannel chunkedChannel(final byte[] data, final int chunk){
+		return new ReadableByteChannel() {
+			int position = 0;
+
+			public int read(ByteBuffer dst) throws IOException {
+				if(position == data.length)
+					return -1;
+				int n = Math.min(chunk, Math.min(dst.remaining(), data.length - position));
+				dst.put(data, position, n);
+				position += n;
+				return n;
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() throws IOException {
+			}
+		};
+	}
+
+	@Test
+	public void testMultipleFramesPerRead() throws IOException {
+		byte[] inv = readDump("bitcoin-inv-2.dump");
+		byte[] data = new byte[inv.length * 3];
+		for(int i=0; i<3; i++)
+			System.arraycopy(inv, 0, data, i * inv.length, inv.length);
+		FrameDecoder decoder = new FrameDecoder(4096, true);
+		decoder.read(chunkedChannel(data, data.length));
+		for(int i=0; i<3; i++){
+			assertTrue(decoder.next(true));
+			assertEquals("inv", decoder.getCommand());
+			assertEquals(289, decoder.getPayloadSize());
+			assertEquals(289, decoder.getPayload().remaining());
+		}
+		assertFalse(decoder.next(true));
+	}
+
+	@Test
+	public void testShortReadsAndSpill() throws IOException {
+		byte[] block = readDump("bitcoin-block-3.dump");
+		byte[] inv = readDump("bitcoin-inv-2.dump");
+		byte[] data = new byte[block.length + inv.length];
+		System.arraycopy(block, 0, data, 0, block.length);
+		System.arraycopy(inv, 0, data, block.length, inv.length);
+
+		// The block does not fit into the buffer and has to be spilled
+		FrameDecoder decoder = new FrameDecoder(512, false);
+		ReadableByteChannel channel = chunkedChannel(data, 7);
+		int frames = 0;
+		String[] commands = new String[]{"block", "inv"};
+		int[] sizes = new int[]{block.length - 24, inv.length - 24};
+		while(decoder.read(channel) >= 0){
+			while(decoder.next(true)){
+				assertEquals(commands[frames], decoder.getCommand());
+				assertEquals(sizes[frames], decoder.getPayload().remaining());
+				frames++;
+			}
+		}
+		assertEquals(2, frames);
+	}
+
+	@Test
+	public void testSpillIsRecycled() throws IOException {
+		byte[] block = readDump("bitcoin-block-3.dump");
+		byte[] data = new byte[2 * block.length];
+		System.arraycopy(block, 0, data, 0, block.length);
+		System.arraycopy(block, 0, data, block.length, block.length);
+
+		BufferPool pool = new BufferPool(false);
+		FrameDecoder decoder = new FrameDecoder(512, false, pool);
+		ReadableByteChannel channel = chunkedChannel(data, 100);
+		int frames = 0;
+		while(decoder.read(channel) >= 0){
+			while(decoder.next(true)){
+				assertEquals(1, decoder.getPooledPayload().getReferenceCount());
+				decoder.releasePayload();
+				frames++;
+			}
+		}
+		assertEquals(2, frames);
+		// The second block reused the buffer of the first one
+		assertEquals(1, pool.getAllocations());
+		assertEquals(1, pool.getReuses());
+	}
+
+	@Test(expected=IOException.class)
+	public void testChecksumMismatch() throws IOException {
+		byte[] data = readDump("bitcoin-inv-2.dump");
+		data[data.length - 1] ^= 1;
+		FrameDecoder decoder = new FrameDecoder(4096, false);
+		decoder.read(chunkedChannel(data, data.length));
+		decoder.next(true);
+	}
+
+	@Test
+	public void testChecksumNotVerified() throws IOException {
+		byte[] data = readDump("bitcoin-inv-2.dump");
+		data[data.length - 1] ^= 1;
+		FrameDecoder decoder = new FrameDecoder(4096, false);
+		decoder.setVerifyChecksums(false);
+		decoder.read(chunkedChannel(data, data.length));
+		assertTrue(decoder.next(true));
+	}
+
+	@Test(expected=IOException.class)
+	public void testOutOfSync() throws IOException {
+		byte[] data = readDump("bitcoin-inv-2.dump");
+		data[0] = 0;
+		FrameDecoder decoder = new FrameDecoder(4096, false);
+		decoder.read(chunkedChannel(data, data.length));
+		decoder.next(true);
+	}
+}
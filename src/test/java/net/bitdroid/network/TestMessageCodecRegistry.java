@@ -0,0 +1,100 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.messages.BlockMessage;
+import net.bitdroid.network.messages.GetAddrMessage;
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.network.messages.PingMessage;
+import net.bitdroid.network.messages.Transaction;
+import net.bitdroid.network.messages.UnknownMessage;
+import net.bitdroid.network.messages.VersionMessage;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestMessageCodecRegistry {
+
+	@Test
+	public void testDefaults(){
+		MessageCodecRegistry registry = MessageCodecRegistry.createDefault();
+		assertTrue(registry.create("version") instanceof VersionMessage);
+		assertTrue(registry.create("tx") instanceof Transaction);
+		Message unknown = registry.create("headers");
+		assertTrue(unknown instanceof UnknownMessage);
+		assertEquals("headers", unknown.getCommand());
+		// Commands without a message type stay unknown
+		String[] unsupported = {"headers", "getheaders", "pong", "sendheaders", "feefilter"};
+		for(String command : unsupported){
+			assertFalse(registry.isRegistered(command));
+			assertTrue(registry.create(command) instanceof UnknownMessage);
+		}
+	}
+
+	@Test
+	public void testRegister(){
+		MessageCodecRegistry registry = MessageCodecRegistry.createDefault();
+		assertFalse(registry.isRegistered("pong"));
+		// Enough registrations to force the table to grow
+		for(int i=0; i<20; i++){
+			final String command = "cmd" + i;
+			registry.register(command, new MessageFactory() {
+				public Message create() {
+					UnknownMessage m = new UnknownMessage();
+					m.setCommand(command.toUpperCase());
+					return m;
+				}
+			});
+		}
+		registry.register("pong", new MessageFactory() {
+			public Message create() {
+				return new PingMessage();
+			}
+		});
+		assertTrue(registry.create("pong") instanceof PingMessage);
+		assertEquals(EventType.PING_TYPE, registry.getType(0x676e6f70L, 0));
+		for(int i=0; i<20; i++)
+			assertEquals("CMD" + i, registry.create("cmd" + i).getCommand());
+		assertTrue(registry.create("block") instanceof BlockMessage);
+
+		registry.unregister("pong");
+		assertTrue(registry.create("pong") instanceof UnknownMessage);
+		assertEquals(EventType.UNKNOWN_TYPE, registry.getType(0x676e6f70L, 0));
+	}
+
+	@Test
+	public void testPackedCommand() throws IOException {
+		// "getaddr" and "sendheaders" packed as they are read from a header
+		MessageCodecRegistry registry = MessageCodecRegistry.createDefault();
+		long low = 0x0072646461746567L;
+		assertEquals("getaddr", MessageCodecRegistry.toCommand(low, 0));
+		assertTrue(registry.create(low, 0) instanceof GetAddrMessage);
+		assertEquals(EventType.GET_ADDR_TYPE, registry.getType(low, 0));
+		assertEquals("sendheaders", MessageCodecRegistry.toCommand(0x64616568646e6573L, 0x737265L));
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import net.bitdroid.network.wire.LittleEndianBufferReader;
+import net.bitdroid.network.wire.LittleEndianOutputStream;
+import net.bitdroid.utils.MerkleTree;
+import net.bitdroid.utils.StringUtils;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestBlockMessage {
+
+	protected byte[] readPayload(String filename) throws IOException{
+		InputStream in = ClassLoader.getSystemResourceAsStream(filename);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1)
+			out.write(b);
+		byte[] frame = out.toByteArray();
+		byte[] payload = new byte[frame.length - 24];
+		System.arraycopy(frame, 24, payload, 0, payload.length);
+		return payload;
+	}
+
+	protected BlockMessage readBlock(byte[] payload, ForkJoinPool pool) throws IOException {
+		BlockMessage block = new BlockMessage();
+		block.setDecodePool(pool);
+		block.setRawPayload(ByteBuffer.wrap(payload));
+		block.read(new LittleEndianBufferReader(payload));
+		return block;
+	}
+
+	/**
+	 * The dumped block has too few transactions to be decoded in parallel, so
+	 * build a bigger one by repeating them, with a matching merkle root.
+	 */
+	protected byte[] bigBlock() throws IOException {
+		BlockMessage block = readBlock(readPayload("bitcoin-block-3.dump"), null);
+		List<Transaction> transactions = block.getTransactions();
+		int count = transactions.size();
+		for(int i=0; transactions.size() < 3 * BlockMessage.PARALLEL_DECODE_THRESHOLD; i++)
+			transactions.add(transactions.get(i % count));
+		block.setRawPayload(null);
+		byte[] root = block.getMerkleTree().getRoot();
+		StringUtils.reverse(root);
+		block.setMerkleRoot(root);
+		byte[] payload = new byte[block.getSerializedSize()];
+		block.toWire(LittleEndianOutputStream.wrap(payload));
+		return payload;
+	}
+
+	@Test
+	public void testParallelDecode() throws IOException {
+		byte[] payload = bigBlock();
+		BlockMessage sequential = readBlock(payload, null);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try{
+			BlockMessage parallel = readBlock(payload, pool);
+			List<Transaction> expected = sequential.getTransactions();
+			List<Transaction> actual = parallel.getTransactions();
+			assertEquals(expected.size(), actual.size());
+			for(int i=0; i<expected.size(); i++)
+				assertArrayEquals(expected.get(i).getHash(), actual.get(i).getHash());
+
+			// Also without raw bytes to hash from
+			BlockMessage plain = new BlockMessage();
+			plain.setDecodePool(pool);
+			plain.read(new LittleEndianBufferReader(payload));
+			assertEquals(expected.size(), plain.getTransactions().size());
+			assertArrayEquals(expected.get(7).getHash(), plain.getTransactions().get(7).getHash());
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	@Test(expected=IOException.class)
+	public void testParallelDecodeTruncated() throws IOException {
+		byte[] payload = bigBlock();
+		byte[] truncated = new byte[payload.length - 10];
+		System.arraycopy(payload, 0, truncated, 0, truncated.length);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try{
+			readBlock(truncated, pool);
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testMerkleRoot() throws IOException {
+		byte[] payload = readPayload("bitcoin-block-3.dump");
+		assertTrue(readBlock(payload, null).verifyMerkleRoot());
+
+		// Streaming blocks are hashed without parsing their transactions
+		BlockMessage streaming = new BlockMessage(true);
+		streaming.setRawPayload(ByteBuffer.wrap(payload));
+		streaming.read(new LittleEndianBufferReader(payload));
+		assertTrue(streaming.verifyMerkleRoot());
+
+		// From the parsed transactions only
+		BlockMessage plain = new BlockMessage();
+		plain.read(new LittleEndianBufferReader(payload));
+		assertTrue(plain.verifyMerkleRoot());
+
+		byte[] tampered = payload.clone();
+		tampered[40] ^= 1;
+		assertFalse(readBlock(tampered, null).verifyMerkleRoot());
+	}
+
+	@Test
+	public void testParallelMerkleRoot() throws IOException {
+		byte[] payload = bigBlock();
+		BlockMessage sequential = readBlock(payload, null);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try{
+			BlockMessage parallel = readBlock(payload, pool);
+			// The parallel decode hashed them, the tree takes those hashes
+			for(Transaction t : parallel.getTransactions())
+				assertTrue(t.isHashed());
+			assertArrayEquals(sequential.getMerkleTree().getRoot(), parallel.getMerkleTree().getRoot());
+			assertTrue(parallel.verifyMerkleRoot());
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testMerkleBranch() throws IOException {
+		byte[] payload = bigBlock();
+		// One more transaction to get odd levels
+		BlockMessage block = readBlock(payload, null);
+		List<Transaction> transactions = block.getTransactions();
+		transactions.add(transactions.get(1));
+		block.setRawPayload(null);
+		MerkleTree tree = block.getMerkleTree();
+		assertEquals(transactions.size(), tree.getLeafCount());
+		for(int i=0; i<transactions.size(); i++){
+			byte[] leaf = transactions.get(i).getHash();
+			StringUtils.reverse(leaf);
+			List<byte[]> branch = block.getMerkleBranch(i);
+			assertArrayEquals(tree.getRoot(), MerkleTree.getRoot(leaf, branch, i));
+		}
+		byte[] leaf = transactions.get(2).getHash();
+		StringUtils.reverse(leaf);
+		assertFalse(Arrays.equals(tree.getRoot(), MerkleTree.getRoot(leaf, block.getMerkleBranch(2), 3)));
+	}
+
+	@Test(expected=IOException.class)
+	public void testNegativeTransactionCount() throws IOException {
+		byte[] header = readPayload("bitcoin-block-3.dump");
+		byte[] payload = new byte[80 + 9];
+		System.arraycopy(header, 0, payload, 0, 80);
+		// A full 64 bit count, negative once read into a long
+		Arrays.fill(payload, 80, payload.length, (byte)0xFF);
+		readBlock(payload, null);
+	}
+}
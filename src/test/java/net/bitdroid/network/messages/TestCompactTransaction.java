@@ -0,0 +1,140 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import net.bitdroid.network.messages.Transaction.TxInput;
+import net.bitdroid.network.messages.Transaction.TxOutput;
+import net.bitdroid.network.wire.LittleEndianBufferReader;
+import net.bitdroid.network.wire.LittleEndianOutputStream;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestCompactTransaction {
+
+	protected byte[] readPayload(String filename) throws IOException{
+		InputStream in = ClassLoader.getSystemResourceAsStream(filename);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1)
+			out.write(b);
+		byte[] frame = out.toByteArray();
+		byte[] payload = new byte[frame.length - 24];
+		System.arraycopy(frame, 24, payload, 0, payload.length);
+		return payload;
+	}
+
+	private byte[] toArray(ByteBuffer b){
+		byte[] a = new byte[b.remaining()];
+		b.get(a);
+		return a;
+	}
+
+	private void assertSame(Transaction expected, CompactTransaction actual) throws IOException {
+		assertArrayEquals(expected.getHash(), actual.getHash());
+		assertEquals(expected.getVersion(), actual.getVersion());
+		assertEquals(expected.getLocktime(), actual.getLocktime());
+		assertEquals(expected.getSerializedSize(), actual.getSerializedSize());
+
+		List<TxInput> inputs = actual.getInputs();
+		assertEquals(expected.getInputs().size(), actual.getInputCount());
+		assertEquals(expected.getInputs().size(), inputs.size());
+		for(int i=0; i<inputs.size(); i++){
+			TxInput e = expected.getInputs().get(i);
+			assertArrayEquals(e.getPrevious().getHash(), actual.getPreviousHash(i));
+			assertEquals(e.getPrevious().getIndex(), actual.getPreviousIndex(i));
+			assertArrayEquals(e.getSignature(), toArray(actual.getSignature(i)));
+			assertEquals(e.getSequence(), actual.getSequence(i));
+			assertArrayEquals(e.getSignature(), inputs.get(i).getSignature());
+			assertEquals(e.getPrevious().getIndex(), inputs.get(i).getPrevious().getIndex());
+		}
+
+		List<TxOutput> outputs = actual.getOutputs();
+		assertEquals(expected.getOutputs().size(), actual.getOutputCount());
+		for(int i=0; i<outputs.size(); i++){
+			TxOutput e = expected.getOutputs().get(i);
+			assertEquals(e.getValue().longValue(), actual.getValue(i));
+			assertArrayEquals(e.getScript(), toArray(actual.getScript(i)));
+			assertEquals(e.getValue(), outputs.get(i).getValue());
+			assertArrayEquals(e.getScript(), outputs.get(i).getScript());
+		}
+	}
+
+	@Test
+	public void testTransaction() throws IOException {
+		byte[] payload = readPayload("bitcoin-tx-14.dump");
+		Transaction tx = new Transaction();
+		tx.read(new LittleEndianBufferReader(payload));
+		CompactTransaction compact = CompactTransaction.read(ByteBuffer.wrap(payload));
+		assertSame(tx, compact);
+
+		byte[] b = new byte[compact.getSerializedSize()];
+		compact.toWire(LittleEndianOutputStream.wrap(b));
+		assertArrayEquals(payload, b);
+
+		Transaction back = compact.toTransaction();
+		assertArrayEquals(tx.getHash(), back.getHash());
+		assertEquals(tx.getOutputs().size(), back.getOutputs().size());
+
+		// Without raw bytes the transaction is serialized first
+		assertSame(tx, CompactTransaction.of(tx));
+	}
+
+	@Test
+	public void testBlockTransactions() throws IOException {
+		byte[] payload = readPayload("bitcoin-block-3.dump");
+		BlockMessage block = new BlockMessage();
+		block.setRawPayload(ByteBuffer.wrap(payload));
+		block.read(new LittleEndianBufferReader(payload));
+		for(Transaction t : block.getTransactions())
+			assertSame(t, CompactTransaction.of(t));
+	}
+
+	@Test(expected=IOException.class)
+	public void testTrailingBytes() throws IOException {
+		byte[] payload = readPayload("bitcoin-tx-14.dump");
+		byte[] longer = new byte[payload.length + 1];
+		System.arraycopy(payload, 0, longer, 0, payload.length);
+		CompactTransaction.read(ByteBuffer.wrap(longer));
+	}
+
+	@Test(expected=IOException.class)
+	public void testNegativeInputCount() throws IOException {
+		byte[] payload = new byte[]{1, 0, 0, 0, (byte)0xFF, 0, 0, 0, 0, 0, 0, 0, (byte)0x80};
+		CompactTransaction.read(ByteBuffer.wrap(payload));
+	}
+
+	@Test(expected=IOException.class)
+	public void testHugeInputCount() throws IOException {
+		// 2^30 inputs in a few bytes, must not be allocated up front
+		byte[] payload = new byte[]{1, 0, 0, 0, (byte)0xFE, 0, 0, 0, 0x40};
+		new Transaction().read(new LittleEndianBufferReader(payload));
+	}
+}
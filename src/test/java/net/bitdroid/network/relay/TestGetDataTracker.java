@@ -0,0 +1,193 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.bitdroid.network.BitcoinNetwork;
+import net.bitdroid.network.Event;
+import net.bitdroid.network.Event.EventType;
+import net.bitdroid.network.PeerInfo;
+import net.bitdroid.network.messages.GetDataMessage;
+import net.bitdroid.network.messages.InventoryMessage;
+import net.bitdroid.network.messages.InventoryMessage.InventoryItem;
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.utils.Hash256;
+import net.bitdroid.utils.Sha256d;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestGetDataTracker {
+	private RecordingNetwork network;
+
+	/**
+	 * Records what would be sent instead of sending it.
+	 */
+	private static class RecordingNetwork extends BitcoinNetwork {
+		List<Message> sent = new ArrayList<Message>();
+
+		@Override
+		public void sendMessage(Message event) throws IOException {
+			sent.add(event);
+		}
+
+		@Override
+		public void broadcast(Message message, Object exclude) {}
+	}
+
+	@Before
+	public void setUp(){
+		network = new RecordingNetwork();
+	}
+
+	private PeerInfo peer(int port) throws IOException {
+		return new PeerInfo(InetAddress.getByName("127.0.0.1"), port);
+	}
+
+	private InventoryItem item(int i){
+		InventoryMessage inv = new InventoryMessage();
+		return inv.new InventoryItem(InventoryMessage.MSG_TX,
+				Hash256.wrap(Sha256d.hash(new byte[]{(byte)i, (byte)(i >>> 8)})));
+	}
+
+	@Test
+	public void testFallbackOnTimeout() throws Exception {
+		GetDataTracker tracker = new GetDataTracker(network, 0);
+		PeerInfo first = peer(1), second = peer(2);
+		InventoryItem item = item(1);
+
+		assertTrue(tracker.announced(first, item));
+		assertFalse(tracker.announced(second, item));
+		assertEquals(1, tracker.getInFlight(first));
+		assertEquals(0, tracker.getInFlight(second));
+
+		Thread.sleep(5);
+		tracker.execute();
+		assertEquals(1, network.sent.size());
+		GetDataMessage gdm = (GetDataMessage)network.sent.get(0);
+		assertSame(second, gdm.getOrigin());
+		assertEquals(item.getHash256(), gdm.getItems().get(0).getHash256());
+		assertEquals(0, tracker.getInFlight(first));
+		assertEquals(1, tracker.getInFlight(second));
+
+		// Nobody else to ask, the item is forgotten
+		Thread.sleep(5);
+		tracker.execute();
+		assertEquals(1, network.sent.size());
+		assertFalse(tracker.isRequested(item.getHash256()));
+		assertEquals(0, tracker.getInFlight(second));
+	}
+
+	@Test
+	public void testReceived() throws Exception {
+		GetDataTracker tracker = new GetDataTracker(network);
+		PeerInfo first = peer(1), second = peer(2);
+		InventoryItem item = item(1);
+		tracker.announced(first, item);
+		tracker.announced(second, item);
+		tracker.received(item.getHash256());
+		assertFalse(tracker.isRequested(item.getHash256()));
+		assertEquals(0, tracker.getInFlight(first));
+		tracker.execute();
+		assertTrue(network.sent.isEmpty());
+	}
+
+	@Test
+	public void testDisconnect() throws Exception {
+		GetDataTracker tracker = new GetDataTracker(network);
+		PeerInfo first = peer(1), second = peer(2);
+		InventoryItem item = item(1);
+		tracker.announced(first, item);
+		tracker.announced(second, item);
+
+		tracker.eventReceived(new Event(first, EventType.DISCONNECTED_TYPE));
+		tracker.execute();
+		assertEquals(1, network.sent.size());
+		assertSame(second, network.sent.get(0).getOrigin());
+	}
+
+	@Test
+	public void testPerPeerCap() throws Exception {
+		GetDataTracker tracker = new GetDataTracker(network);
+		PeerInfo first = peer(1), second = peer(2);
+		for(int i=0; i<GetDataTracker.MAX_IN_FLIGHT_PER_PEER; i++)
+			assertTrue(tracker.announced(first, item(i)));
+		InventoryItem extra = item(GetDataTracker.MAX_IN_FLIGHT_PER_PEER);
+		assertFalse(tracker.announced(first, extra));
+		assertTrue(tracker.isRequested(extra.getHash256()));
+		assertEquals(GetDataTracker.MAX_IN_FLIGHT_PER_PEER, tracker.getInFlight(first));
+
+		// Waits for a peer with a free slot
+		tracker.announced(second, extra);
+		assertEquals(1, tracker.getInFlight(second));
+	}
+
+	@Test
+	public void testWaitingExpires() throws Exception {
+		GetDataTracker tracker = new GetDataTracker(network, 200);
+		PeerInfo first = peer(1);
+		int cap = GetDataTracker.MAX_IN_FLIGHT_PER_PEER;
+		for(int i=0; i<cap; i++)
+			tracker.announced(first, item(i));
+		InventoryItem extra = item(cap);
+		assertFalse(tracker.announced(first, extra));
+		assertEquals(cap + 1, tracker.getAnnounced(first));
+
+		// The peer delivers, but is busy with new items again before the
+		// waiting one gets a slot, so it is forgotten once its time is up
+		Thread.sleep(250);
+		for(int i=0; i<cap; i++){
+			tracker.received(item(i).getHash256());
+			assertTrue(tracker.announced(first, item(cap + 1 + i)));
+		}
+		tracker.execute();
+		assertFalse(tracker.isRequested(extra.getHash256()));
+		assertEquals(cap, tracker.getAnnounced(first));
+		assertEquals(cap, tracker.getInFlight(first));
+		assertTrue(network.sent.isEmpty());
+	}
+
+	@Test
+	public void testAnnouncedCap() throws Exception {
+		GetDataTracker tracker = new GetDataTracker(network);
+		PeerInfo flooder = peer(1), honest = peer(2);
+		for(int i=0; i<GetDataTracker.MAX_ANNOUNCED_PER_PEER + 10; i++)
+			tracker.announced(flooder, item(i));
+		assertEquals(GetDataTracker.MAX_ANNOUNCED_PER_PEER, tracker.getAnnounced(flooder));
+		assertFalse(tracker.isRequested(item(GetDataTracker.MAX_ANNOUNCED_PER_PEER).getHash256()));
+
+		// Other peers still get their items requested
+		InventoryItem real = item(GetDataTracker.MAX_ANNOUNCED_PER_PEER + 20);
+		assertTrue(tracker.announced(honest, real));
+		tracker.received(real.getHash256());
+		assertEquals(0, tracker.getAnnounced(honest));
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.bitdroid.network.BitcoinReactorNetwork;
+import net.bitdroid.network.BitcoinReactorNetwork.BitcoinReactorPeerInfo;
+import net.bitdroid.network.messages.InventoryMessage;
+import net.bitdroid.network.messages.Message;
+import net.bitdroid.network.messages.VerackMessage;
+import net.bitdroid.utils.Hash256;
+import net.bitdroid.utils.Sha256d;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestInventoryAnnouncer {
+	private ServerSocketChannel server;
+	private List<SocketChannel> channels = new ArrayList<SocketChannel>();
+	private RecordingNetwork network;
+
+	/**
+	 * Records what would be sent instead of sending it.
+	 */
+	private static class RecordingNetwork extends BitcoinReactorNetwork {
+		List<Message> sent = new ArrayList<Message>();
+		List<Message> broadcast = new ArrayList<Message>();
+
+		RecordingNetwork() throws IOException {
+			super(0);
+		}
+
+		@Override
+		public void sendMessage(Message event) throws IOException {
+			sent.add(event);
+		}
+
+		@Override
+		public void broadcast(Message message, Object exclude) {
+			broadcast.add(message);
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		network = new RecordingNetwork();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for(SocketChannel c : channels)
+			c.close();
+		server.close();
+	}
+
+	private BitcoinReactorPeerInfo connect(InventoryAnnouncer announcer) throws IOException {
+		SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+		channels.add(channel);
+		BitcoinReactorPeerInfo peer = network.new BitcoinReactorPeerInfo(channel);
+		VerackMessage verack = new VerackMessage();
+		verack.setOrigin(peer);
+		announcer.eventReceived(verack);
+		return peer;
+	}
+
+	private InventoryMessage.InventoryItem item(int type, int i){
+		InventoryMessage inv = new InventoryMessage();
+		return inv.new InventoryItem(type, Hash256.wrap(Sha256d.hash(new byte[]{(byte)i, (byte)(i >>> 8)})));
+	}
+
+	private void flush(InventoryAnnouncer announcer, BitcoinReactorPeerInfo peer) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 20 * InventoryAnnouncer.TRICKLE_INTERVAL_MILLI;
+		while(announcer.getQueuedItems(peer) > 0 && System.currentTimeMillis() < deadline){
+			Thread.sleep(InventoryAnnouncer.TICK_MILLI);
+			announcer.execute();
+		}
+		assertEquals(0, announcer.getQueuedItems(peer));
+	}
+
+	@Test
+	public void testTrickle() throws Exception {
+		InventoryAnnouncer announcer = new InventoryAnnouncer(network);
+		BitcoinReactorPeerInfo origin = connect(announcer);
+		BitcoinReactorPeerInfo peer = connect(announcer);
+
+		announcer.announce(item(InventoryMessage.MSG_TX, 1), origin);
+		announcer.announce(item(InventoryMessage.MSG_TX, 2), origin);
+		assertEquals(0, announcer.getQueuedItems(origin));
+		assertEquals(2, announcer.getQueuedItems(peer));
+		assertTrue(network.sent.isEmpty());
+
+		flush(announcer, peer);
+		assertEquals(1, network.sent.size());
+		InventoryMessage inv = (InventoryMessage)network.sent.get(0);
+		assertSame(peer, inv.getOrigin());
+		assertEquals(2, inv.getItems().size());
+	}
+
+	@Test
+	public void testBlocksImmediately() throws Exception {
+		InventoryAnnouncer announcer = new InventoryAnnouncer(network);
+		BitcoinReactorPeerInfo peer = connect(announcer);
+		announcer.announce(item(InventoryMessage.MSG_BLOCK, 1), null);
+		assertEquals(0, announcer.getQueuedItems(peer));
+		assertEquals(1, network.broadcast.size());
+	}
+
+	@Test
+	public void testKnownAndCapped() throws Exception {
+		InventoryAnnouncer announcer = new InventoryAnnouncer(network);
+		BitcoinReactorPeerInfo peer = connect(announcer);
+		peer.getKnownInventory().add(item(InventoryMessage.MSG_TX, 0).getHash256());
+		for(int i=0; i<InventoryAnnouncer.MAX_INVENTORY_ITEMS + 10; i++)
+			announcer.announce(item(InventoryMessage.MSG_TX, i), null);
+
+		flush(announcer, peer);
+		assertEquals(2, network.sent.size());
+		// The known item is left out
+		assertEquals(InventoryAnnouncer.MAX_INVENTORY_ITEMS, ((InventoryMessage)network.sent.get(0)).getItems().size());
+		assertEquals(9, ((InventoryMessage)network.sent.get(1)).getItems().size());
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.bitdroid.network.EncodedFrame;
+import net.bitdroid.network.FrameEncoder;
+import net.bitdroid.network.messages.InventoryMessage;
+import net.bitdroid.network.wire.Slab;
+import net.bitdroid.utils.Hash256;
+import net.bitdroid.utils.Sha256d;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestRelayCache {
+	private Hash256 hash(int i){
+		return Hash256.wrap(Sha256d.hash(new byte[]{(byte)i, (byte)(i >>> 8)}));
+	}
+
+	private InventoryMessage message(int i){
+		InventoryMessage inv = new InventoryMessage();
+		inv.getItems().add(inv.new InventoryItem(InventoryMessage.MSG_TX, hash(i)));
+		return inv;
+	}
+
+	private byte[] concat(ByteBuffer[] buffers){
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(ByteBuffer b : buffers)
+			while(b.hasRemaining())
+				out.write(b.get());
+		return out.toByteArray();
+	}
+
+	private byte[] encode(InventoryMessage inv) throws IOException {
+		ByteBuffer frame = new FrameEncoder().encode(inv, true);
+		byte[] b = new byte[frame.remaining()];
+		frame.get(b);
+		return b;
+	}
+
+	@Test
+	public void testServeEncoded() throws IOException {
+		RelayCache cache = new RelayCache(1024 * 1024);
+		InventoryMessage inv = message(1);
+		assertTrue(cache.put(hash(1), inv));
+		assertFalse(cache.put(hash(1), inv));
+		assertEquals(1, cache.getCount());
+
+		EncodedFrame frame = cache.get(hash(1));
+		assertNull(frame.getMessage());
+		assertArrayEquals(encode(inv), concat(frame.getBuffers(true)));
+		assertEquals(encode(inv).length - FrameEncoder.CHECKSUM_SIZE, frame.getSize(false));
+		frame.release();
+
+		assertNull(cache.get(hash(2)));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		int size = FrameEncoder.getFrameSize(message(0), true);
+		RelayCache cache = new RelayCache(3 * Slab.align(size));
+		for(int i=0; i<3; i++)
+			assertTrue(cache.put(hash(i), message(i)));
+		// Only the frames count, not the size classes of a pool
+		assertEquals(3 * size, cache.getSize());
+		// Used recently, so the second one goes first
+		cache.get(hash(0)).release();
+		cache.put(hash(3), message(3));
+
+		assertEquals(1, cache.getEvictions());
+		assertEquals(3 * size, cache.getSize());
+		assertTrue(cache.contains(hash(0)));
+		assertFalse(cache.contains(hash(1)));
+		assertTrue(cache.contains(hash(2)));
+		assertTrue(cache.contains(hash(3)));
+	}
+
+	@Test
+	public void testEvictedFrameStaysValid() throws IOException {
+		InventoryMessage inv = message(1);
+		RelayCache cache = new RelayCache(Slab.align(FrameEncoder.getFrameSize(inv, true)));
+		cache.put(hash(1), inv);
+		EncodedFrame frame = cache.get(hash(1));
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertEquals(1, frame.getReferenceCount());
+		assertArrayEquals(encode(inv), concat(frame.getBuffers(true)));
+		frame.release();
+	}
+
+	@Test
+	public void testSmallFrames() throws IOException {
+		int size = FrameEncoder.getFrameSize(message(0), true);
+		RelayCache cache = new RelayCache(64 * 1024);
+		for(int i=0; i<2000; i++)
+			cache.put(hash(i), message(i));
+		// Packed by their own size, not a 4KB buffer each
+		assertEquals(64 * 1024 / Slab.align(size), cache.getCount());
+		assertTrue(cache.getSize() <= 64 * 1024);
+	}
+
+	@Test
+	public void testSentFrameKeepsItsMemory() throws IOException {
+		InventoryMessage inv = message(1);
+		RelayCache cache = new RelayCache(Slab.align(FrameEncoder.getFrameSize(inv, true)));
+		cache.put(hash(1), inv);
+		EncodedFrame frame = cache.get(hash(1));
+		// The only room is still taken by the frame being sent
+		assertFalse(cache.put(hash(2), message(2)));
+		assertEquals(0, cache.getCount());
+		frame.release();
+		assertTrue(cache.put(hash(2), message(2)));
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.bitdroid.network.BitcoinReactorNetwork;
+import net.bitdroid.utils.Hash256;
+import net.bitdroid.utils.Sha256d;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestRollingBloomFilter {
+
+	private Hash256 hash(int i){
+		return Hash256.wrap(Sha256d.hash(new byte[]{(byte)i, (byte)(i >>> 8), (byte)(i >>> 16)}));
+	}
+
+	@Test
+	public void testRecent(){
+		RollingBloomFilter filter = new RollingBloomFilter(1000, 0.001);
+		for(int i=0; i<5000; i++){
+			filter.add(hash(i));
+			assertTrue(filter.mightContain(hash(i)));
+			// The most recent ones never fade out
+			if(i >= 999)
+				assertTrue(filter.mightContain(hash(i - 999)));
+		}
+	}
+
+	@Test
+	public void testFalsePositives(){
+		RollingBloomFilter filter = new RollingBloomFilter(1000, 0.001);
+		for(int i=0; i<1000; i++)
+			filter.add(hash(i));
+		int falsePositives = 0;
+		for(int i=1000; i<101000; i++)
+			if(filter.mightContain(hash(i)))
+				falsePositives++;
+		assertTrue("False positives: " + falsePositives, falsePositives < 300);
+	}
+
+	@Test
+	public void testRolling(){
+		RollingBloomFilter filter = new RollingBloomFilter(1000, 0.001);
+		for(int i=0; i<1000; i++)
+			filter.add(hash(i));
+		for(int i=1000; i<3000; i++)
+			filter.add(hash(i));
+		int remembered = 0;
+		for(int i=0; i<1000; i++)
+			if(filter.mightContain(hash(i)))
+				remembered++;
+		assertTrue("Remembered: " + remembered, remembered < 10);
+		filter.clear();
+		assertFalse(filter.mightContain(hash(2999)));
+	}
+
+	@Test
+	public void testSize(){
+		RollingBloomFilter filter = new RollingBloomFilter(BitcoinReactorNetwork.KNOWN_INVENTORY_SIZE, 0.001);
+		assertTrue(filter.getSize() < 10 * 1024);
+	}
+}
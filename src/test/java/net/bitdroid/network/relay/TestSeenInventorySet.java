@@ -0,0 +1,88 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.network.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.bitdroid.utils.Hash256;
+import net.bitdroid.utils.Sha256d;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestSeenInventorySet {
+
+	private Hash256 hash(int i){
+		return Hash256.wrap(Sha256d.hash(new byte[]{(byte)i, (byte)(i >>> 8), (byte)(i >>> 16)}));
+	}
+
+	@Test
+	public void testAdd(){
+		SeenInventorySet seen = new SeenInventorySet(1024 * 1024, 60 * 60 * 1000, 4);
+		assertFalse(seen.contains(hash(1)));
+		assertTrue(seen.add(hash(1)));
+		assertFalse(seen.add(hash(1)));
+		assertTrue(seen.contains(hash(1)));
+		for(int i=2; i<1000; i++)
+			assertTrue(seen.add(hash(i)));
+		for(int i=1; i<1000; i++)
+			assertTrue(seen.contains(hash(i)));
+		assertFalse(seen.contains(hash(1000)));
+		assertEquals(0, seen.getEvictions());
+	}
+
+	@Test
+	public void testGenerations(){
+		SeenInventorySet seen = new SeenInventorySet(1024 * 1024, 60 * 60 * 1000, 2);
+		seen.add(hash(1));
+		seen.add(hash(2));
+		seen.advance();
+		// Seeing it again keeps it around for longer
+		seen.add(hash(2));
+		assertTrue(seen.contains(hash(1)));
+		seen.advance();
+		assertFalse(seen.contains(hash(1)));
+		assertTrue(seen.contains(hash(2)));
+		seen.advance();
+		assertFalse(seen.contains(hash(2)));
+		assertTrue(seen.add(hash(1)));
+	}
+
+	@Test
+	public void testEviction(){
+		// A single bucket
+		SeenInventorySet seen = new SeenInventorySet(1, 60 * 60 * 1000, 4);
+		assertEquals(SeenInventorySet.SLOTS_PER_BUCKET, seen.getCapacity());
+		seen.add(hash(0));
+		seen.advance();
+		for(int i=1; i<SeenInventorySet.SLOTS_PER_BUCKET; i++)
+			seen.add(hash(i));
+		seen.add(hash(100));
+		// The one seen longest ago had to go
+		assertEquals(1, seen.getEvictions());
+		assertFalse(seen.contains(hash(0)));
+		for(int i=1; i<SeenInventorySet.SLOTS_PER_BUCKET; i++)
+			assertTrue(seen.contains(hash(i)));
+		assertTrue(seen.contains(hash(100)));
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestBufferPool {
+
+	@Test
+	public void testReuse(){
+		BufferPool pool = new BufferPool(false);
+		PooledBuffer a = pool.acquire(100);
+		assertEquals(100, a.getBuffer().limit());
+		assertEquals(pool.getClassSize(BufferPool.SMALL), a.getBuffer().capacity());
+
+		a.retain();
+		assertFalse(a.release());
+		assertTrue(a.release());
+
+		PooledBuffer b = pool.acquire(200);
+		assertSame(a.getBuffer(), b.getBuffer());
+		assertEquals(200, b.getBuffer().limit());
+		assertEquals(1, pool.getAllocations());
+		assertEquals(1, pool.getReuses());
+	}
+
+	@Test
+	public void testOversizedIsNotPooled(){
+		BufferPool pool = new BufferPool(true);
+		int size = pool.getClassSize(BufferPool.LARGE) + 1;
+		PooledBuffer a = pool.acquire(size);
+		assertEquals(size, a.getBuffer().capacity());
+		a.release();
+		pool.acquire(size);
+		assertEquals(2, pool.getAllocations());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testDoubleRelease(){
+		PooledBuffer a = new BufferPool(false).acquire(10);
+		a.release();
+		a.release();
+	}
+
+	@Test
+	public void testAdapt(){
+		BufferPool pool = new BufferPool(false);
+		PooledBuffer stale = pool.acquire(100);
+		// Mostly pings and small invs, a few transactions and one block
+		for(int i=0; i<BufferPool.ADAPT_INTERVAL; i++){
+			if(i % 100 == 0)
+				pool.record(300 * 1024);
+			else if(i % 5 == 0)
+				pool.record(600);
+			else
+				pool.record(40);
+		}
+		assertEquals(256, pool.getClassSize(BufferPool.SMALL));
+		assertEquals(1024, pool.getClassSize(BufferPool.MEDIUM));
+		assertEquals(512 * 1024, pool.getClassSize(BufferPool.LARGE));
+
+		// Buffers of the old size are not taken back
+		stale.release();
+		pool.acquire(100);
+		assertEquals(2, pool.getAllocations());
+	}
+
+	@Test
+	public void testRecorderAndLargeFloor(){
+		BufferPool pool = new BufferPool(false);
+		pool.requireLargeSize(2 * 1024 * 1024);
+		assertEquals(2 * 1024 * 1024, pool.getClassSize(BufferPool.LARGE));
+		// Small frames only, merged in batches
+		BufferPool.SizeRecorder recorder = pool.newRecorder();
+		for(int i=0; i<BufferPool.ADAPT_INTERVAL - 1; i++)
+			recorder.record(40);
+		assertEquals(4 * 1024, pool.getClassSize(BufferPool.SMALL));
+		recorder.record(40);
+		assertEquals(256, pool.getClassSize(BufferPool.SMALL));
+		// The large class doesn't follow them down
+		assertEquals(2 * 1024 * 1024, pool.getClassSize(BufferPool.LARGE));
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestByteRingBuffer {
+
+	@Test
+	public void testPutAndWrapAround() throws IOException {
+		ByteRingBuffer ring = new ByteRingBuffer(8, true);
+		assertEquals(6, ring.put(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6})));
+		LimitedChannel channel = new LimitedChannel();
+		channel.budget = 4;
+		assertEquals(4, ring.writeTo(channel));
+		assertEquals(2, ring.size());
+
+		// Two bytes left, this wraps around the end of the ring
+		ByteBuffer src = ByteBuffer.wrap(new byte[]{7, 8, 9, 10, 11, 12, 13});
+		assertEquals(6, ring.put(src));
+		assertEquals(1, src.remaining());
+		assertEquals(0, ring.free());
+		channel.budget = 100;
+		assertEquals(8, ring.writeTo(channel));
+		assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}, channel.out.toByteArray());
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void testReserve() throws IOException {
+		ByteRingBuffer ring = new ByteRingBuffer(8, false);
+		ring.put(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}));
+		assertNull(ring.reserve(4));
+		ByteBuffer target = ring.reserve(3);
+		target.put(new byte[]{6, 7, 8});
+		ring.commit(3);
+		LimitedChannel channel = new LimitedChannel();
+		ring.writeTo(channel);
+		assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, channel.out.toByteArray());
+	}
+
+	/**
+	 * Channel accepting only a limited number of bytes, like a socket with a
+	 * full send buffer.
+	 */
+	private static class LimitedChannel implements GatheringByteChannel {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int budget = Integer.MAX_VALUE;
+
+		public int write(ByteBuffer src) throws IOException {
+			int n = Math.min(budget, src.remaining());
+			for(int i=0; i<n; i++)
+				out.write(src.get());
+			budget -= n;
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			long n = 0;
+			for(int i=offset; i<offset + length; i++)
+				n += write(srcs[i]);
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() throws IOException {
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestLittleEndianBufferReader {
+
+	@Test
+	public void testReadPrimitives() throws IOException {
+		byte b[] = new byte[18];
+		LittleEndianOutputStream leos = LittleEndianOutputStream.wrap(b);
+		leos.writeUnsignedShort(65123);
+		leos.writeInt(-12345000);
+		leos.writeUnsignedInt(4147483647L);
+		leos.writeLong(-1311768467463790320L);
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(b);
+		assertEquals(65123, reader.readUnsignedShort());
+		assertEquals(-12345000, reader.readInt());
+		assertEquals(4147483647L, reader.readUnsignedInt());
+		assertEquals(-1311768467463790320L, reader.readLong());
+		assertFalse(reader.hasRemaining());
+	}
+
+	@Test
+	public void testAbsoluteReads() throws IOException {
+		byte b[] = new byte[]{0x12, (byte)0xD4, 0x7B, 0x00, 0x00};
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(b);
+		assertEquals(31700, reader.getUnsignedShort(1));
+		assertEquals(31700, reader.getUnsignedInt(1));
+		assertEquals(0, reader.position());
+		assertEquals(0x12, reader.read());
+	}
+
+	@Test
+	public void testReadUnsignedLong() throws IOException {
+		byte b[] = new byte[]{(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+				(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF};
+		assertEquals(new BigInteger("18446744073709551615"), new LittleEndianBufferReader(b).readUnsignedLong());
+	}
+
+	@Test
+	public void testReadVariableSize() throws IOException {
+		byte b[] = new byte[]{
+				0x12,
+				(byte)0xFD, (byte)0xD4, 0x7B,
+				(byte)0xFE, 0x01, 0x02, 0x03, 0x04,
+				(byte)0xFF, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08};
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(b);
+		assertEquals(0x12, reader.readVariableSize());
+		assertEquals(31700, reader.readVariableSize());
+		assertEquals(0x04030201L, reader.readVariableSize());
+		assertEquals(0x0807060504030201L, reader.readVariableSize());
+	}
+
+	@Test
+	public void testReadSlice() throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, 0x06});
+		buf.position(1);
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(buf);
+		LittleEndianBufferReader slice = reader.readSlice(2);
+		assertEquals(2, slice.remaining());
+		assertEquals(0x0302, slice.readUnsignedShort());
+		assertEquals(2, reader.position());
+		assertEquals(0x04, reader.readUnsignedByte());
+		// The original buffer must not be touched
+		assertEquals(1, buf.position());
+		try{
+			reader.readSlice(3);
+			fail("Slice beyond the end of the buffer");
+		}catch(EOFException eof){}
+	}
+
+	@Test(expected=EOFException.class)
+	public void testReadPastEnd() throws IOException {
+		new LittleEndianBufferReader(new byte[3]).readInt();
+	}
+
+	@Test
+	public void testReadVariableCount() throws IOException {
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(new byte[]{0x02, 0x00, 0x00});
+		assertEquals(2, reader.readVariableCount());
+
+		byte[][] malformed = new byte[][]{
+				// Negative as a long
+				{(byte)0xFF, 0, 0, 0, 0, 0, 0, 0, (byte)0x80},
+				// Beyond an int
+				{(byte)0xFF, 0, 0, 0, (byte)0x80, 0, 0, 0, 0},
+				// More than the bytes left
+				{(byte)0xFD, 0x03, 0x00, 0x00, 0x00}
+		};
+		for(byte[] b : malformed){
+			try{
+				new LittleEndianBufferReader(b).readVariableCount();
+				fail("Accepted a malformed count");
+			}catch(IOException e){
+				// Expected
+			}
+		}
+	}
+}
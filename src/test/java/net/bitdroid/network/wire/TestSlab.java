@@ -0,0 +1,92 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.network.wire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestSlab {
+
+	@Test
+	public void testExactRegions(){
+		Slab slab = new Slab(1000);
+		assertEquals(992, slab.getCapacity());
+		PooledBuffer a = slab.allocate(250);
+		assertEquals(250, a.getBuffer().capacity());
+		assertEquals(250, a.getBuffer().limit());
+		assertEquals(ByteOrder.LITTLE_ENDIAN, a.getBuffer().order());
+		assertEquals(256, slab.getUsed());
+
+		PooledBuffer b = slab.allocate(100);
+		a.getBuffer().putInt(0, 42);
+		b.getBuffer().putInt(0, 7);
+		assertEquals(42, a.getBuffer().getInt(0));
+		assertEquals(256 + 112, slab.getUsed());
+
+		a.retain();
+		a.release();
+		assertEquals(256 + 112, slab.getUsed());
+		a.release();
+		assertEquals(112, slab.getUsed());
+		b.release();
+		assertEquals(0, slab.getUsed());
+	}
+
+	@Test
+	public void testFullAndMerged(){
+		Slab slab = new Slab(3 * 320);
+		PooledBuffer a = slab.allocate(320);
+		PooledBuffer b = slab.allocate(320);
+		PooledBuffer c = slab.allocate(320);
+		assertNull(slab.allocate(1));
+		assertNull(slab.allocate(2000));
+
+		// Freed neighbours make up a single region again
+		a.release();
+		c.release();
+		assertEquals(320, slab.getLargestFree());
+		b.release();
+		assertEquals(3 * 320, slab.getLargestFree());
+		slab.allocate(3 * 320).release();
+	}
+
+	@Test
+	public void testBestFit(){
+		Slab slab = new Slab(1024);
+		PooledBuffer a = slab.allocate(512);
+		PooledBuffer b = slab.allocate(64);
+		PooledBuffer c = slab.allocate(64);
+		b.release();
+		// Takes the hole left by b rather than splitting the larger rest
+		PooledBuffer d = slab.allocate(48);
+		assertEquals(1024 - 512 - 64 - 64, slab.getLargestFree());
+		a.release();
+		c.release();
+		d.release();
+		assertEquals(0, slab.getUsed());
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.bitdroid.network.wire.LittleEndianBufferReader;
+import net.bitdroid.network.wire.LittleEndianOutputStream;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestHash256 {
+
+	@Test
+	public void testByteOrder() throws IOException {
+		byte[] digest = Sha256d.hash(new byte[0]);
+		Hash256 h = Hash256.wrap(digest);
+		assertArrayEquals(digest, h.getBytes());
+		byte[] reversed = digest.clone();
+		StringUtils.reverse(reversed);
+		assertArrayEquals(reversed, h.getReversedBytes());
+		assertEquals(h, Hash256.wrapReversed(reversed));
+		assertEquals("56944c5d3f98413ef45cf54545538103cc9f298e0575820ad3591376e2e0f65d", h.toHexString());
+
+		byte[] out = new byte[Hash256.SIZE];
+		h.write(LittleEndianOutputStream.wrap(out));
+		assertArrayEquals(digest, out);
+	}
+
+	@Test
+	public void testBuffer() throws IOException {
+		byte[] b = new byte[40];
+		byte[] digest = Sha256d.hash(new byte[]{1, 2, 3});
+		System.arraycopy(digest, 0, b, 4, digest.length);
+		Hash256 h = Hash256.wrap(digest);
+		// Big endian buffers are read the same
+		assertEquals(h, Hash256.get(ByteBuffer.wrap(b), 4));
+
+		LittleEndianBufferReader reader = new LittleEndianBufferReader(b);
+		reader.position(4);
+		assertEquals(h, Hash256.read(reader));
+		assertEquals(36, reader.position());
+	}
+
+	@Test
+	public void testMapKey() {
+		Map<Hash256, String> map = new HashMap<Hash256, String>();
+		for(int i=0; i<100; i++)
+			map.put(Hash256.wrap(Sha256d.hash(new byte[]{(byte)i})), "" + i);
+		assertEquals(100, map.size());
+		assertEquals("42", map.get(Hash256.wrap(Sha256d.hash(new byte[]{42}))));
+		assertTrue(map.containsKey(Hash256.wrap(Sha256d.hash(new byte[]{7}))));
+		assertFalse(map.containsKey(Hash256.ZERO));
+	}
+
+	@Test
+	public void testChosenCollisions() {
+		// Swapping words keeps the plain XOR fold of the words, which peers could abuse
+		byte[] a = new byte[Hash256.SIZE];
+		byte[] b = new byte[Hash256.SIZE];
+		a[0] = 1;
+		a[8] = 2;
+		b[0] = 2;
+		b[8] = 1;
+		Hash256 ha = Hash256.wrap(a);
+		Hash256 hb = Hash256.wrap(b);
+		assertFalse(ha.equals(hb));
+		assertFalse(ha.hashCode() == hb.hashCode());
+		assertEquals(ha.hashCode(), Hash256.wrap(a.clone()).hashCode());
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+package net.bitdroid.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestMpscQueue {
+	private static final int PRODUCERS = 4;
+	private static final int ELEMENTS = 100000;
+
+	@Test
+	public void testOrder(){
+		MpscQueue<Integer> queue = new MpscQueue<Integer>();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+		// Across a few chunks, interleaving adds and takes
+		int taken = 0;
+		for(int i=0; i<5 * MpscQueue.CHUNK_SIZE; i++){
+			queue.offer(i);
+			if(i % 3 == 0){
+				assertEquals(taken, (int)queue.peek());
+				assertEquals(taken++, (int)queue.poll());
+			}
+		}
+		assertEquals(5 * MpscQueue.CHUNK_SIZE - taken, queue.size());
+		while(!queue.isEmpty())
+			assertEquals(taken++, (int)queue.poll());
+		assertEquals(5 * MpscQueue.CHUNK_SIZE, taken);
+		assertNull(queue.peek());
+		assertEquals(0, queue.size());
+	}
+
+	@Test(expected=NullPointerException.class)
+	public void testNull(){
+		new MpscQueue<Object>().offer(null);
+	}
+
+	@Test
+	public void testProducers() throws InterruptedException {
+		final MpscQueue<long[]> queue = new MpscQueue<long[]>();
+		Thread[] producers = new Thread[PRODUCERS];
+		for(int p=0; p<PRODUCERS; p++){
+			final int producer = p;
+			producers[p] = new Thread(new Runnable() {
+				public void run() {
+					for(int i=0; i<ELEMENTS; i++)
+						queue.offer(new long[]{producer, i});
+				}
+			});
+			producers[p].start();
+		}
+		// Every producer's elements come out in order, none is lost
+		int[] next = new int[PRODUCERS];
+		int received = 0;
+		long deadline = System.currentTimeMillis() + 30000;
+		while(received < PRODUCERS * ELEMENTS && System.currentTimeMillis() < deadline){
+			long[] e = queue.poll();
+			if(e == null){
+				Thread.yield();
+				continue;
+			}
+			assertEquals(next[(int)e[0]]++, e[1]);
+			received++;
+		}
+		for(Thread t : producers)
+			t.join();
+		assertEquals(PRODUCERS * ELEMENTS, received);
+		for(int p=0; p<PRODUCERS; p++)
+			assertEquals(ELEMENTS, next[p]);
+		assertNull(queue.poll());
+	}
+}
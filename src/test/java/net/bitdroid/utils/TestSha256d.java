@@ -0,0 +1,53 @@
+/**
+ * Copyright 2011 Christian Decker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This file is part the BitDroidNetwork Project.
+ */
+
+package net.bitdroid.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * @author cdecker
+ *
+ */
+public class TestSha256d {
+
+	@Test
+	public void testEmpty() throws IOException {
+		// The well known checksum of an empty payload, as sent with verack
+		assertArrayEquals(new byte[]{(byte)0x5d, (byte)0xf6, (byte)0xe0, (byte)0xe2}, Sha256d.checksum(new byte[0]));
+		assertEquals("5df6e0e2761359d30a8275058e299fcc0381534545f55cf43e41983f5d4c9456",
+				StringUtils.getHexString(Sha256d.hash(new byte[0])));
+	}
+
+	@Test
+	public void testBufferRegion() throws IOException {
+		byte[] b = "xxhelloxx".getBytes("US-ASCII");
+		ByteBuffer region = ByteBuffer.wrap(b, 2, 5);
+		byte[] h = Sha256d.hash(region);
+		assertEquals(2, region.position());
+		assertArrayEquals(Sha256d.hash("hello".getBytes("US-ASCII")), h);
+		assertEquals(Sha256d.checksum(region), ByteBuffer.wrap(h).order(ByteOrder.LITTLE_ENDIAN).getInt());
+	}
+}